@@ -0,0 +1,190 @@
+package no.ntnu.datakomm.chat.cli;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.datakomm.chat.ChatListener;
+import no.ntnu.datakomm.chat.StartupTiming;
+import no.ntnu.datakomm.chat.TCPClient;
+import no.ntnu.datakomm.chat.TextMessage;
+
+/**
+ * Headless chat client for bots and scripts. Connects, logs in and then reads commands from standard input, one
+ * per line, the same way the GUI reads its message box:
+ * <ul>
+ * <li>/privmsg recipient text - private message</li>
+ * <li>/users - ask for the user list</li>
+ * <li>/help - ask for the supported commands</li>
+ * <li>/quit - disconnect and exit (end of input does the same)</li>
+ * <li>anything else - public message</li>
+ * </ul>
+ * Events from the server are printed to standard output, one per line. Uses only the core library, so it starts
+ * without JavaFX.
+ * <p>
+ * Usage: ChatCli host port username [--ttfm]. With --ttfm the time to first message is printed to standard
+ * error (see StartupTiming).
+ */
+public class ChatCli implements ChatListener {
+    // How long to wait for the answer to the login
+    private static final long LOGIN_TIMEOUT_MS = 5000;
+
+    private final TCPClient client;
+    private final PrintStream out;
+    private final CountDownLatch loginDone = new CountDownLatch(1);
+    private volatile boolean loggedIn = false;
+    private boolean reportFirstMessage = false;
+
+    /**
+     * @param client The client to use, not connected yet
+     * @param out    Where to print the events
+     */
+    public ChatCli(TCPClient client, PrintStream out) {
+        this.client = client;
+        this.out = out;
+    }
+
+    /**
+     * Print the time to first message to standard error when the first message is sent.
+     *
+     * @param report true to report it
+     */
+    public void setReportFirstMessage(boolean report) {
+        this.reportFirstMessage = report;
+    }
+
+    /**
+     * Connect and log in.
+     *
+     * @param host     Host name or IP address of the chat server
+     * @param port     TCP port of the chat server
+     * @param username Username to log in with
+     * @return true when logged in
+     * @throws InterruptedException When interrupted while waiting for the login response
+     */
+    public boolean start(String host, int port, String username) throws InterruptedException {
+        if (!client.connect(host, port)) {
+            out.println("error Could not connect: " + client.getLastError());
+            return false;
+        }
+        client.addListener(this);
+        client.startListenThread();
+        client.tryLogin(username);
+        if (!loginDone.await(LOGIN_TIMEOUT_MS, TimeUnit.MILLISECONDS) || !loggedIn) {
+            out.println("error Login failed");
+            client.disconnect();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Execute one input line.
+     *
+     * @param line The line
+     * @return false when the client should exit
+     */
+    public boolean handleLine(String line) {
+        if (line.isEmpty()) {
+            return true;
+        }
+        if (!client.isConnectionActive()) {
+            return false;
+        }
+        String[] parts = line.split(" ", 3);
+        boolean sent = false;
+        switch (parts[0]) {
+            case "/quit":
+                return false;
+            case "/users":
+                client.refreshUserList();
+                break;
+            case "/help":
+                client.askSupportedCommands();
+                break;
+            case "/privmsg":
+                if (parts.length == 3) {
+                    sent = client.sendPrivateMessage(parts[1], parts[2]);
+                } else {
+                    out.println("error Usage: /privmsg recipient text");
+                }
+                break;
+            default:
+                sent = client.sendPublicMessage(line);
+                break;
+        }
+        if (sent && reportFirstMessage) {
+            StartupTiming.firstMessageSent(System.err, "cli");
+        }
+        return true;
+    }
+
+    /**
+     * Execute the input lines until the end of input or /quit, then disconnect.
+     *
+     * @param in The input
+     * @throws IOException When reading the input fails
+     */
+    public void run(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null && handleLine(line)) {
+            // Next line
+        }
+        client.disconnect();
+    }
+
+    @Override
+    public void onDisconnect() {
+        out.println("disconnected");
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        loggedIn = success;
+        if (!success) {
+            out.println("loginerr " + errMsg);
+        }
+        loginDone.countDown();
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        out.println((message.isPrivate() ? "privmsg " : "msg ") + message.getSender() + " " + message.getText());
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        out.println("msgerror " + errMsg);
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        out.println("users " + String.join(" ", usernames));
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        out.println("supported " + String.join(" ", commands));
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        out.println("cmderr " + errMsg);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Usage: ChatCli host port username [--ttfm]");
+            System.exit(2);
+        }
+        ChatCli cli = new ChatCli(new TCPClient(), System.out);
+        cli.setReportFirstMessage(args.length > 3 && args[3].equals("--ttfm"));
+        if (!cli.start(args[0], Integer.parseInt(args[1]), args[2])) {
+            System.exit(1);
+        }
+        cli.run(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,209 @@
+package no.ntnu.datakomm.chat.cli;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Startup benchmark of the headless client. Runs a minimal chat server on a local port and starts ChatCli in new
+ * JVMs, each doing a typical bot session: connect, log in, send one message, quit. Every variant is started
+ * several times and the time to first message (see StartupTiming) and the wall time of the process are
+ * reported:
+ * <ul>
+ * <li>cold: the current java, no class-data sharing archive for the application</li>
+ * <li>cds: the current java with the AppCDS archive</li>
+ * <li>jlink: java of the trimmed runtime image, with the AppCDS archive made by that runtime</li>
+ * </ul>
+ * The same session is used to train the archive: with --train, one session runs with -XX:ArchiveClassesAtExit.
+ * See the runtime-image profile in the pom of the cli module, which builds the image and both archives.
+ * <p>
+ * Usage: StartupBenchmark [--runs n] [--archive file] [--image dir] [--image-archive file]
+ * <br>or: StartupBenchmark --train archive [--java path]
+ */
+public class StartupBenchmark {
+    private static final Pattern TTFM = Pattern.compile("Time to first message \\(cli\\): (\\d+) ms");
+
+    /**
+     * Answers just enough of the protocol for one bot session.
+     */
+    private static void serve(ServerSocket server) {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Thread t = new Thread(() -> session(socket));
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    private static void session(Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(),
+                    StandardCharsets.UTF_8));
+            OutputStream out = s.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String response = null;
+                if (line.startsWith("login ")) {
+                    response = "loginok\n";
+                } else if (line.startsWith("msg ") || line.startsWith("privmsg ")) {
+                    response = "msgok 1\n";
+                }
+                if (response != null) {
+                    out.write(response.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+
+    /**
+     * Run one bot session in a new JVM.
+     *
+     * @param java    The java executable
+     * @param options JVM options
+     * @param port    Port of the local server
+     * @return Time to first message and wall time in milliseconds, or null if the session failed
+     */
+    private static long[] runSession(String java, List<String> options, int port)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.addAll(options);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ChatCli.class.getName());
+        command.add("127.0.0.1");
+        command.add(Integer.toString(port));
+        command.add("startupbot");
+        command.add("--ttfm");
+        // The chat output is not needed (Redirect.DISCARD needs Java 9, the CLI is built for Java 8)
+        File output = File.createTempFile("startupbot", ".out");
+        output.deleteOnExit();
+        long start = System.nanoTime();
+        Process p = new ProcessBuilder(command).redirectOutput(output).start();
+        try (OutputStream stdin = p.getOutputStream()) {
+            stdin.write("Hello from a bot\n/quit\n".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // The JVM exited already, the errors follow
+        }
+        Long ttfm = null;
+        BufferedReader err = new BufferedReader(new InputStreamReader(p.getErrorStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = err.readLine()) != null) {
+            Matcher m = TTFM.matcher(line);
+            if (m.find()) {
+                ttfm = Long.parseLong(m.group(1));
+            } else {
+                System.err.println(line);
+            }
+        }
+        int exit = p.waitFor();
+        long wall = (System.nanoTime() - start) / 1_000_000L;
+        output.delete();
+        return exit == 0 && ttfm != null ? new long[]{ttfm, wall} : null;
+    }
+
+    private static void benchmark(String name, String java, List<String> options, int port, int runs)
+            throws IOException, InterruptedException {
+        List<Long> ttfm = new ArrayList<>();
+        List<Long> wall = new ArrayList<>();
+        for (int i = 0; i < runs; i++) {
+            long[] result = runSession(java, options, port);
+            if (result == null) {
+                System.out.println(String.format("%-6s: session failed", name));
+                return;
+            }
+            ttfm.add(result[0]);
+            wall.add(result[1]);
+        }
+        Collections.sort(ttfm);
+        Collections.sort(wall);
+        System.out.println(String.format("%-6s: time to first message median %4d ms (min %4d), "
+                        + "process wall time median %4d ms (min %4d)", name, ttfm.get(runs / 2), ttfm.get(0),
+                wall.get(runs / 2), wall.get(0)));
+    }
+
+    private static String currentJava() {
+        return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int runs = 10;
+        String archive = null;
+        String image = null;
+        String imageArchive = null;
+        String train = null;
+        String java = currentJava();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--runs":
+                    runs = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--archive":
+                    archive = args[i + 1];
+                    break;
+                case "--image":
+                    image = args[i + 1];
+                    break;
+                case "--image-archive":
+                    imageArchive = args[i + 1];
+                    break;
+                case "--train":
+                    train = args[i + 1];
+                    break;
+                case "--java":
+                    java = args[i + 1];
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread t = new Thread(() -> serve(server));
+            t.setDaemon(true);
+            t.start();
+            int port = server.getLocalPort();
+
+            if (train != null) {
+                // Record the classes of a typical session in the archive
+                long[] result = runSession(java, Collections.singletonList("-XX:ArchiveClassesAtExit=" + train),
+                        port);
+                System.out.println(result != null ? "Archive written: " + train : "Training session failed");
+                System.exit(result != null ? 0 : 1);
+            }
+
+            // One session first, so that the OS file cache is warm for all the variants
+            runSession(currentJava(), Collections.<String>emptyList(), port);
+            benchmark("cold", currentJava(), Collections.singletonList("-Xshare:auto"), port, runs);
+            if (archive != null && new File(archive).exists()) {
+                benchmark("cds", currentJava(), Collections.singletonList("-XX:SharedArchiveFile=" + archive),
+                        port, runs);
+            }
+            if (image != null) {
+                String imageJava = image + File.separator + "bin" + File.separator + "java";
+                List<String> options = imageArchive != null && new File(imageArchive).exists()
+                        ? Collections.singletonList("-XX:SharedArchiveFile=" + imageArchive)
+                        : Collections.<String>emptyList();
+                benchmark("jlink", imageJava, options, port, runs);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package no.ntnu.datakomm.chat.cli;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import no.ntnu.datakomm.chat.TCPClient;
+import no.ntnu.datakomm.chat.TextMessage;
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.FakeChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChatCliTest {
+    private FakeChatServer server;
+
+    @Before
+    public void startServer() {
+        server = new FakeChatServer();
+    }
+
+    @After
+    public void stopServer() {
+        server.shutdown();
+    }
+
+    /**
+     * A script of commands is executed, and the other client receives the messages.
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void testScript() throws Exception {
+        TCPClient other = new TCPClient(server);
+        ChatCli otherCli = new ChatCli(other, new PrintStream(new ByteArrayOutputStream()));
+        assertTrue(otherCli.start("localhost", 1300, "UnitTestOther"));
+        DummyMsgReceiver received = new DummyMsgReceiver();
+        other.addListener(received);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ChatCli cli = new ChatCli(new TCPClient(server), new PrintStream(output, true, "UTF-8"));
+        assertTrue(cli.start("localhost", 1300, "UnitTestCli"));
+        cli.run(new BufferedReader(new StringReader(
+                "Hello all\n/privmsg UnitTestOther Hello you\n/privmsg nobody\n/quit\nNot sent\n")));
+
+        final TextMessage pub = new TextMessage("UnitTestCli", false, "Hello all");
+        final TextMessage priv = new TextMessage("UnitTestCli", true, "Hello you");
+        assertTrue(received.await(() -> received.hasReceived(pub) && received.hasReceived(priv)));
+        assertFalse(received.hasReceived(new TextMessage("UnitTestCli", false, "Not sent")));
+        assertTrue(output.toString("UTF-8").contains("error Usage: /privmsg recipient text"));
+        other.disconnect();
+    }
+
+    /**
+     * A failed login is reported.
+     *
+     * @throws InterruptedException When interrupted while waiting
+     * @throws IOException          Not expected
+     */
+    @Test
+    public void testLoginFails() throws InterruptedException, IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ChatCli cli = new ChatCli(new TCPClient(server), new PrintStream(output, true, "UTF-8"));
+        assertFalse(cli.start("localhost", 1300, "not valid"));
+        assertTrue(output.toString("UTF-8").contains("loginerr"));
+    }
+}
@@ -0,0 +1,138 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receive pipeline stage which alerts when a message mentions a watched keyword (or our username: add it as a
+ * keyword). Each message text is scanned once by a compiled KeywordMatcher, whatever the number of keywords.
+ * <p>
+ * The keywords can be replaced at any time from any thread: the new matcher is compiled on the caller's thread
+ * and then swapped in, so the listen thread never waits for it. A message is scanned either with the old or with
+ * the new keywords. The engine never drops messages.
+ */
+public class AlertEngine implements MessageStage {
+    private final boolean wholeWords;
+    private volatile KeywordMatcher matcher;
+    private final List<AlertListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong alerts = new AtomicLong();
+    private final AtomicLong matches = new AtomicLong();
+    private final AtomicLong scanNanos = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
+    /**
+     * @param wholeWords true to match whole words only ("cat" does not match in "category")
+     */
+    public AlertEngine(boolean wholeWords) {
+        this.wholeWords = wholeWords;
+        this.matcher = new KeywordMatcher(Collections.<String>emptyList(), wholeWords);
+    }
+
+    /**
+     * Replace the watched keywords. Matching is case-insensitive.
+     *
+     * @param keywords The new keywords
+     */
+    public void setKeywords(Collection<String> keywords) {
+        matcher = new KeywordMatcher(keywords, wholeWords);
+        reloads.incrementAndGet();
+    }
+
+    /**
+     * Replace the watched keywords with the ones in a UTF-8 file, one per line. Blank lines and lines starting
+     * with # are skipped, leading and trailing spaces are removed. When the file can't be read, the old keywords
+     * stay in use.
+     *
+     * @param file The keyword file
+     * @throws IOException When the file can't be read
+     */
+    public void reload(Path file) throws IOException {
+        List<String> keywords = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String keyword = line.trim();
+            if (!keyword.isEmpty() && !keyword.startsWith("#")) {
+                keywords.add(keyword);
+            }
+        }
+        setKeywords(keywords);
+    }
+
+    /**
+     * @return Number of keywords watched now
+     */
+    public int getKeywordCount() {
+        return matcher.size();
+    }
+
+    public void addListener(AlertListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(AlertListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public boolean process(TextMessage message) {
+        long start = System.nanoTime();
+        List<KeywordMatch> found = matcher.match(message.getTextChars());
+        scanNanos.addAndGet(System.nanoTime() - start);
+        scanned.incrementAndGet();
+        if (!found.isEmpty()) {
+            alerts.incrementAndGet();
+            matches.addAndGet(found.size());
+            List<KeywordMatch> unmodifiable = Collections.unmodifiableList(found);
+            for (AlertListener l : listeners) {
+                l.onAlert(message, unmodifiable);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Number of messages scanned
+     */
+    public long getScannedMessages() {
+        return scanned.get();
+    }
+
+    /**
+     * @return Number of messages which contained at least one keyword
+     */
+    public long getAlerts() {
+        return alerts.get();
+    }
+
+    /**
+     * @return Total number of keyword occurrences found
+     */
+    public long getMatches() {
+        return matches.get();
+    }
+
+    /**
+     * @return Total time spent scanning, in nanoseconds
+     */
+    public long getScanNanos() {
+        return scanNanos.get();
+    }
+
+    /**
+     * @return Number of times the keywords were replaced
+     */
+    public long getReloads() {
+        return reloads.get();
+    }
+}
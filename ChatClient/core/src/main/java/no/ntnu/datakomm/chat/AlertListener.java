@@ -0,0 +1,17 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.List;
+
+/**
+ * Listener for the alerts of an AlertEngine.
+ */
+public interface AlertListener {
+
+    /**
+     * This method is called on the listen thread when a received message contains watched keywords.
+     *
+     * @param message The message
+     * @param matches All the occurrences of the keywords in the message text, in the order of their end offset
+     */
+    public void onAlert(TextMessage message, List<KeywordMatch> matches);
+}
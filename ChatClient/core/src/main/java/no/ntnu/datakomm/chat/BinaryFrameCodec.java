@@ -0,0 +1,213 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Length-prefixed binary framing of the chat protocol. The receiver knows the size of every command up front and
+ * does not scan for newlines or spaces. The known command words are sent as one-byte opcodes.
+ * <p>
+ * Frame layout: frame length in bytes (varint, not including itself), a header byte, the message part in
+ * UTF-8. The low 7 bits of the header are the opcode, 0 meaning "unknown command word": then the payload is the
+ * whole command as text. The high bit of the header is set when the command has a message part.
+ * <p>
+ * Client and server switch to this framing after the "binframe" command is acknowledged with "binframeok",
+ * see TCPClient.enableBinaryFraming().
+ */
+public class BinaryFrameCodec implements CommandCodec {
+    // Name of the protocol extension, as listed in the "supported" response
+    public static final String EXTENSION = "binframe";
+    // Server's confirmation; everything after it is framed
+    public static final String EXTENSION_OK = "binframeok";
+    // Frames larger than this are considered a protocol error
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // Command words by opcode. Only append to this table, the opcodes are part of the protocol.
+    private static final String[] OPCODES = {
+            null, "login", "loginok", "loginerr", "msg", "privmsg", "msgok", "msgerror", "cmderr",
+            "users", "help", "supported", EXTENSION, EXTENSION_OK
+    };
+    private static final Map<String, Integer> OPCODE_BY_WORD = new HashMap<>();
+    private static final int HAS_MESSAGE = 0x80;
+
+    static {
+        for (int i = 1; i < OPCODES.length; i++) {
+            OPCODE_BY_WORD.put(OPCODES[i], i);
+        }
+    }
+
+    private final ProtocolInputStream in;
+    private final OutputStream out;
+    private byte[] frame = new byte[256];
+    // Set while an oversized list is returned in pieces: the command word and the bytes left of the frame
+    private String continuedCommand = null;
+    private int remaining = 0;
+    private ListChunker chunker = null;
+
+    /**
+     * @param in  Stream to read from
+     * @param out Buffered stream to write to
+     */
+    public BinaryFrameCodec(ProtocolInputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    @Override
+    public void writeCommand(String command) throws IOException {
+        int space = command.indexOf(' ');
+        String word = space < 0 ? command : command.substring(0, space);
+        Integer opcode = OPCODE_BY_WORD.get(word);
+        int header;
+        byte[] payload;
+        if (opcode == null) {
+            header = HAS_MESSAGE;
+            payload = command.getBytes(StandardCharsets.UTF_8);
+        } else if (space < 0) {
+            header = opcode;
+            payload = new byte[0];
+        } else {
+            header = opcode | HAS_MESSAGE;
+            payload = command.substring(space + 1).getBytes(StandardCharsets.UTF_8);
+        }
+        writeVarInt(1 + payload.length);
+        out.write(header);
+        out.write(payload);
+    }
+
+    @Override
+    public void writeEncoded(String word, String attribute, byte[] message) throws IOException {
+        Integer opcode = OPCODE_BY_WORD.get(word);
+        byte[] prefix = (attribute == null ? "" : attribute + " ").getBytes(StandardCharsets.UTF_8);
+        if (opcode == null) {
+            // Unknown command word: the whole command is the payload
+            prefix = (word + " " + (attribute == null ? "" : attribute + " ")).getBytes(StandardCharsets.UTF_8);
+            opcode = 0;
+        }
+        writeVarInt(1 + prefix.length + message.length);
+        out.write(opcode | HAS_MESSAGE);
+        out.write(prefix);
+        out.write(message);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public String[] readCommand() throws IOException {
+        if (continuedCommand != null) {
+            return nextPiece();
+        }
+        while (true) {
+            int first = in.read();
+            if (first < 0) {
+                return null;
+            }
+            int length = readVarInt(first);
+            if (length < 1 || length > MAX_FRAME_SIZE) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            int header = readByte();
+            int payloadLength = length - 1;
+            int opcode = header & ~HAS_MESSAGE;
+            boolean hasMessage = (header & HAS_MESSAGE) != 0;
+            if (opcode >= OPCODES.length) {
+                throw new IOException("Unknown opcode: " + opcode);
+            }
+            if (payloadLength > in.getMaxLineLength()) {
+                if (hasMessage && opcode != 0 && ListChunker.isChunkable(OPCODES[opcode])) {
+                    in.getFrameStats().chunkedFrame();
+                    continuedCommand = OPCODES[opcode];
+                    remaining = payloadLength;
+                    if (chunker == null) {
+                        chunker = new ListChunker(StandardCharsets.UTF_8);
+                    }
+                    return nextPiece();
+                }
+                // Too long to be anything sensible, skip it and go on with the next frame
+                if (in.skip(payloadLength) < payloadLength) {
+                    throw new EOFException("Stream ended in the middle of a frame");
+                }
+                in.getFrameStats().rejected(payloadLength);
+                continue;
+            }
+            if (payloadLength > frame.length) {
+                frame = new byte[Math.max(payloadLength, Math.min(frame.length * 2, in.getMaxLineLength()))];
+            }
+            readFully(frame, payloadLength);
+            if (opcode == 0) {
+                return TextLineCodec.splitCommand(new String(frame, 0, payloadLength, StandardCharsets.UTF_8));
+            }
+            String message = hasMessage ? new String(frame, 0, payloadLength, StandardCharsets.UTF_8) : null;
+            return new String[]{OPCODES[opcode], message};
+        }
+    }
+
+    private String[] nextPiece() throws IOException {
+        int length = Math.min(remaining, in.getMaxLineLength());
+        if (length > frame.length) {
+            frame = new byte[Math.max(length, Math.min(frame.length * 2, in.getMaxLineLength()))];
+        }
+        readFully(frame, length);
+        remaining -= length;
+        String command = continuedCommand;
+        if (remaining == 0) {
+            continuedCommand = null;
+        }
+        in.getFrameStats().chunk();
+        return new String[]{command, chunker.next(frame, 0, length, remaining == 0)};
+    }
+
+    @Override
+    public boolean isContinued() {
+        return continuedCommand != null;
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private int readVarInt(int first) throws IOException {
+        int value = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            if (shift > 28) {
+                throw new IOException("Frame length too long");
+            }
+            b = readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Stream ended in the middle of a frame");
+        }
+        return b;
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Stream ended in the middle of a frame");
+            }
+            read += n;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares the text protocol with the binary framing, with and without compression: encodes and decodes the
+ * same mix of commands and prints throughput, CPU time per message and wire size. Like TCPClient, the encoder
+ * flushes after every command. The "reader" variant is the way the client used to read: an InputStreamReader
+ * in a BufferedReader, and String.split() on every line.
+ */
+public class CodecBenchmark {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * A codec under test, created over the given streams.
+     */
+    private interface CodecFactory {
+        CommandCodec create(ProtocolInputStream in, OutputStream out);
+    }
+
+    /**
+     * The old way of reading the text protocol, for comparison.
+     */
+    private static class ReaderCodec implements CommandCodec {
+        private final BufferedReader reader;
+        private final TextLineCodec writer;
+
+        ReaderCodec(ProtocolInputStream in, OutputStream out) {
+            reader = in != null ? new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)) : null;
+            writer = new TextLineCodec(null, out, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void writeCommand(String command) throws IOException {
+            writer.writeCommand(command);
+        }
+
+        @Override
+        public void writeEncoded(String word, String attribute, byte[] message) throws IOException {
+            writer.writeEncoded(word, attribute, message);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public String[] readCommand() throws IOException {
+            String line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            String[] parts = line.split(" ", 2);
+            return new String[]{parts[0], parts.length > 1 ? parts[1] : null};
+        }
+
+        @Override
+        public boolean isContinued() {
+            return false;
+        }
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args optional number of commands per round (default 200000)
+     * @throws IOException Never, the streams are in memory
+     */
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        String[] commands = sampleCommands();
+        CodecFactory text = (in, out) -> new TextLineCodec(in, out, StandardCharsets.UTF_8);
+        CodecFactory binary = BinaryFrameCodec::new;
+        CodecFactory reader = ReaderCodec::new;
+        // The first rounds warm up the JIT
+        for (int round = 1; round <= 5; round++) {
+            System.out.println("Round " + round);
+            run("reader        ", reader, false, commands, count);
+            run("text          ", text, false, commands, count);
+            run("binary        ", binary, false, commands, count);
+            run("text+deflate  ", text, true, commands, count);
+            run("binary+deflate", binary, true, commands, count);
+        }
+    }
+
+    private static void run(String name, CodecFactory factory, boolean compress, String[] commands, int count)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ProtocolOutputStream out = new ProtocolOutputStream(bytes);
+        CompressionStats stats = new CompressionStats();
+        if (compress) {
+            out.applyFilter(raw -> new CompressedOutputStream(raw, CompressedOutputStream.DEFAULT_THRESHOLD, stats));
+        }
+        CommandCodec encoder = factory.create(null, out);
+        long cpu = THREADS.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            encoder.writeCommand(commands[i % commands.length]);
+            encoder.flush();
+        }
+        long encodeNanos = System.nanoTime() - start;
+        long encodeCpu = THREADS.getCurrentThreadCpuTime() - cpu;
+
+        ProtocolInputStream in = new ProtocolInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        if (compress) {
+            in.applyFilter(compressed -> new CompressedInputStream(compressed, new CompressionStats()));
+        }
+        CommandCodec decoder = factory.create(in, null);
+        cpu = THREADS.getCurrentThreadCpuTime();
+        start = System.nanoTime();
+        int decoded = 0;
+        while (decoder.readCommand() != null) {
+            decoded++;
+        }
+        long decodeNanos = System.nanoTime() - start;
+        long decodeCpu = THREADS.getCurrentThreadCpuTime() - cpu;
+        if (decoded != count) {
+            throw new IllegalStateException(name + ": decoded " + decoded + " of " + count + " commands");
+        }
+        System.out.println(String.format("  %s: encode %,10.0f msg/s (%5.0f ns CPU/msg), "
+                        + "decode %,10.0f msg/s (%5.0f ns CPU/msg), %5.1f bytes/msg",
+                name, count * 1e9 / encodeNanos, (double) encodeCpu / count,
+                count * 1e9 / decodeNanos, (double) decodeCpu / count, (double) bytes.size() / count));
+    }
+
+    /**
+     * @return A mix of commands resembling real server traffic: mostly messages, some control responses and a
+     * user list
+     */
+    private static String[] sampleCommands() {
+        StringBuilder users = new StringBuilder("users");
+        for (int i = 0; i < 50; i++) {
+            users.append(" user").append(i);
+        }
+        return new String[]{
+                "msg alice Hello everyone, how is the assignment going?",
+                "msg bob Fine, thanks. Almost done with step 7",
+                "privmsg carol Can you help me with the user list?",
+                "msgok 1",
+                "msg dave Did anybody manage to get the help command working?",
+                "loginok",
+                "msg erin Yes, the server answers with supported and the list of commands",
+                users.toString(),
+                "msgerror incorrect recipient frank",
+                "msg grace Blåbærsyltetøy er godt",
+                "msg heidi Привет всем! 你好 👋"
+        };
+    }
+}
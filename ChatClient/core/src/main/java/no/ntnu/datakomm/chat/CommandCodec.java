@@ -0,0 +1,57 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+
+/**
+ * Encodes and decodes the commands of the chat protocol on a byte stream. Every command consists of a command
+ * word (login, msg, users, ...) and an optional message part (everything after the first space in the text
+ * protocol).
+ */
+public interface CommandCodec {
+
+    /**
+     * Buffer one command for sending. Nothing is sent before flush() is called.
+     *
+     * @param command The whole command, as in the text protocol: the command word and optional attributes
+     * @throws IOException When writing fails
+     */
+    void writeCommand(String command) throws IOException;
+
+    /**
+     * Buffer one command whose message part is encoded already, so that the same text can be sent many times
+     * without encoding it again (see TCPClient.sendPrivateMessages()).
+     *
+     * @param word      The command word
+     * @param attribute The attribute between the command word and the message (for example the recipient), or
+     *                  null if there is none
+     * @param message   The message part in UTF-8
+     * @throws IOException When writing fails
+     */
+    void writeEncoded(String word, String attribute, byte[] message) throws IOException;
+
+    /**
+     * Send all the buffered commands.
+     *
+     * @throws IOException When writing fails
+     */
+    void flush() throws IOException;
+
+    /**
+     * Block until the next command arrives.
+     *
+     * @return Array of two elements: the command word and the message part (null if the command had no
+     * message part). Null when the stream was closed.
+     * @throws IOException When reading fails or the data does not follow the protocol
+     */
+    String[] readCommand() throws IOException;
+
+    /**
+     * A "users" or "supported" command longer than the maximum line length of the stream is returned in pieces:
+     * several readCommand() results with the same command word, each with a part of the list. Words are never
+     * split between the pieces. Other oversized commands are skipped and counted in the FrameStats of the
+     * stream.
+     *
+     * @return true if the message part returned by the last readCommand() continues in the next one
+     */
+    boolean isContinued();
+}
@@ -0,0 +1,188 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompression of the "deflate" protocol extension, the counterpart of CompressedOutputStream. A block is read
+ * and decompressed piece by piece through two small buffers, never as a whole: the memory used does not depend
+ * on the size of the blocks, so a huge block (or a small one that inflates to gigabytes) only produces a long
+ * stream of bytes, and the line reader on top limits what is kept of it.
+ */
+public class CompressedInputStream extends InputStream {
+    // Blocks longer than this (compressed) are considered a protocol error
+    private static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final Inflater inflater = new Inflater(true);
+    private final CompressionStats stats;
+    private final byte[] wire = new byte[BUFFER_SIZE];
+    // Decompressed data of the current block, the part not yet read is position..limit
+    private final byte[] data = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+
+    // The current block: type, length, bytes of it not read from the stream yet (-1 between blocks)
+    private int type;
+    private int length;
+    private int remaining = -1;
+    // Counters of the current block, added to the stats when it ends
+    private long decompressed;
+    private long inflateNanos;
+
+    /**
+     * @param in    The stream with the blocks
+     * @param stats Where to count the compressed traffic
+     */
+    public CompressedInputStream(InputStream in, CompressionStats stats) {
+        this.in = in;
+        this.stats = stats;
+        inflater.setDictionary(CompressedOutputStream.DICTIONARY);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return data[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - position);
+        System.arraycopy(data, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    /**
+     * Get the next piece of decompressed data, going on with the next block when the current one is done. Empty
+     * blocks are skipped.
+     *
+     * @return false at end of stream
+     */
+    private boolean fill() throws IOException {
+        position = 0;
+        limit = 0;
+        while (limit == 0) {
+            if (remaining < 0 && !nextBlock()) {
+                return false;
+            }
+            if (type == CompressedOutputStream.RAW_BLOCK) {
+                limit = remaining > 0 ? readWire(data) : 0;
+            } else {
+                limit = inflate();
+            }
+            if (limit == 0) {
+                stats.add(type == CompressedOutputStream.DEFLATED_BLOCK, decompressed,
+                        length + CompressedOutputStream.headerSize(length), inflateNanos);
+                remaining = -1;
+            }
+            decompressed += limit;
+        }
+        return true;
+    }
+
+    /**
+     * Read the header of the next block.
+     *
+     * @return false at end of stream
+     */
+    private boolean nextBlock() throws IOException {
+        int t = in.read();
+        if (t < 0) {
+            return false;
+        }
+        if (t != CompressedOutputStream.RAW_BLOCK && t != CompressedOutputStream.DEFLATED_BLOCK) {
+            throw new IOException("Unknown compressed block type: " + t);
+        }
+        type = t;
+        length = readLength();
+        remaining = length;
+        decompressed = 0;
+        inflateNanos = 0;
+        return true;
+    }
+
+    /**
+     * Decompress the next piece of the current block into data, reading more of the block when the inflater
+     * needs it.
+     *
+     * @return Number of bytes decompressed, 0 when the block is done
+     */
+    private int inflate() throws IOException {
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                int n = inflater.inflate(data, 0, data.length);
+                inflateNanos += System.nanoTime() - start;
+                if (n > 0) {
+                    return n;
+                }
+                if (!inflater.needsInput()) {
+                    throw new IOException("Corrupt compressed block");
+                }
+                if (remaining == 0) {
+                    return 0;
+                }
+                inflater.setInput(wire, 0, readWire(wire));
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed block", e);
+        }
+    }
+
+    /**
+     * Read the next bytes of the current block (at least one).
+     *
+     * @return Number of bytes read into the buffer
+     */
+    private int readWire(byte[] buffer) throws IOException {
+        int n = in.read(buffer, 0, Math.min(remaining, buffer.length));
+        if (n < 0) {
+            throw new EOFException("Stream ended in the middle of a block");
+        }
+        remaining -= n;
+        return n;
+    }
+
+    private int readLength() throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException("Stream ended in the middle of a block header");
+            }
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift <= 28);
+        if (value < 0 || value > MAX_BLOCK_SIZE) {
+            throw new IOException("Invalid block length: " + value);
+        }
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
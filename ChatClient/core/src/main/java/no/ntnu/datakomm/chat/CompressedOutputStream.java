@@ -0,0 +1,142 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compression of the "deflate" protocol extension. The bytes written between two flushes form one block. Blocks
+ * smaller than the threshold are sent as they are, so that tiny commands do not pay the compression overhead;
+ * larger blocks go through one deflater which lives as long as the stream, so repeating names and phrases are
+ * compressed against the earlier traffic too.
+ * <p>
+ * Block layout: type byte (0 = raw, 1 = deflated), length of the data (varint), data. Deflated blocks end with
+ * a sync flush, so the receiver can decompress every block as soon as it arrives. Both sides start with a
+ * preset dictionary of the protocol vocabulary (DICTIONARY).
+ */
+public class CompressedOutputStream extends OutputStream {
+    // Name of the protocol extension, as listed in the "supported" response
+    public static final String EXTENSION = "deflate";
+    // Server's confirmation; everything after it is compressed
+    public static final String EXTENSION_OK = "deflateok";
+    // Blocks smaller than this (in bytes) are not compressed by default
+    public static final int DEFAULT_THRESHOLD = 64;
+
+    static final int RAW_BLOCK = 0;
+    static final int DEFLATED_BLOCK = 1;
+    // Preset dictionary: the command words and frequent words of the chat traffic. Part of the extension, both
+    // sides must use exactly these bytes.
+    static final byte[] DICTIONARY = ("loginok loginerr incorrect username format cmderr command not supported "
+            + "msgerror unauthorized incorrect recipient supported login msg privmsg users help msgok msg ")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private final int threshold;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CompressionStats stats;
+    private byte[] block = new byte[1024];
+    private int count = 0;
+    private byte[] compressed = new byte[1024];
+
+    /**
+     * @param out       The stream to write the blocks to
+     * @param threshold Blocks smaller than this (in bytes) are sent uncompressed
+     * @param stats     Where to count the compressed traffic
+     */
+    public CompressedOutputStream(OutputStream out, int threshold, CompressionStats stats) {
+        this.out = out;
+        this.threshold = threshold;
+        this.stats = stats;
+        deflater.setDictionary(DICTIONARY);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, block, count, len);
+        count += len;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > block.length) {
+            block = Arrays.copyOf(block, Math.max(block.length * 2, count + extra));
+        }
+    }
+
+    /**
+     * Send the bytes written since the last flush as one block.
+     *
+     * @throws IOException When writing fails
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            if (count < threshold) {
+                writeBlock(RAW_BLOCK, block, count);
+                stats.add(false, count, count + headerSize(count), 0);
+            } else {
+                long start = System.nanoTime();
+                int length = deflate();
+                long time = System.nanoTime() - start;
+                writeBlock(DEFLATED_BLOCK, compressed, length);
+                stats.add(true, count, length + headerSize(length), time);
+            }
+            count = 0;
+        }
+        out.flush();
+    }
+
+    /**
+     * Compress the current block into the compressed buffer.
+     *
+     * @return Length of the compressed data
+     */
+    private int deflate() {
+        deflater.setInput(block, 0, count);
+        int length = 0;
+        while (true) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length, Deflater.SYNC_FLUSH);
+            // The sync flush is complete when the deflater did not fill the whole output buffer
+            if (length < compressed.length) {
+                return length;
+            }
+        }
+    }
+
+    private void writeBlock(int type, byte[] data, int length) throws IOException {
+        out.write(type);
+        int value = length;
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+        out.write(data, 0, length);
+    }
+
+    static int headerSize(int length) {
+        int size = 2;
+        while ((length >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        deflater.end();
+        out.close();
+    }
+}
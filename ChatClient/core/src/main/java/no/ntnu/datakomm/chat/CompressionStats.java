@@ -0,0 +1,72 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Counters of one direction of a compressed stream: how many bytes went in and out of the compressor (or
+ * decompressor) and how much CPU time it took.
+ */
+public class CompressionStats {
+    private long blocks = 0;
+    private long compressedBlocks = 0;
+    private long rawBytes = 0;
+    private long wireBytes = 0;
+    private long nanos = 0;
+
+    synchronized void add(boolean compressed, long raw, long wire, long time) {
+        blocks++;
+        if (compressed) {
+            compressedBlocks++;
+        }
+        rawBytes += raw;
+        wireBytes += wire;
+        nanos += time;
+    }
+
+    /**
+     * @return Number of blocks (one block per flush)
+     */
+    public synchronized long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return Number of blocks which were big enough to be compressed
+     */
+    public synchronized long getCompressedBlocks() {
+        return compressedBlocks;
+    }
+
+    /**
+     * @return Bytes before compression (after decompression)
+     */
+    public synchronized long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * @return Bytes on the wire, including the block headers
+     */
+    public synchronized long getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * @return Time spent in the compressor (decompressor), in nanoseconds
+     */
+    public synchronized long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return Raw bytes divided by wire bytes: 2.0 means that the traffic was halved. 1.0 if nothing was sent.
+     */
+    public synchronized double getRatio() {
+        return wireBytes > 0 ? (double) rawBytes / wireBytes : 1.0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d blocks (%d compressed), %d raw bytes, %d wire bytes, ratio %.2f, %.1f ns/raw byte",
+                blocks, compressedBlocks, rawBytes, wireBytes, getRatio(),
+                rawBytes > 0 ? (double) nanos / rawBytes : 0.0);
+    }
+}
@@ -0,0 +1,83 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+
+/**
+ * Count-Min sketch: approximate counts of many keys in a fixed amount of memory. An estimate is never lower than
+ * the true count; it is higher by at most (total count * e / width) with probability 1 - exp(-depth).
+ */
+public class CountMinSketch {
+    private final int width;
+    private final long[][] counts;
+    private long total = 0;
+
+    /**
+     * @param width Counters per row, more means more accurate estimates
+     * @param depth Number of rows (hash functions), more means more reliable estimates
+     */
+    public CountMinSketch(int width, int depth) {
+        if (width < 1 || depth < 1) {
+            throw new IllegalArgumentException("Invalid width " + width + " or depth " + depth);
+        }
+        this.width = width;
+        this.counts = new long[depth][width];
+    }
+
+    /**
+     * @return The counter of the key in the row
+     */
+    private int index(int hash, int row) {
+        // Different seed per row, then the murmur3 finalizer to spread the bits
+        int h = hash ^ (0x9E3779B9 * (row + 1));
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7FFFFFFF) % width;
+    }
+
+    /**
+     * Add to the count of a key.
+     *
+     * @param key   The key
+     * @param count How much to add
+     */
+    public void add(String key, long count) {
+        int hash = key.hashCode();
+        for (int row = 0; row < counts.length; row++) {
+            counts[row][index(hash, row)] += count;
+        }
+        total += count;
+    }
+
+    /**
+     * @param key The key
+     * @return Estimated count of the key, never lower than the real one
+     */
+    public long estimate(String key) {
+        int hash = key.hashCode();
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < counts.length; row++) {
+            min = Math.min(min, counts[row][index(hash, row)]);
+        }
+        return min;
+    }
+
+    /**
+     * @return Sum of all the counts added
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Reset all the counts to zero.
+     */
+    public void clear() {
+        for (long[] row : counts) {
+            Arrays.fill(row, 0);
+        }
+        total = 0;
+    }
+}
@@ -0,0 +1,15 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Gets the outcome of a message sent with TCPClient.sendTrackedMessage().
+ */
+public interface DeliveryCallback {
+
+    /**
+     * This method is called once, when the server has answered the message, or when the answer can't come any
+     * more (disconnected, or the server stopped answering).
+     *
+     * @param error null when the server confirmed the message (msgok), otherwise the error message
+     */
+    public void onResult(String error);
+}
@@ -0,0 +1,214 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * Receive pipeline stage which drops the messages delivered twice, for example replayed by the server after a
+ * reconnect. A message is a duplicate when a message with the same sender, privacy flag and text arrived
+ * recently.
+ * <p>
+ * The messages are remembered by 128-bit fingerprints (the chance that two different messages get the same one
+ * is negligible) in two generations of fixed-size hash tables: the current one and the previous one. When the
+ * current generation is older than the window, or full, it becomes the previous one and the old previous one is
+ * cleared. A message is thus remembered for at least one and at most two windows (less when the tables fill up
+ * faster), and the memory used is fixed: 2 * capacity * 16 bytes.
+ */
+public class DuplicateFilter implements MessageStage {
+    public static final long DEFAULT_WINDOW_MS = 60000;
+    public static final int DEFAULT_CAPACITY = 65536;
+    // Start a new generation when the current one is this full, to keep the probe sequences short
+    private static final double MAX_LOAD = 0.75;
+
+    private final long windowNanos;
+    private final int maxEntries;
+    private final LongSupplier clock;
+    // Fingerprints as (high, low) pairs, 0/0 marks a free slot. Index 0 is the current generation.
+    private final long[][] tables = new long[2][];
+    private final int[] sizes = new int[2];
+    private long generationStart;
+
+    private long checked = 0;
+    private long duplicates = 0;
+    private long rotations = 0;
+    private long earlyRotations = 0;
+
+    public DuplicateFilter() {
+        this(DEFAULT_WINDOW_MS, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param windowMs How long a message is remembered, at least
+     * @param capacity Slots per generation, rounded up to a power of two
+     */
+    public DuplicateFilter(long windowMs, int capacity) {
+        this(windowMs, capacity, System::nanoTime);
+    }
+
+    DuplicateFilter(long windowMs, int capacity, LongSupplier clock) {
+        if (windowMs <= 0 || capacity < 2) {
+            throw new IllegalArgumentException("Invalid window " + windowMs + " ms or capacity " + capacity);
+        }
+        int slots = Integer.highestOneBit(capacity - 1) << 1;
+        this.windowNanos = windowMs * 1_000_000L;
+        this.maxEntries = (int) (slots * MAX_LOAD);
+        this.clock = clock;
+        this.tables[0] = new long[2 * slots];
+        this.tables[1] = new long[2 * slots];
+        this.generationStart = clock.getAsLong();
+    }
+
+    /**
+     * 128-bit fingerprint of a message: two 64-bit hashes with different seeds over the length-prefixed sender,
+     * the privacy flag and the text.
+     *
+     * @return The high and low halves, never both 0
+     */
+    static long[] fingerprint(String sender, boolean priv, CharSequence text) {
+        long h1 = 0x243F6A8885A308D3L;
+        long h2 = 0x13198A2E03707344L;
+        long length = ((long) sender.length() << 33) | ((long) text.length() << 1) | (priv ? 1 : 0);
+        h1 = round(h1, length);
+        h2 = round(h2, ~length);
+        for (int i = 0; i < sender.length(); i++) {
+            h1 = round(h1, sender.charAt(i));
+            h2 = round(h2, sender.charAt(i) + 0x10000L);
+        }
+        for (int i = 0; i < text.length(); i++) {
+            h1 = round(h1, text.charAt(i));
+            h2 = round(h2, text.charAt(i) + 0x10000L);
+        }
+        long high = mix(h1);
+        long low = mix(h2 ^ high);
+        if (high == 0 && low == 0) {
+            low = 1;
+        }
+        return new long[]{high, low};
+    }
+
+    private static long round(long h, long value) {
+        return Long.rotateLeft(h ^ (value * 0x87C37B91114253D5L), 31) * 0x4CF5AD432745937FL;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * @return The slot of the fingerprint in the table, or of the free slot where it belongs
+     */
+    private static int find(long[] table, long high, long low) {
+        int mask = table.length / 2 - 1;
+        int slot = (int) (low ^ (low >>> 32)) & mask;
+        while (true) {
+            long h = table[2 * slot];
+            long l = table[2 * slot + 1];
+            if ((h == high && l == low) || (h == 0 && l == 0)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static boolean contains(long[] table, long high, long low) {
+        int slot = find(table, high, low);
+        return table[2 * slot] == high && table[2 * slot + 1] == low;
+    }
+
+    private void rotate() {
+        long[] old = tables[1];
+        Arrays.fill(old, 0);
+        tables[1] = tables[0];
+        tables[0] = old;
+        sizes[1] = sizes[0];
+        sizes[0] = 0;
+        rotations++;
+    }
+
+    /**
+     * Check if a message is a duplicate, and remember it.
+     *
+     * @param sender Username of the sender
+     * @param priv   true for a private message
+     * @param text   The message text
+     * @return true if the same message arrived recently
+     */
+    public synchronized boolean isDuplicate(String sender, boolean priv, CharSequence text) {
+        long now = clock.getAsLong();
+        long age = now - generationStart;
+        if (age >= windowNanos) {
+            rotate();
+            if (age >= 2 * windowNanos) {
+                // The previous generation is too old as well
+                rotate();
+            }
+            generationStart = now;
+        }
+        checked++;
+        long[] fp = fingerprint(sender, priv, text);
+        if (contains(tables[0], fp[0], fp[1]) || contains(tables[1], fp[0], fp[1])) {
+            duplicates++;
+            return true;
+        }
+        if (sizes[0] >= maxEntries) {
+            rotate();
+            earlyRotations++;
+            generationStart = now;
+        }
+        int slot = find(tables[0], fp[0], fp[1]);
+        tables[0][2 * slot] = fp[0];
+        tables[0][2 * slot + 1] = fp[1];
+        sizes[0]++;
+        return false;
+    }
+
+    @Override
+    public boolean process(TextMessage message) {
+        return !isDuplicate(message.getSender(), message.isPrivate(), message.getTextChars());
+    }
+
+    /**
+     * @return Number of messages checked
+     */
+    public synchronized long getChecked() {
+        return checked;
+    }
+
+    /**
+     * @return Number of duplicates dropped
+     */
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return Share of the checked messages which were duplicates, 0 if none was checked
+     */
+    public synchronized double getHitRate() {
+        return checked == 0 ? 0 : (double) duplicates / checked;
+    }
+
+    /**
+     * @return Number of new generations started
+     */
+    public synchronized long getRotations() {
+        return rotations;
+    }
+
+    /**
+     * @return Number of generations started because the current one was full: messages are then remembered
+     * for less than the window, a bigger capacity is needed for this traffic
+     */
+    public synchronized long getEarlyRotations() {
+        return earlyRotations;
+    }
+
+    /**
+     * @return Number of messages remembered now
+     */
+    public synchronized int getSize() {
+        return sizes[0] + sizes[1];
+    }
+}
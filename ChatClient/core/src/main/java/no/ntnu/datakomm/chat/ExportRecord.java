@@ -0,0 +1,41 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * A received message with the time it was received, as exported by MessageExporter.
+ */
+public class ExportRecord {
+    private final long time;
+    private final TextMessage message;
+    // System.nanoTime() when received, for the lag of the export; not exported
+    final long received;
+
+    /**
+     * @param time    When the message was received, in milliseconds since the epoch
+     * @param message The message
+     */
+    public ExportRecord(long time, TextMessage message) {
+        this(time, message, System.nanoTime());
+    }
+
+    ExportRecord(long time, TextMessage message, long received) {
+        this.time = time;
+        this.message = message;
+        this.received = received;
+    }
+
+    /**
+     * @return When the message was received, in milliseconds since the epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public TextMessage getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return time + " " + message.getSender() + (message.isPrivate() ? " (private): " : ": ") + message.getText();
+    }
+}
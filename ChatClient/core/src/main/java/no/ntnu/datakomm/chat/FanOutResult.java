@@ -0,0 +1,147 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of sending the same private message to many recipients (see TCPClient.sendPrivateMessages()). The
+ * result is returned as soon as the messages are written; the server's msgok/msgerror responses are filled in
+ * as they arrive, and await() waits for all of them.
+ */
+public class FanOutResult {
+    private final List<String> recipients;
+    private final boolean[] done;
+    private final Map<String, String> errors = new LinkedHashMap<>();
+    private final long started = System.nanoTime();
+    private int delivered = 0;
+    private int failed = 0;
+    private long writeNanos = 0;
+    private long completionNanos = -1;
+
+    /**
+     * @param recipients The recipients, in the order the messages are sent
+     */
+    FanOutResult(List<String> recipients) {
+        this.recipients = recipients;
+        this.done = new boolean[recipients.size()];
+        if (recipients.isEmpty()) {
+            completionNanos = 0;
+        }
+    }
+
+    /**
+     * The server confirmed the message to one recipient.
+     *
+     * @param index Index of the recipient
+     */
+    synchronized void delivered(int index) {
+        if (!done[index]) {
+            done[index] = true;
+            delivered++;
+            completed();
+        }
+    }
+
+    /**
+     * The message to one recipient failed, in the server or already in the client.
+     *
+     * @param index Index of the recipient
+     * @param error Error message
+     */
+    synchronized void failed(int index, String error) {
+        if (!done[index]) {
+            done[index] = true;
+            failed++;
+            errors.put(recipients.get(index), error);
+            completed();
+        }
+    }
+
+    private void completed() {
+        if (delivered + failed == recipients.size()) {
+            completionNanos = System.nanoTime() - started;
+            notifyAll();
+        }
+    }
+
+    synchronized void setWriteNanos(long nanos) {
+        this.writeNanos = nanos;
+    }
+
+    /**
+     * Wait until there is an outcome for every recipient.
+     *
+     * @param timeoutMs How long to wait at most, in milliseconds
+     * @return true if all the outcomes are known, false on timeout
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public synchronized boolean await(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (delivered + failed < recipients.size()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * @return Number of recipients
+     */
+    public int getRecipientCount() {
+        return recipients.size();
+    }
+
+    /**
+     * @return Number of messages confirmed by the server
+     */
+    public synchronized int getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return Number of messages that failed
+     */
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return Number of messages without an outcome yet
+     */
+    public synchronized int getPending() {
+        return recipients.size() - delivered - failed;
+    }
+
+    /**
+     * @return Error message by recipient, for the failed messages
+     */
+    public synchronized Map<String, String> getErrors() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(errors));
+    }
+
+    /**
+     * @return Time it took to encode and write all the messages, in nanoseconds
+     */
+    public synchronized long getWriteNanos() {
+        return writeNanos;
+    }
+
+    /**
+     * @return Time from the start until the last outcome arrived, in nanoseconds; -1 while some are pending
+     */
+    public synchronized long getCompletionNanos() {
+        return completionNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d recipients: %d delivered, %d failed, %d pending; written in %.2f ms, "
+                        + "completed in %s", recipients.size(), delivered, failed, getPending(), writeNanos / 1e6,
+                completionNanos < 0 ? "-" : String.format("%.2f ms", completionNanos / 1e6));
+    }
+}
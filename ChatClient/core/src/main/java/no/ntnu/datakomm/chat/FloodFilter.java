@@ -0,0 +1,326 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Spam suppression in the receive path, before a message object is created and the listeners are notified (see
+ * TCPClient.setFloodFilter()). Two things are detected per sender:
+ * <ul>
+ * <li>floods: more messages than the sender's token bucket allows (a rate and a burst);</li>
+ * <li>repeats: a message nearly the same as one of the sender's recent messages. The texts are compared by
+ * sketches of rolling hashes over their normalised characters (letters and digits, lower case), so small changes
+ * in case, spacing, punctuation or a few characters are still detected.</li>
+ * </ul>
+ * With the COLLAPSE policy the offending messages are dropped and the others pass. With the MUTE policy the
+ * sender is also muted for a while: all its messages are dropped until the mute expires.
+ * <p>
+ * Memory is bounded: the state of at most maxSenders senders is kept, the least recently active ones are
+ * forgotten first.
+ */
+public class FloodFilter {
+
+    /**
+     * What to do when a sender floods or repeats itself.
+     */
+    public enum Policy {
+        COLLAPSE, MUTE
+    }
+
+    public static final int DEFAULT_MAX_SENDERS = 4096;
+    // Number of recent messages per sender compared with a new message
+    public static final int RECENT_MESSAGES = 4;
+    // Length of the character sequences hashed for the sketches, and number of hashes kept per sketch
+    static final int SHINGLE = 4;
+    static final int SKETCH_SIZE = 8;
+    private static final long BASE = 1_000_003L;
+
+    private static class SenderState {
+        final TokenBucket bucket;
+        final long[][] recent = new long[RECENT_MESSAGES][];
+        final long[] recentTimes = new long[RECENT_MESSAGES];
+        int next = 0;
+        long mutedUntil = 0;
+        boolean muted = false;
+
+        SenderState(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    private final LongSupplier clock;
+    private final Map<String, SenderState> senders;
+    private Policy policy = Policy.COLLAPSE;
+    private double ratePerSecond = 2;
+    private int burst = 10;
+    private long repeatWindowNanos = 30_000_000_000L;
+    private double similarity = 0.75;
+    private long muteNanos = 60_000_000_000L;
+
+    private long passed = 0;
+    private long flooded = 0;
+    private long repeated = 0;
+    private long mutedMessages = 0;
+    private long mutes = 0;
+    private long evicted = 0;
+
+    public FloodFilter() {
+        this(DEFAULT_MAX_SENDERS, System::nanoTime);
+    }
+
+    /**
+     * @param maxSenders Maximum number of senders whose state is kept
+     */
+    public FloodFilter(int maxSenders) {
+        this(maxSenders, System::nanoTime);
+    }
+
+    FloodFilter(final int maxSenders, LongSupplier clock) {
+        this.clock = clock;
+        this.senders = new LinkedHashMap<String, SenderState>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SenderState> eldest) {
+                if (size() > maxSenders) {
+                    evicted++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Set the flood threshold of every sender. The state of all the senders is reset.
+     *
+     * @param ratePerSecond Sustained rate of messages per sender
+     * @param burst         How many messages a sender can send at once after a pause
+     */
+    public synchronized void setFloodLimit(double ratePerSecond, int burst) {
+        new TokenBucket(ratePerSecond, burst, clock); // Validates the values
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+        senders.clear();
+    }
+
+    /**
+     * Set the repeat threshold.
+     *
+     * @param windowMs   A message is compared with the sender's messages of this period only
+     * @param similarity Share of the sketch hashes two texts must have in common to be repeats, 0 < s <= 1
+     */
+    public synchronized void setRepeatLimit(long windowMs, double similarity) {
+        if (similarity <= 0 || similarity > 1) {
+            throw new IllegalArgumentException("Invalid similarity: " + similarity);
+        }
+        this.repeatWindowNanos = windowMs * 1_000_000L;
+        this.similarity = similarity;
+    }
+
+    /**
+     * @param muteMs How long a sender is muted after flooding or repeating itself (with the MUTE policy)
+     */
+    public synchronized void setMuteTime(long muteMs) {
+        this.muteNanos = muteMs * 1_000_000L;
+    }
+
+    /**
+     * Decide if a received message is delivered.
+     *
+     * @param sender Username of the sender
+     * @param priv   true for a private message
+     * @param text   The message text
+     * @return true to deliver the message, false to drop it
+     */
+    public synchronized boolean accept(String sender, boolean priv, String text) {
+        long now = clock.getAsLong();
+        SenderState state = senders.get(sender);
+        if (state == null) {
+            state = new SenderState(new TokenBucket(ratePerSecond, burst, clock));
+            senders.put(sender, state);
+        }
+        if (state.muted) {
+            if (now - state.mutedUntil < 0) {
+                mutedMessages++;
+                return false;
+            }
+            state.muted = false;
+        }
+        long[] sketch = sketch(text);
+        boolean repeat = isRepeat(state, sketch, now);
+        // Repeats are remembered too: a slowly changing spam text is still compared with its last versions
+        state.recent[state.next] = sketch;
+        state.recentTimes[state.next] = now;
+        state.next = (state.next + 1) % RECENT_MESSAGES;
+        if (repeat) {
+            repeated++;
+        } else if (!state.bucket.tryTake()) {
+            flooded++;
+        } else {
+            passed++;
+            return true;
+        }
+        if (policy == Policy.MUTE) {
+            state.muted = true;
+            state.mutedUntil = now + muteNanos;
+            mutes++;
+        }
+        return false;
+    }
+
+    private boolean isRepeat(SenderState state, long[] sketch, long now) {
+        for (int i = 0; i < RECENT_MESSAGES; i++) {
+            long[] other = state.recent[i];
+            if (other != null && now - state.recentTimes[i] <= repeatWindowNanos
+                    && similarity(sketch, other) >= similarity) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sketch of a text: the smallest hashes of all its normalised character sequences of length SHINGLE,
+     * computed with a rolling hash (one multiplication and addition per character).
+     *
+     * @param text The text
+     * @return Up to SKETCH_SIZE distinct hashes, sorted
+     */
+    static long[] sketch(String text) {
+        char[] normal = new char[text.length()];
+        int n = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                normal[n++] = Character.toLowerCase(c);
+            }
+        }
+        if (n == 0) {
+            // Only punctuation or spaces: compare the texts as they are
+            return new long[]{mix(text.hashCode())};
+        }
+        long[] smallest = new long[SKETCH_SIZE];
+        int size = 0;
+        int length = Math.min(SHINGLE, n);
+        long power = 1;
+        for (int i = 1; i < length; i++) {
+            power *= BASE;
+        }
+        long hash = 0;
+        for (int i = 0; i < n; i++) {
+            if (i >= length) {
+                hash -= normal[i - length] * power;
+            }
+            hash = hash * BASE + normal[i];
+            if (i >= length - 1) {
+                size = insert(smallest, size, mix(hash));
+            }
+        }
+        return size == SKETCH_SIZE ? smallest : Arrays.copyOf(smallest, size);
+    }
+
+    /**
+     * Insert a hash into a sorted array of the smallest distinct hashes.
+     *
+     * @return The new size
+     */
+    private static int insert(long[] smallest, int size, long hash) {
+        int pos = Arrays.binarySearch(smallest, 0, size, hash);
+        if (pos >= 0) {
+            return size;
+        }
+        pos = -pos - 1;
+        if (pos >= smallest.length) {
+            return size;
+        }
+        int move = Math.min(size, smallest.length - 1) - pos;
+        System.arraycopy(smallest, pos, smallest, pos + 1, move);
+        smallest[pos] = hash;
+        return Math.min(size + 1, smallest.length);
+    }
+
+    private static long mix(long h) {
+        // Finalizer of SplitMix64, so that similar sequences get unrelated hashes
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * Estimated similarity of two texts (Jaccard index of their character sequences) from their sketches: the
+     * share of the smallest hashes of both sketches together that are in both sketches.
+     */
+    static double similarity(long[] a, long[] b) {
+        int i = 0;
+        int j = 0;
+        int union = 0;
+        int common = 0;
+        while (union < SKETCH_SIZE && (i < a.length || j < b.length)) {
+            if (j >= b.length || (i < a.length && a[i] < b[j])) {
+                i++;
+            } else if (i >= a.length || b[j] < a[i]) {
+                j++;
+            } else {
+                i++;
+                j++;
+                common++;
+            }
+            union++;
+        }
+        return union == 0 ? 1 : (double) common / union;
+    }
+
+    /**
+     * @return Number of messages delivered
+     */
+    public synchronized long getPassed() {
+        return passed;
+    }
+
+    /**
+     * @return Number of messages dropped because their sender exceeded the flood limit
+     */
+    public synchronized long getFlooded() {
+        return flooded;
+    }
+
+    /**
+     * @return Number of messages dropped as repeats of the sender's recent messages
+     */
+    public synchronized long getRepeated() {
+        return repeated;
+    }
+
+    /**
+     * @return Number of messages dropped because their sender was muted
+     */
+    public synchronized long getMutedMessages() {
+        return mutedMessages;
+    }
+
+    /**
+     * @return Number of times a sender was muted
+     */
+    public synchronized long getMutes() {
+        return mutes;
+    }
+
+    /**
+     * @return Number of senders whose state was forgotten to stay within the memory bound
+     */
+    public synchronized long getEvictedSenders() {
+        return evicted;
+    }
+
+    /**
+     * @return Number of senders whose state is kept now
+     */
+    public synchronized int getTrackedSenders() {
+        return senders.size();
+    }
+}
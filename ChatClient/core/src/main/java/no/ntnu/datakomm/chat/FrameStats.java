@@ -0,0 +1,59 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Counters of the received lines (or frames) that were longer than the maximum line length of the connection:
+ * the ones that were read in pieces and the ones that were rejected (skipped).
+ */
+public class FrameStats {
+    private long chunkedFrames = 0;
+    private long chunks = 0;
+    private long rejectedFrames = 0;
+    private long rejectedBytes = 0;
+
+    synchronized void chunkedFrame() {
+        chunkedFrames++;
+    }
+
+    synchronized void chunk() {
+        chunks++;
+    }
+
+    synchronized void rejected(long bytes) {
+        rejectedFrames++;
+        rejectedBytes += bytes;
+    }
+
+    /**
+     * @return Number of oversized lines (frames) which were processed in pieces
+     */
+    public synchronized long getChunkedFrames() {
+        return chunkedFrames;
+    }
+
+    /**
+     * @return Number of pieces the oversized lines were delivered in
+     */
+    public synchronized long getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return Number of oversized lines (frames) which were skipped
+     */
+    public synchronized long getRejectedFrames() {
+        return rejectedFrames;
+    }
+
+    /**
+     * @return Bytes in the skipped lines (frames)
+     */
+    public synchronized long getRejectedBytes() {
+        return rejectedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d chunked frames in %d chunks, %d rejected frames (%d bytes)",
+                chunkedFrames, chunks, rejectedFrames, rejectedBytes);
+    }
+}
@@ -0,0 +1,38 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * One occurrence of a keyword in a text, found by KeywordMatcher.
+ */
+public class KeywordMatch {
+    private final String keyword;
+    private final int start;
+    private final int end;
+
+    /**
+     * @param keyword The keyword, as it was configured
+     * @param start   Index of the first character of the occurrence in the text
+     * @param end     Index after the last character of the occurrence
+     */
+    public KeywordMatch(String keyword, int start, int end) {
+        this.keyword = keyword;
+        this.start = start;
+        this.end = end;
+    }
+
+    public String getKeyword() {
+        return keyword;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    @Override
+    public String toString() {
+        return keyword + "@" + start + "-" + end;
+    }
+}
@@ -0,0 +1,184 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Finds all the occurrences of many keywords in a text in one pass (Aho-Corasick automaton). The time to scan a
+ * text is linear in its length plus the number of matches, whatever the number of keywords.
+ * <p>
+ * The automaton is compiled once and never changed, so it can be used by several threads; to change the
+ * keywords, compile a new matcher (see AlertEngine). Matching is case-insensitive (char by char, so the offsets
+ * are the offsets in the original text). With whole-word matching, an occurrence only counts if it is not
+ * preceded or followed by a letter or digit.
+ */
+public class KeywordMatcher {
+    // Transitions of each state: sorted characters and the target states, searched with binary search
+    private final char[][] edgeChars;
+    private final int[][] edgeTargets;
+    // Longest proper suffix of the state that is also a state
+    private final int[] failure;
+    // Nearest state on the failure chain that ends a keyword, -1 if none
+    private final int[] outputLink;
+    // Keyword ending at each state, -1 if none
+    private final int[] keywordAt;
+    private final String[] keywords;
+    private final boolean wholeWords;
+
+    /**
+     * @param keywords   The keywords. Empty ones are ignored, duplicates are matched once.
+     * @param wholeWords true to match whole words only
+     */
+    public KeywordMatcher(Collection<String> keywords, boolean wholeWords) {
+        this.wholeWords = wholeWords;
+        List<String> unique = new ArrayList<>();
+        LinkedHashSet<String> seen = new LinkedHashSet<>();
+        for (String k : keywords) {
+            if (!k.isEmpty() && seen.add(lowerCase(k))) {
+                unique.add(k);
+            }
+        }
+        this.keywords = unique.toArray(new String[0]);
+
+        // Build the trie with growable edge lists
+        List<StringBuilder> chars = new ArrayList<>();
+        List<List<Integer>> targets = new ArrayList<>();
+        List<Integer> ends = new ArrayList<>();
+        chars.add(new StringBuilder());
+        targets.add(new ArrayList<>());
+        ends.add(-1);
+        for (int k = 0; k < this.keywords.length; k++) {
+            String word = lowerCase(this.keywords[k]);
+            int state = 0;
+            for (int i = 0; i < word.length(); i++) {
+                char c = word.charAt(i);
+                int edge = chars.get(state).indexOf(String.valueOf(c));
+                if (edge >= 0) {
+                    state = targets.get(state).get(edge);
+                } else {
+                    int next = chars.size();
+                    chars.add(new StringBuilder());
+                    targets.add(new ArrayList<>());
+                    ends.add(-1);
+                    chars.get(state).append(c);
+                    targets.get(state).add(next);
+                    state = next;
+                }
+            }
+            ends.set(state, k);
+        }
+
+        int states = chars.size();
+        edgeChars = new char[states][];
+        edgeTargets = new int[states][];
+        keywordAt = new int[states];
+        for (int s = 0; s < states; s++) {
+            char[] c = chars.get(s).toString().toCharArray();
+            int[] t = new int[c.length];
+            Integer[] order = new Integer[c.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Character.compare(c[a], c[b]));
+            edgeChars[s] = new char[c.length];
+            for (int i = 0; i < order.length; i++) {
+                edgeChars[s][i] = c[order[i]];
+                t[i] = targets.get(s).get(order[i]);
+            }
+            edgeTargets[s] = t;
+            keywordAt[s] = ends.get(s);
+        }
+
+        // Failure and output links, breadth first
+        failure = new int[states];
+        outputLink = new int[states];
+        outputLink[0] = -1;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int child : edgeTargets[0]) {
+            failure[child] = 0;
+            outputLink[child] = -1;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            for (int i = 0; i < edgeChars[s].length; i++) {
+                char c = edgeChars[s][i];
+                int child = edgeTargets[s][i];
+                int f = failure[s];
+                int next;
+                while ((next = step(f, c)) < 0 && f != 0) {
+                    f = failure[f];
+                }
+                failure[child] = next >= 0 ? next : 0;
+                int fc = failure[child];
+                outputLink[child] = keywordAt[fc] >= 0 ? fc : outputLink[fc];
+                queue.add(child);
+            }
+        }
+    }
+
+    private static String lowerCase(String s) {
+        char[] c = s.toCharArray();
+        for (int i = 0; i < c.length; i++) {
+            c[i] = Character.toLowerCase(c[i]);
+        }
+        return new String(c);
+    }
+
+    /**
+     * @return The transition from the state with the character, -1 if there is none
+     */
+    private int step(int state, char c) {
+        int i = Arrays.binarySearch(edgeChars[state], c);
+        return i >= 0 ? edgeTargets[state][i] : -1;
+    }
+
+    /**
+     * @return Number of distinct keywords
+     */
+    public int size() {
+        return keywords.length;
+    }
+
+    /**
+     * Find all the occurrences of the keywords, overlapping ones included.
+     *
+     * @param text The text to scan
+     * @return The matches in the order of their end offset; an empty list if there are none
+     */
+    public List<KeywordMatch> match(CharSequence text) {
+        List<KeywordMatch> matches = null;
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            int next;
+            while ((next = step(state, c)) < 0 && state != 0) {
+                state = failure[state];
+            }
+            state = next >= 0 ? next : 0;
+            int out = keywordAt[state] >= 0 ? state : outputLink[state];
+            while (out >= 0) {
+                String keyword = keywords[keywordAt[out]];
+                int start = i + 1 - keyword.length();
+                if (!wholeWords || isWordBoundary(text, start, i + 1)) {
+                    if (matches == null) {
+                        matches = new ArrayList<>();
+                    }
+                    matches.add(new KeywordMatch(keyword, start, i + 1));
+                }
+                out = outputLink[out];
+            }
+        }
+        return matches != null ? matches : Collections.<KeywordMatch>emptyList();
+    }
+
+    private static boolean isWordBoundary(CharSequence text, int start, int end) {
+        return (start == 0 || !Character.isLetterOrDigit(text.charAt(start - 1)))
+                && (end == text.length() || !Character.isLetterOrDigit(text.charAt(end)));
+    }
+}
@@ -0,0 +1,135 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the bytes of received lines into Strings. One instance per connection, used by the listen thread
+ * only: the CharsetDecoder and the char buffer are reused for all lines instead of being created for every
+ * line.
+ * <p>
+ * Two shortcuts for the common cases: known words (the command words of the protocol) are returned as the
+ * constant Strings without decoding or allocating anything, and pure ASCII text is copied directly when the
+ * charset is ASCII-compatible (UTF-8, ISO-8859-1, US-ASCII). Malformed input is replaced with U+FFFD.
+ * <p>
+ * The decoder always gets complete lines (see ProtocolInputStream.readLine()), so a multi-byte character split
+ * between two network reads has been put together again before it gets here.
+ */
+public class LineDecoder {
+    private final Charset charset;
+    private final boolean asciiCompatible;
+    private final CharsetDecoder decoder;
+    private final String[] knownWords;
+    private final byte[][] knownWordBytes;
+    private CharBuffer chars = CharBuffer.allocate(256);
+
+    /**
+     * @param charset    Charset of the text
+     * @param knownWords Words that decodeWord() returns without decoding. Must be ASCII.
+     */
+    public LineDecoder(Charset charset, String... knownWords) {
+        this.charset = charset;
+        this.asciiCompatible = charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1);
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.knownWords = knownWords;
+        this.knownWordBytes = new byte[knownWords.length][];
+        for (int i = 0; i < knownWords.length; i++) {
+            knownWordBytes[i] = knownWords[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Decode a word which is probably one of the known words.
+     *
+     * @param bytes  Buffer with the bytes
+     * @param offset Start of the word
+     * @param length Length of the word in bytes
+     * @return The known word constant, or the decoded word
+     */
+    public String decodeWord(byte[] bytes, int offset, int length) {
+        for (int i = 0; i < knownWordBytes.length; i++) {
+            if (matches(knownWordBytes[i], bytes, offset, length)) {
+                return knownWords[i];
+            }
+        }
+        return decode(bytes, offset, length);
+    }
+
+    private static boolean matches(byte[] word, byte[] bytes, int offset, int length) {
+        if (word.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (word[i] != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode text.
+     *
+     * @param bytes  Buffer with the bytes
+     * @param offset Start of the text
+     * @param length Length of the text in bytes
+     * @return The decoded text
+     */
+    public String decode(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return "";
+        }
+        if (asciiCompatible && isAscii(bytes, offset, length)) {
+            // Each byte is one character; Latin-1 decoding is a plain copy into a compact String
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        }
+        // One char per byte is always enough for UTF-8 and the single-byte charsets
+        int maxChars = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+        if (chars.capacity() < maxChars) {
+            chars = CharBuffer.allocate(Math.max(maxChars, chars.capacity() * 2));
+        }
+        chars.clear();
+        decoder.reset();
+        ByteBuffer in = ByteBuffer.wrap(bytes, offset, length);
+        CoderResult result = decoder.decode(in, chars, true);
+        if (!result.isUnderflow()) {
+            return fallback(bytes, offset, length);
+        }
+        result = decoder.flush(chars);
+        if (!result.isUnderflow()) {
+            return fallback(bytes, offset, length);
+        }
+        chars.flip();
+        return chars.toString();
+    }
+
+    private String fallback(byte[] bytes, int offset, int length) {
+        try {
+            return charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .decode(ByteBuffer.wrap(bytes, offset, length)).toString();
+        } catch (CharacterCodingException e) {
+            // Not possible with REPLACE
+            return new String(bytes, offset, length, charset);
+        }
+    }
+
+    private static boolean isAscii(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,70 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Cuts an oversized list (the message part of "users" or "supported": words separated by spaces) into pieces
+ * at the spaces, so that no word is split between two pieces. The bytes after the last space of a piece are kept
+ * and put in front of the next piece. Only a word longer than a whole piece is cut.
+ * <p>
+ * Used by the codecs when a line (frame) is longer than the maximum line length of the connection.
+ */
+class ListChunker {
+    private final LineDecoder decoder;
+    // Beginning of a word which continues in the next piece
+    private byte[] carry = new byte[0];
+    private int carryLength = 0;
+    private byte[] piece = new byte[256];
+
+    /**
+     * @param charset Charset of the text
+     */
+    ListChunker(Charset charset) {
+        this.decoder = new LineDecoder(charset);
+    }
+
+    /**
+     * @param command Command word
+     * @return true if an oversized message part of this command is delivered in pieces, false if it is rejected
+     */
+    static boolean isChunkable(String command) {
+        return "users".equals(command) || "supported".equals(command);
+    }
+
+    /**
+     * Decode the next piece of the list.
+     *
+     * @param bytes  Buffer with the bytes
+     * @param offset Start of the piece
+     * @param length Length of the piece in bytes
+     * @param last   true if this is the end of the list
+     * @return The words of the piece, separated by spaces
+     */
+    String next(byte[] bytes, int offset, int length, boolean last) {
+        int end = offset + length;
+        int cut = end;
+        if (!last) {
+            int space = end - 1;
+            while (space >= offset && bytes[space] != ' ') {
+                space--;
+            }
+            if (space >= offset) {
+                cut = space;
+            }
+        }
+        int pieceLength = carryLength + (cut - offset);
+        if (pieceLength > piece.length) {
+            piece = Arrays.copyOf(piece, Math.max(pieceLength, piece.length * 2));
+        }
+        System.arraycopy(carry, 0, piece, 0, carryLength);
+        System.arraycopy(bytes, offset, piece, carryLength, cut - offset);
+        // The rest after the space goes in front of the next piece
+        carryLength = cut < end ? end - cut - 1 : 0;
+        if (carryLength > carry.length) {
+            carry = new byte[Math.max(carryLength, carry.length * 2)];
+        }
+        System.arraycopy(bytes, end - carryLength, carry, 0, carryLength);
+        return decoder.decode(piece, 0, pieceLength);
+    }
+}
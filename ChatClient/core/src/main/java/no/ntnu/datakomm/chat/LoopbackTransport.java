@@ -0,0 +1,182 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Transport which never leaves the JVM: bytes written on one end can be read on the other end. Used to run the
+ * client against an in-process server (in the tests, for example), without any network and without the delays
+ * of a real connection.
+ */
+public class LoopbackTransport implements Transport {
+    // Size of the buffer in each direction. A writer blocks when the buffer is full, like a TCP socket would.
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Pipe in;
+    private final Pipe out;
+    private final String remoteAddress;
+    private volatile boolean closed = false;
+
+    private LoopbackTransport(Pipe in, Pipe out, String remoteAddress) {
+        this.in = in;
+        this.out = out;
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Create two connected transports.
+     *
+     * @param name Name used as the remote address of both ends, for logging
+     * @return Array of two transports. Whatever is written to one of them can be read from the other one.
+     */
+    public static LoopbackTransport[] pair(String name) {
+        Pipe aToB = new Pipe();
+        Pipe bToA = new Pipe();
+        return new LoopbackTransport[]{
+                new LoopbackTransport(bToA, aToB, name),
+                new LoopbackTransport(aToB, bToA, name)
+        };
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in.input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out.output;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "loopback:" + remoteAddress;
+    }
+
+    /**
+     * Close both directions. The other end will see end-of-stream once it has read all the buffered bytes.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        in.close();
+        out.close();
+    }
+
+    /**
+     * A bounded, blocking byte buffer with one stream for writing and one for reading.
+     */
+    private static class Pipe {
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int readPos = 0;
+        private int count = 0;
+        private boolean closed = false;
+
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int n = read(b, 0, 1);
+                return n < 0 ? -1 : (b[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return Pipe.this.available();
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (count == 0) {
+                if (closed) {
+                    return -1;
+                }
+                waitForChange();
+            }
+            int n = Math.min(len, count);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = buffer[(readPos + i) % buffer.length];
+            }
+            readPos = (readPos + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (closed) {
+                    throw new IOException("Loopback pipe closed");
+                }
+                if (count == buffer.length) {
+                    waitForChange();
+                    continue;
+                }
+                int n = Math.min(len, buffer.length - count);
+                int writePos = (readPos + count) % buffer.length;
+                for (int i = 0; i < n; i++) {
+                    buffer[(writePos + i) % buffer.length] = b[off + i];
+                }
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized int available() {
+            return count;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        private void waitForChange() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting on loopback pipe");
+            }
+        }
+    }
+}
@@ -0,0 +1,600 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Archives every received message to rotating, gzip compressed files. Register it as a ChatListener: the listen
+ * thread only puts the message in a bounded queue, and a writer thread writes the queued messages in batches.
+ * When the queue is full (the disk can't keep up), the new messages are dropped and counted, the listen thread
+ * never waits for the disk.
+ * <p>
+ * Formats: NDJSON, one JSON object per line ({"time":...,"sender":"...","private":false,"text":"..."}), and
+ * the columnar format of ColumnarFormat. The files of all the formats rotate together when one of them reaches
+ * the maximum size (compressed bytes written so far) or the maximum age. A file is written as
+ * prefix-000001.ndjson.gz.part and renamed without .part when it is complete, so the readers only pick complete
+ * files. After a crash, the .part files are readable up to their last flush.
+ */
+public class MessageExporter implements ChatListener, Closeable {
+    public static final int DEFAULT_QUEUE_CAPACITY = 65536;
+    public static final int DEFAULT_MAX_BATCH = 1024;
+    public static final long DEFAULT_MAX_FILE_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_MAX_FILE_AGE_MS = 60 * 60 * 1000;
+    static final String PART = ".part";
+    // How often the writer checks for rotation and flush requests when no messages come
+    private static final long POLL_MS = 50;
+
+    public enum Format {
+        NDJSON(".ndjson.gz"), COLUMNAR(".col.gz");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    public enum FsyncPolicy {
+        /** Leave it to the operating system: fastest, the last files can be lost if the machine crashes */
+        NEVER,
+        /** Sync every completed file before it is renamed */
+        ON_ROTATE,
+        /** Flush and sync after every batch: nothing written is lost, but much slower, with smaller batches */
+        EVERY_BATCH
+    }
+
+    /**
+     * An open export file. Used by the writer thread only.
+     */
+    private static class OutputFile {
+        final Format format;
+        final File part;
+        final File done;
+        final FileOutputStream file;
+        final GZIPOutputStream gzip;
+        final ColumnarFormat.Writer columns;
+        final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+
+        OutputFile(Format format, File done) throws IOException {
+            this.format = format;
+            this.done = done;
+            this.part = new File(done.getPath() + PART);
+            this.file = new FileOutputStream(part);
+            // Sync flush: a flushed file can be read up to the flush, while it is still written
+            this.gzip = new GZIPOutputStream(file, 65536, true);
+            this.columns = format == Format.COLUMNAR ? new ColumnarFormat.Writer(gzip) : null;
+        }
+
+        void write(List<ExportRecord> batch) throws IOException {
+            if (columns != null) {
+                for (ExportRecord r : batch) {
+                    columns.add(r);
+                }
+            } else {
+                lines.reset();
+                StringBuilder line = new StringBuilder();
+                for (ExportRecord r : batch) {
+                    line.setLength(0);
+                    appendJson(line, r);
+                    lines.write(line.toString().getBytes(StandardCharsets.UTF_8));
+                }
+                lines.writeTo(gzip);
+            }
+        }
+
+        void flush(boolean sync) throws IOException {
+            if (columns != null) {
+                columns.writeRowGroup();
+            }
+            gzip.flush();
+            if (sync) {
+                file.getFD().sync();
+            }
+        }
+
+        long size() throws IOException {
+            return file.getChannel().position();
+        }
+
+        void complete(boolean sync) throws IOException {
+            if (columns != null) {
+                columns.writeRowGroup();
+            }
+            gzip.finish();
+            if (sync) {
+                file.getFD().sync();
+            }
+            gzip.close();
+            Files.move(part.toPath(), done.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private final File directory;
+    private final String prefix;
+    private final Format[] formats;
+    private final LongSupplier clock;
+    private final BlockingQueue<ExportRecord> queue;
+    private final Thread writer;
+
+    // Settings and state shared with the writer thread, guarded by this
+    private long maxFileBytes = DEFAULT_MAX_FILE_BYTES;
+    private long maxFileAgeMs = DEFAULT_MAX_FILE_AGE_MS;
+    private FsyncPolicy fsync = FsyncPolicy.ON_ROTATE;
+    private int maxBatch = DEFAULT_MAX_BATCH;
+    private boolean closed = false;
+    private IOException error = null;
+    private long flushRequests = 0;
+    private long flushesDone = 0;
+
+    // Used by the writer thread only: the open files, when they were opened, the number of the next files
+    private List<OutputFile> files = null;
+    private long openedAt;
+    private long nextNumber;
+
+    private long received = 0;
+    private long dropped = 0;
+    private long exported = 0;
+    private long batches = 0;
+    private long completedFiles = 0;
+    private long bytesWritten = 0;
+    private long writeNanos = 0;
+    private long lagNanos = 0;
+    private long maxLagNanos = 0;
+
+    /**
+     * Start exporting to files in the given directory.
+     *
+     * @param directory Directory of the files, created if it does not exist
+     * @param prefix    Start of the file names
+     * @param formats   The formats to write, each message is written in every format
+     * @return The exporter, register it as a ChatListener
+     * @throws IOException When the directory can't be created
+     */
+    public static MessageExporter open(File directory, String prefix, Format... formats) throws IOException {
+        return open(directory, prefix, DEFAULT_QUEUE_CAPACITY, formats);
+    }
+
+    /**
+     * Start exporting to files in the given directory.
+     *
+     * @param directory     Directory of the files, created if it does not exist
+     * @param prefix        Start of the file names
+     * @param queueCapacity Messages kept in memory while the writer is busy, more are dropped
+     * @param formats       The formats to write, each message is written in every format
+     * @return The exporter, register it as a ChatListener
+     * @throws IOException When the directory can't be created
+     */
+    public static MessageExporter open(File directory, String prefix, int queueCapacity, Format... formats)
+            throws IOException {
+        return new MessageExporter(directory, prefix, queueCapacity, formats, System::currentTimeMillis);
+    }
+
+    MessageExporter(File directory, String prefix, int queueCapacity, Format[] formats, LongSupplier clock)
+            throws IOException {
+        if (formats.length == 0) {
+            throw new IllegalArgumentException("No export format");
+        }
+        Files.createDirectories(directory.toPath());
+        this.directory = directory;
+        this.prefix = prefix;
+        this.formats = formats.clone();
+        this.clock = clock;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.nextNumber = findNextNumber();
+        this.writer = new Thread(this::run, "message-export");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return The number after the highest number of the files already in the directory, so they are not
+     * overwritten
+     */
+    private long findNextNumber() {
+        long highest = 0;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix + "-")) {
+                    int end = prefix.length() + 1;
+                    while (end < name.length() && Character.isDigit(name.charAt(end))) {
+                        end++;
+                    }
+                    if (end > prefix.length() + 1) {
+                        highest = Math.max(highest, Long.parseLong(name.substring(prefix.length() + 1, end)));
+                    }
+                }
+            }
+        }
+        return highest + 1;
+    }
+
+    /**
+     * Set when the files are rotated.
+     *
+     * @param maxBytes Maximum size of a file, in compressed bytes. The size is checked after every batch, and
+     *                 the compressor holds some data back, so a file can be a bit bigger
+     * @param maxAgeMs Maximum time a file is written to
+     */
+    public synchronized void setRotation(long maxBytes, long maxAgeMs) {
+        this.maxFileBytes = maxBytes;
+        this.maxFileAgeMs = maxAgeMs;
+    }
+
+    /**
+     * @param fsync When the files are synced to disk, ON_ROTATE by default
+     */
+    public synchronized void setFsyncPolicy(FsyncPolicy fsync) {
+        this.fsync = fsync;
+    }
+
+    /**
+     * @param maxBatch Maximum number of messages written at once
+     */
+    public synchronized void setMaxBatch(int maxBatch) {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("Invalid batch size: " + maxBatch);
+        }
+        this.maxBatch = maxBatch;
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        ExportRecord record = new ExportRecord(clock.getAsLong(), message, System.nanoTime());
+        boolean queued;
+        synchronized (this) {
+            queued = !closed && queue.offer(record);
+            if (queued) {
+                received++;
+            } else {
+                dropped++;
+            }
+        }
+    }
+
+    @Override
+    public void onDisconnect() {
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+    }
+
+    private void run() {
+        List<ExportRecord> batch = new ArrayList<>();
+        try {
+            while (true) {
+                ExportRecord first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                int max;
+                FsyncPolicy policy;
+                boolean stop;
+                synchronized (this) {
+                    max = maxBatch;
+                    policy = fsync;
+                    stop = closed;
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, max - 1);
+                    write(batch, policy);
+                    batch.clear();
+                }
+                rotateIfDue(policy);
+                if (first == null) {
+                    long request;
+                    synchronized (this) {
+                        request = flushRequests;
+                    }
+                    // Everything received before the request is written once the queue is empty
+                    if (request > flushesDone && queue.isEmpty()) {
+                        flushFiles(policy != FsyncPolicy.NEVER);
+                        synchronized (this) {
+                            flushesDone = request;
+                            notifyAll();
+                        }
+                    }
+                    if (stop && queue.isEmpty()) {
+                        break;
+                    }
+                }
+            }
+            completeFiles(currentPolicy());
+        } catch (IOException e) {
+            synchronized (this) {
+                error = e;
+                closed = true;
+                dropped += queue.size() + batch.size();
+                queue.clear();
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    private synchronized FsyncPolicy currentPolicy() {
+        return fsync;
+    }
+
+    private void write(List<ExportRecord> batch, FsyncPolicy policy) throws IOException {
+        long start = System.nanoTime();
+        if (files == null) {
+            openFiles();
+        }
+        long before = size();
+        for (OutputFile f : files) {
+            f.write(batch);
+        }
+        if (policy == FsyncPolicy.EVERY_BATCH) {
+            flushFiles(true);
+        }
+        long end = System.nanoTime();
+        long written = size() - before;
+        synchronized (this) {
+            exported += batch.size();
+            batches++;
+            bytesWritten += written;
+            writeNanos += end - start;
+            // The first message of the batch waited the longest
+            lagNanos = end - batch.get(0).received;
+            maxLagNanos = Math.max(maxLagNanos, lagNanos);
+        }
+    }
+
+    private long size() throws IOException {
+        long size = 0;
+        for (OutputFile f : files) {
+            size += f.size();
+        }
+        return size;
+    }
+
+    private void openFiles() throws IOException {
+        files = new ArrayList<>();
+        String name = String.format("%s-%06d", prefix, nextNumber++);
+        for (Format format : formats) {
+            files.add(new OutputFile(format, new File(directory, name + format.getExtension())));
+        }
+        openedAt = clock.getAsLong();
+    }
+
+    private void rotateIfDue(FsyncPolicy policy) throws IOException {
+        if (files == null) {
+            return;
+        }
+        long maxBytes;
+        long maxAge;
+        synchronized (this) {
+            maxBytes = maxFileBytes;
+            maxAge = maxFileAgeMs;
+        }
+        boolean due = clock.getAsLong() - openedAt >= maxAge;
+        for (OutputFile f : files) {
+            due |= f.size() >= maxBytes;
+        }
+        if (due) {
+            completeFiles(policy);
+        }
+    }
+
+    private void flushFiles(boolean sync) throws IOException {
+        if (files != null) {
+            for (OutputFile f : files) {
+                f.flush(sync);
+            }
+        }
+    }
+
+    private void completeFiles(FsyncPolicy policy) throws IOException {
+        if (files == null) {
+            return;
+        }
+        long before = size();
+        long after = 0;
+        for (OutputFile f : files) {
+            f.complete(policy != FsyncPolicy.NEVER);
+            after += f.done.length();
+        }
+        files = null;
+        synchronized (this) {
+            bytesWritten += after - before;
+            completedFiles++;
+        }
+    }
+
+    /**
+     * Wait until the messages received so far are written to the files and flushed (and synced, unless the
+     * policy is NEVER). The files stay open.
+     *
+     * @throws IOException When writing failed
+     */
+    public synchronized void flush() throws IOException {
+        checkError();
+        long request = ++flushRequests;
+        try {
+            while (flushesDone < request && error == null && writer.isAlive()) {
+                wait(POLL_MS);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while flushing the export");
+        }
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw new IOException("Export failed", error);
+        }
+    }
+
+    /**
+     * Write the queued messages, complete the files and stop. Messages received later are dropped.
+     *
+     * @throws IOException When writing failed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while closing the export");
+        }
+        synchronized (this) {
+            checkError();
+        }
+    }
+
+    /**
+     * @return Number of messages accepted for export
+     */
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    /**
+     * @return Number of messages dropped because the queue was full, or the export closed or failed
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return Number of messages written to the files
+     */
+    public synchronized long getExported() {
+        return exported;
+    }
+
+    /**
+     * @return Number of messages waiting in the queue
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return Average number of messages written at once
+     */
+    public synchronized double getAverageBatchSize() {
+        return batches == 0 ? 0 : (double) exported / batches;
+    }
+
+    /**
+     * @return Number of completed (renamed) sets of files
+     */
+    public synchronized long getCompletedFiles() {
+        return completedFiles;
+    }
+
+    /**
+     * @return Compressed bytes written, in all the formats
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return Messages written per second of writing time
+     */
+    public synchronized double getThroughput() {
+        return writeNanos == 0 ? 0 : exported * 1e9 / writeNanos;
+    }
+
+    /**
+     * @return Time from reception to writing of the oldest message of the last batch, in milliseconds
+     */
+    public synchronized double getLagMillis() {
+        return lagNanos / 1e6;
+    }
+
+    /**
+     * @return Highest lag seen, in milliseconds
+     */
+    public synchronized double getMaxLagMillis() {
+        return maxLagNanos / 1e6;
+    }
+
+    /**
+     * Append a record as a line of JSON.
+     */
+    static void appendJson(StringBuilder line, ExportRecord record) {
+        TextMessage m = record.getMessage();
+        line.append("{\"time\":").append(record.getTime()).append(",\"sender\":");
+        appendString(line, m.getSender());
+        line.append(",\"private\":").append(m.isPrivate()).append(",\"text\":");
+        appendString(line, m.getText());
+        line.append("}\n");
+    }
+
+    private static void appendString(StringBuilder line, String s) {
+        if (s == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+            }
+        }
+        line.append('"');
+    }
+}
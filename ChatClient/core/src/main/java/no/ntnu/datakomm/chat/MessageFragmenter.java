@@ -0,0 +1,124 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a long message text into fragments that are sent as separate msg/privmsg commands. Every fragment
+ * starts with a small header between two MARKER characters: the message id, the index of the fragment and the
+ * number of fragments, for example "\u0001k3 0/5\u0001". MessageReassembler puts the fragments together again.
+ * <p>
+ * The fragments are cut at character boundaries (never inside a surrogate pair) so that every fragment is valid
+ * UTF-8 of at most the given size, header included.
+ */
+public class MessageFragmenter {
+    // Starts and ends the fragment header. A control character, so it does not appear in normal text.
+    public static final char MARKER = '\u0001';
+    // Smallest allowed fragment size: room for the longest header and some text
+    public static final int MIN_FRAGMENT_BYTES = 64;
+
+    private MessageFragmenter() {
+    }
+
+    /**
+     * @param text     Message text
+     * @param maxBytes Maximum size in bytes
+     * @return true if the text fits in one message of maxBytes bytes in UTF-8
+     */
+    public static boolean fits(String text, int maxBytes) {
+        if (text.length() * 3 <= maxBytes) {
+            return true;
+        }
+        int bytes = 0;
+        for (int i = 0; i < text.length() && bytes <= maxBytes; i++) {
+            bytes += utf8Length(text.charAt(i));
+        }
+        return bytes <= maxBytes;
+    }
+
+    /**
+     * @param text     Message text
+     * @param maxBytes Maximum size of each fragment in UTF-8, header included
+     * @param id       Message id, as given to split()
+     * @return true if split() can split the text in at most MessageReassembler.MAX_FRAGMENTS fragments
+     */
+    public static boolean canSplit(String text, int maxBytes, String id) {
+        int payload = payload(maxBytes, id);
+        int count = 0;
+        for (int start = 0; start < text.length(); start = chunkEnd(text, start, payload)) {
+            if (++count > MessageReassembler.MAX_FRAGMENTS) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Split a text into fragments.
+     *
+     * @param text     Message text
+     * @param maxBytes Maximum size of each fragment in UTF-8, header included
+     * @param id       Message id, unique among the messages of the sender. Must not contain spaces.
+     * @return The fragments, each with its header
+     * @throws IllegalArgumentException When the text needs more than MessageReassembler.MAX_FRAGMENTS fragments
+     *                                  (see canSplit())
+     */
+    public static List<String> split(String text, int maxBytes, String id) {
+        int payload = payload(maxBytes, id);
+        List<String> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = chunkEnd(text, start, payload);
+            chunks.add(text.substring(start, end));
+            start = end;
+        }
+        if (chunks.size() > MessageReassembler.MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("Message too long: " + chunks.size() + " fragments");
+        }
+        List<String> fragments = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            fragments.add(MARKER + id + " " + i + "/" + chunks.size() + MARKER + chunks.get(i));
+        }
+        return fragments;
+    }
+
+    /**
+     * @return Room for the text in a fragment of maxBytes bytes
+     */
+    private static int payload(int maxBytes, String id) {
+        if (maxBytes < MIN_FRAGMENT_BYTES) {
+            throw new IllegalArgumentException("Fragment size too small: " + maxBytes);
+        }
+        // The header is at most this long: id, two numbers of up to 4 digits, space, slash, two markers
+        return maxBytes - (id.length() + 12);
+    }
+
+    /**
+     * @return Where the fragment starting at start ends: as much text as fits in payload bytes of UTF-8
+     */
+    private static int chunkEnd(String text, int start, int payload) {
+        int end = start;
+        int bytes = 0;
+        while (end < text.length()) {
+            char c = text.charAt(end);
+            int n = Character.isHighSurrogate(c) && end + 1 < text.length() ? 2 : 1;
+            int size = n == 2 ? 4 : utf8Length(c);
+            if (bytes + size > payload) {
+                break;
+            }
+            bytes += size;
+            end += n;
+        }
+        return end;
+    }
+
+    private static int utf8Length(char c) {
+        if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800) {
+            return 2;
+        }
+        // Also an upper bound for half a surrogate pair
+        return 3;
+    }
+}
@@ -0,0 +1,97 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Random;
+
+/**
+ * Measures the heap retained by received messages: a room of a few hundred users sends a million messages,
+ * which are kept in memory, once the way the client used to keep them (a new sender String copied out of every
+ * line, the text as a String) and once with interned senders and compact TextMessages. Run with a fixed heap,
+ * for example -Xms1g -Xmx1g, so that the garbage collector does not resize it in between.
+ */
+public class MessageHeapBenchmark {
+
+    /**
+     * A message the way TextMessage used to be, for comparison.
+     */
+    private static class LegacyMessage {
+        final String sender;
+        final boolean priv;
+        final String text;
+
+        LegacyMessage(String sender, boolean priv, String text) {
+            this.sender = sender;
+            this.priv = priv;
+            this.text = text;
+        }
+    }
+
+    private static final String[] WORDS = {"hello", "anyone", "there", "lunch", "at", "noon", "the", "build",
+            "is", "green", "again", "see", "you", "tomorrow", "blåbær", "ok", "thanks", "meeting", "moved", "to"};
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        String[] lines = sampleLines(count, users);
+        for (int round = 1; round <= 3; round++) {
+            System.out.println("Round " + round);
+            measure("legacy          ", lines, false);
+            measure("interned+compact", lines, true);
+        }
+    }
+
+    /**
+     * The received "msg" lines, without the command word.
+     */
+    private static String[] sampleLines(int count, int users) {
+        Random random = new Random(1);
+        String[] lines = new String[count];
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.setLength(0);
+            sb.append("user").append(random.nextInt(users));
+            int words = 3 + random.nextInt(8);
+            for (int w = 0; w < words; w++) {
+                sb.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            lines[i] = sb.toString();
+        }
+        return lines;
+    }
+
+    private static void measure(String name, String[] lines, boolean compact) throws InterruptedException {
+        long before = usedHeap();
+        Object[] kept = new Object[lines.length];
+        NameTable names = new NameTable();
+        long start = System.nanoTime();
+        for (int i = 0; i < lines.length; i++) {
+            // Parsed the same way as in TCPClient
+            String[] parts = lines[i].split(" ", 2);
+            if (compact) {
+                kept[i] = new TextMessage(names.intern(parts[0]), false, parts[1]);
+            } else {
+                kept[i] = new LegacyMessage(parts[0], false, parts[1]);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        // Without the array holding the messages (compressed references)
+        long retained = usedHeap() - before - (16L + 4L * kept.length);
+        double perMessage = (double) retained / lines.length;
+        System.out.printf("%s %7.1f MB per 1M messages, %5.1f bytes/message, %4.0f ns/message, %d names%n", name,
+                perMessage * 1e6 / 1024 / 1024, perMessage, (double) nanos / lines.length, names.getSize());
+        if (kept[kept.length - 1] == null) {
+            System.out.println(); // Keeps the messages reachable until after the measurement
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Several collections, until the used heap does not go down any more
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,210 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Puts together the fragments of long messages (see MessageFragmenter) in the receive path. Fragments of several
+ * messages (from one or many senders) may arrive interleaved with each other and with normal messages.
+ * <p>
+ * Memory is bounded: the incomplete messages may not exceed the maximum number of pending characters, the oldest
+ * incomplete messages are dropped to make room. Each message and each fragment is charged a fixed overhead on
+ * top of its text, and the fragments are stored sparsely, so headers with empty parts can not fill the memory
+ * either. Incomplete messages are also dropped when their first fragment is older than the timeout.
+ */
+public class MessageReassembler {
+    // The fragment count in a header may not be larger than this
+    public static final int MAX_FRAGMENTS = 9999;
+    public static final int DEFAULT_MAX_PENDING_CHARS = 4 * 1024 * 1024;
+    public static final long DEFAULT_TIMEOUT_MS = 30000;
+    // Memory charged, in characters, for each incomplete message and for each fragment, besides their text
+    static final int MESSAGE_OVERHEAD = 64;
+    static final int FRAGMENT_OVERHEAD = 16;
+
+    private static class Partial {
+        final int count;
+        // Fragments received so far, by index
+        final Map<Integer, String> parts = new HashMap<>();
+        final long started;
+        int chars = 0;
+        // Text plus overheads, as charged to pendingChars
+        int cost = MESSAGE_OVERHEAD;
+
+        Partial(int count, long started) {
+            this.count = count;
+            this.started = started;
+        }
+    }
+
+    private final int maxPendingChars;
+    private final long timeoutNanos;
+    private final LongSupplier clock;
+    // Incomplete messages, oldest first
+    private final Map<String, Partial> pending = new LinkedHashMap<>();
+    private int pendingChars = 0;
+
+    private long fragments = 0;
+    private long reassembled = 0;
+    private long expired = 0;
+    private long dropped = 0;
+
+    public MessageReassembler() {
+        this(DEFAULT_MAX_PENDING_CHARS, DEFAULT_TIMEOUT_MS, System::nanoTime);
+    }
+
+    /**
+     * @param maxPendingChars Maximum memory of the incomplete messages, in characters, overheads included
+     * @param timeoutMs       Drop incomplete messages whose first fragment is older than this
+     * @param clock           Time source in nanoseconds
+     */
+    MessageReassembler(int maxPendingChars, long timeoutMs, LongSupplier clock) {
+        this.maxPendingChars = maxPendingChars;
+        this.timeoutNanos = timeoutMs * 1_000_000L;
+        this.clock = clock;
+    }
+
+    /**
+     * Process a received message text.
+     *
+     * @param sender Username of the sender
+     * @param priv   true for a private message
+     * @param text   The text as received
+     * @return The text to deliver: the text itself if it is not a fragment, the whole message when this was its
+     * last missing fragment, otherwise null
+     */
+    public synchronized String accept(String sender, boolean priv, String text) {
+        if (text.isEmpty() || text.charAt(0) != MessageFragmenter.MARKER) {
+            return text;
+        }
+        int end = text.indexOf(MessageFragmenter.MARKER, 1);
+        int space = text.indexOf(' ', 1);
+        int slash = text.indexOf('/', space + 1);
+        if (end < 0 || space < 0 || slash < 0 || slash > end) {
+            return text;
+        }
+        int index;
+        int count;
+        try {
+            index = Integer.parseInt(text.substring(space + 1, slash));
+            count = Integer.parseInt(text.substring(slash + 1, end));
+        } catch (NumberFormatException e) {
+            return text;
+        }
+        if (count < 1 || count > MAX_FRAGMENTS || index < 0 || index >= count) {
+            return text;
+        }
+        fragments++;
+        long now = clock.getAsLong();
+        expire(now);
+        String key = (priv ? "p " : "m ") + sender + " " + text.substring(1, space);
+        Partial partial = pending.get(key);
+        if (partial == null) {
+            partial = new Partial(count, now);
+            pending.put(key, partial);
+            pendingChars += partial.cost;
+        }
+        String part = text.substring(end + 1);
+        if (partial.count != count || partial.parts.containsKey(index)) {
+            // Does not belong to the message, or a duplicate
+            return null;
+        }
+        int cost = part.length() + FRAGMENT_OVERHEAD;
+        makeRoom(cost, key);
+        if (pendingChars + cost > maxPendingChars) {
+            // Even alone, this message does not fit
+            remove(key, partial);
+            dropped++;
+            return null;
+        }
+        partial.parts.put(index, part);
+        partial.chars += part.length();
+        partial.cost += cost;
+        pendingChars += cost;
+        if (partial.parts.size() < count) {
+            return null;
+        }
+        remove(key, partial);
+        reassembled++;
+        StringBuilder sb = new StringBuilder(partial.chars);
+        for (int i = 0; i < count; i++) {
+            sb.append(partial.parts.get(i));
+        }
+        return sb.toString();
+    }
+
+    private void remove(String key, Partial partial) {
+        pending.remove(key);
+        pendingChars -= partial.cost;
+    }
+
+    private void expire(long now) {
+        Iterator<Partial> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Partial p = it.next();
+            if (now - p.started <= timeoutNanos) {
+                break;
+            }
+            it.remove();
+            pendingChars -= p.cost;
+            expired++;
+        }
+    }
+
+    private void makeRoom(int chars, String keep) {
+        Iterator<Map.Entry<String, Partial>> it = pending.entrySet().iterator();
+        while (pendingChars + chars > maxPendingChars && it.hasNext()) {
+            Map.Entry<String, Partial> e = it.next();
+            if (e.getKey().equals(keep)) {
+                continue;
+            }
+            it.remove();
+            pendingChars -= e.getValue().cost;
+            dropped++;
+        }
+    }
+
+    /**
+     * @return Number of fragments received
+     */
+    public synchronized long getFragments() {
+        return fragments;
+    }
+
+    /**
+     * @return Number of messages put together from their fragments
+     */
+    public synchronized long getReassembled() {
+        return reassembled;
+    }
+
+    /**
+     * @return Number of incomplete messages dropped after the timeout
+     */
+    public synchronized long getExpired() {
+        return expired;
+    }
+
+    /**
+     * @return Number of incomplete messages dropped to stay within the memory limit
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return Number of incomplete messages waiting for fragments
+     */
+    public synchronized int getPendingMessages() {
+        return pending.size();
+    }
+
+    /**
+     * @return Memory charged for the incomplete messages: the length of their fragments plus the overheads
+     */
+    public synchronized int getPendingChars() {
+        return pendingChars;
+    }
+}
@@ -0,0 +1,17 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * A stage of the receive pipeline. Every incoming chat message goes through the stages, in the order they were
+ * added to the TCPClient, before it is delivered to the ChatListeners. The stages run on the listen thread, so
+ * they must be quick; a stage can drop a message.
+ */
+public interface MessageStage {
+
+    /**
+     * Process an incoming message.
+     *
+     * @param message The message
+     * @return true to pass the message on to the next stage and the listeners, false to drop it
+     */
+    public boolean process(TextMessage message);
+}
@@ -0,0 +1,579 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+/**
+ * Client with sessions to several chat servers at once. The round-trip time of every session is measured all
+ * the time with lightweight probes (help, answered with the supported list), and the messages are sent through
+ * the healthiest session: logged in, answering its probes, lowest smoothed round-trip time. When a session dies
+ * (disconnected, or no answer to a probe within the probe timeout), the messages go to the next best one: the
+ * failover takes at most the probe interval plus the probe timeout, at once when the connection is closed.
+ * Dead sessions are reconnected in the background, with a growing delay.
+ * <p>
+ * The events of all the sessions are merged into one stream for the ChatListeners. A message received from
+ * several servers is delivered once (see DuplicateFilter). The filter only sees the content of the messages: a
+ * sender who really repeats a message ("ok", "+1") within the window of the filter is delivered once too, even
+ * with a single server. Use setDuplicateFilter() to change the window, or to turn the filter off when every
+ * message must be delivered and duplicates are acceptable. The listeners are called on the listen threads of
+ * the sessions, so possibly on several threads at once.
+ */
+public class MultiServerClient {
+    public static final long DEFAULT_PROBE_INTERVAL_MS = 1000;
+    public static final long DEFAULT_PROBE_TIMEOUT_MS = 3000;
+    // Weight of a new round-trip time sample in the smoothed value
+    private static final double RTT_SMOOTHING = 0.25;
+    // A healthy active session is replaced only by one this much faster
+    private static final double RTT_SWITCH_RATIO = 0.5;
+    private static final long MIN_RECONNECT_DELAY_MS = 500;
+    private static final long MAX_RECONNECT_DELAY_MS = 30000;
+
+    /**
+     * State of one server, as seen by getServerStatus().
+     */
+    public static class ServerStatus {
+        private final String server;
+        private final boolean connected;
+        private final boolean healthy;
+        private final boolean active;
+        private final double rttMillis;
+
+        ServerStatus(String server, boolean connected, boolean healthy, boolean active, double rttMillis) {
+            this.server = server;
+            this.connected = connected;
+            this.healthy = healthy;
+            this.active = active;
+            this.rttMillis = rttMillis;
+        }
+
+        /**
+         * @return host:port of the server
+         */
+        public String getServer() {
+            return server;
+        }
+
+        public boolean isConnected() {
+            return connected;
+        }
+
+        /**
+         * @return true if messages can be sent through this server
+         */
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        /**
+         * @return true if messages are sent through this server now
+         */
+        public boolean isActive() {
+            return active;
+        }
+
+        /**
+         * @return Smoothed round-trip time of the probes, -1 before the first answer
+         */
+        public double getRttMillis() {
+            return rttMillis;
+        }
+
+        @Override
+        public String toString() {
+            return server + (active ? " (active)" : "") + (healthy ? " healthy" : connected ? " unhealthy" : " down")
+                    + String.format(", rtt %.2f ms", rttMillis);
+        }
+    }
+
+    /**
+     * The session to one server. Its events are merged into the stream of the MultiServerClient.
+     */
+    private class Session implements ChatListener {
+        final String host;
+        final int port;
+        final TCPClient client;
+        // The fields below are guarded by the MultiServerClient
+        boolean loggedIn = false;
+        // When the outstanding probe was sent (nanoseconds), 0 if none
+        long probeSent = 0;
+        // The outstanding probe was counted as timed out
+        boolean probeLate = false;
+        double rttMillis = -1;
+        // A send failed: not used until the next probe answer
+        boolean suspect = false;
+        long reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+        long nextReconnect = 0;
+
+        Session(String host, int port, TransportFactory factory) {
+            this.host = host;
+            this.port = port;
+            this.client = new TCPClient(factory);
+            client.addListener(this);
+        }
+
+        /**
+         * Connect and log in (the login result comes later). Call without holding the lock.
+         */
+        boolean open(String username) {
+            if (!client.connect(host, port)) {
+                return false;
+            }
+            client.startListenThread();
+            client.tryLogin(username);
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+
+        @Override
+        public void onDisconnect() {
+            boolean last;
+            synchronized (MultiServerClient.this) {
+                loggedIn = false;
+                probeSent = 0;
+                probeLate = false;
+                scheduleReconnect(this, System.nanoTime());
+                select();
+                last = connectedCount() == 0;
+            }
+            if (last) {
+                for (ChatListener l : listeners) {
+                    l.onDisconnect();
+                }
+            }
+        }
+
+        @Override
+        public void onLoginResult(boolean success, String errMsg) {
+            boolean first;
+            synchronized (MultiServerClient.this) {
+                first = success && !anyLoggedIn();
+                loggedIn = success;
+                reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+                select();
+            }
+            if (first || !success) {
+                for (ChatListener l : listeners) {
+                    l.onLoginResult(success, errMsg);
+                }
+            }
+        }
+
+        @Override
+        public void onMessageReceived(TextMessage message) {
+            DuplicateFilter filter = dedup;
+            if (filter == null || filter.process(message)) {
+                for (ChatListener l : listeners) {
+                    l.onMessageReceived(message);
+                }
+            }
+        }
+
+        @Override
+        public void onMessageError(String errMsg) {
+            for (ChatListener l : listeners) {
+                l.onMessageError(errMsg);
+            }
+        }
+
+        @Override
+        public void onUserList(String[] usernames) {
+            for (ChatListener l : listeners) {
+                l.onUserList(usernames);
+            }
+        }
+
+        @Override
+        public void onSupportedCommands(String[] commands) {
+            synchronized (MultiServerClient.this) {
+                if (probeSent != 0) {
+                    // Answer to our probe, not for the listeners
+                    double sample = (System.nanoTime() - probeSent) / 1e6;
+                    rttMillis = rttMillis < 0 ? sample : rttMillis + RTT_SMOOTHING * (sample - rttMillis);
+                    probeSent = 0;
+                    probeLate = false;
+                    suspect = false;
+                    select();
+                    return;
+                }
+            }
+            for (ChatListener l : listeners) {
+                l.onSupportedCommands(commands);
+            }
+        }
+
+        @Override
+        public void onCommandError(String errMsg) {
+            for (ChatListener l : listeners) {
+                l.onCommandError(errMsg);
+            }
+        }
+    }
+
+    private final TransportFactory factory;
+    private final List<Session> sessions = new ArrayList<>();
+    private final List<ChatListener> listeners = new CopyOnWriteArrayList<>();
+    // null when the messages are not deduplicated
+    private volatile DuplicateFilter dedup = new DuplicateFilter();
+    private long probeIntervalMs = DEFAULT_PROBE_INTERVAL_MS;
+    private long probeTimeoutNanos = DEFAULT_PROBE_TIMEOUT_MS * 1_000_000L;
+    private String username = null;
+    private Thread prober = null;
+    private Session active = null;
+
+    private long failovers = 0;
+    private long probes = 0;
+    private long probeTimeouts = 0;
+    private long reconnects = 0;
+
+    /**
+     * Create a client which connects to chat servers over TCP sockets.
+     */
+    public MultiServerClient() {
+        this(SocketTransport.factory());
+    }
+
+    /**
+     * @param factory Opens the connections to the servers added with addServer(host, port)
+     */
+    public MultiServerClient(TransportFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Add a server. Call before start().
+     *
+     * @param host Host name or IP address of the server
+     * @param port TCP port of the server
+     */
+    public void addServer(String host, int port) {
+        addServer(host, port, factory);
+    }
+
+    /**
+     * Add a server reached through its own transport factory (for example TLS to some servers only).
+     *
+     * @param host    Host name or IP address of the server
+     * @param port    TCP port of the server
+     * @param factory Opens the connection to the server
+     */
+    public synchronized void addServer(String host, int port, TransportFactory factory) {
+        sessions.add(new Session(host, port, factory));
+    }
+
+    /**
+     * Set how the health of the servers is checked.
+     *
+     * @param intervalMs Time between two probes of a server
+     * @param timeoutMs  A server which does not answer a probe within this time is not used until it answers
+     */
+    public synchronized void setProbing(long intervalMs, long timeoutMs) {
+        this.probeIntervalMs = intervalMs;
+        this.probeTimeoutNanos = timeoutMs * 1_000_000L;
+    }
+
+    /**
+     * Connect to all the servers and log in, then keep probing them.
+     *
+     * @param username Username to log in with on every server
+     * @return true if at least one connection was opened (the login results come to the listeners)
+     */
+    public boolean start(String username) {
+        List<Session> all;
+        synchronized (this) {
+            this.username = username;
+            all = new ArrayList<>(sessions);
+        }
+        boolean any = false;
+        for (Session s : all) {
+            if (s.open(username)) {
+                any = true;
+            } else {
+                synchronized (this) {
+                    scheduleReconnect(s, System.nanoTime());
+                }
+            }
+        }
+        synchronized (this) {
+            if (prober == null) {
+                prober = new Thread(this::probeLoop, "multi-server-probe");
+                prober.setDaemon(true);
+                prober.start();
+            }
+        }
+        return any;
+    }
+
+    /**
+     * Disconnect from all the servers and stop probing.
+     */
+    public void stop() {
+        List<Session> all;
+        Thread t;
+        synchronized (this) {
+            all = new ArrayList<>(sessions);
+            t = prober;
+            prober = null;
+            username = null;
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+        for (Session s : all) {
+            s.client.disconnect();
+        }
+    }
+
+    private void scheduleReconnect(Session s, long now) {
+        s.nextReconnect = now + s.reconnectDelayMs * 1_000_000L;
+        s.reconnectDelayMs = Math.min(MAX_RECONNECT_DELAY_MS, s.reconnectDelayMs * 2);
+    }
+
+    private void probeLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<Session> toProbe = new ArrayList<>();
+                List<Session> toReconnect = new ArrayList<>();
+                String name;
+                long interval;
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    name = username;
+                    interval = probeIntervalMs;
+                    for (Session s : sessions) {
+                        if (!s.client.isConnectionActive()) {
+                            if (name != null && now - s.nextReconnect >= 0) {
+                                scheduleReconnect(s, now);
+                                toReconnect.add(s);
+                            }
+                        } else if (s.loggedIn && s.probeSent == 0) {
+                            s.probeSent = now;
+                            toProbe.add(s);
+                            probes++;
+                        }
+                    }
+                    select();
+                }
+                for (Session s : toProbe) {
+                    s.client.askSupportedCommands();
+                }
+                for (Session s : toReconnect) {
+                    if (name != null && s.open(name)) {
+                        synchronized (this) {
+                            reconnects++;
+                        }
+                    }
+                }
+                Thread.sleep(interval);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * @return true if messages can be sent through the session. Call with the lock held.
+     */
+    private boolean isHealthy(Session s, long now) {
+        return s.loggedIn && !s.suspect && s.client.isConnectionActive()
+                && (s.probeSent == 0 || now - s.probeSent <= probeTimeoutNanos);
+    }
+
+    /**
+     * Choose the session to send through: the healthy one with the lowest round-trip time. The active session
+     * is kept while it is healthy, unless another one is clearly faster, so the route does not flap between
+     * servers with about the same round-trip time. Call with the lock held.
+     *
+     * @return The chosen session, null if no session is healthy
+     */
+    private Session select() {
+        long now = System.nanoTime();
+        Session best = null;
+        double bestRtt = Double.MAX_VALUE;
+        for (Session s : sessions) {
+            if (s.probeSent != 0 && !s.probeLate && now - s.probeSent > probeTimeoutNanos) {
+                s.probeLate = true;
+                probeTimeouts++;
+            }
+            if (isHealthy(s, now)) {
+                double rtt = s.rttMillis >= 0 ? s.rttMillis : Double.MAX_VALUE / 2;
+                if (best == null || rtt < bestRtt) {
+                    best = s;
+                    bestRtt = rtt;
+                }
+            }
+        }
+        if (active != null && isHealthy(active, now)) {
+            if (best != active && active.rttMillis >= 0 && bestRtt >= active.rttMillis * RTT_SWITCH_RATIO) {
+                best = active;
+            }
+        } else if (active != null && best != null) {
+            failovers++;
+        }
+        active = best;
+        return best;
+    }
+
+    private boolean anyLoggedIn() {
+        for (Session s : sessions) {
+            if (s.loggedIn) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int connectedCount() {
+        int count = 0;
+        for (Session s : sessions) {
+            if (s.client.isConnectionActive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Send through the healthiest session; when that fails, through the next one.
+     */
+    private boolean send(Predicate<TCPClient> action) {
+        int attempts;
+        synchronized (this) {
+            attempts = sessions.size();
+        }
+        for (int i = 0; i < attempts; i++) {
+            Session s;
+            synchronized (this) {
+                s = select();
+            }
+            if (s == null) {
+                return false;
+            }
+            if (action.test(s.client)) {
+                return true;
+            }
+            synchronized (this) {
+                s.suspect = true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Send a public message through the healthiest server.
+     *
+     * @param message Message to send
+     * @return true if the message was sent, false if no server could send it
+     */
+    public boolean sendPublicMessage(String message) {
+        return send(c -> c.sendPublicMessage(message));
+    }
+
+    /**
+     * Send a private message through the healthiest server.
+     *
+     * @param recipient Username of the recipient
+     * @param message   Message to send
+     * @return true if the message was sent, false if no server could send it
+     */
+    public boolean sendPrivateMessage(String recipient, String message) {
+        return send(c -> c.sendPrivateMessage(recipient, message));
+    }
+
+    /**
+     * Ask the healthiest server for the list of users.
+     */
+    public void refreshUserList() {
+        send(c -> {
+            c.refreshUserList();
+            return c.isConnectionActive();
+        });
+    }
+
+    /**
+     * Register a listener for the merged events of all the servers.
+     *
+     * @param listener The listener
+     */
+    public void addListener(ChatListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(ChatListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return host:port of the server the messages are sent through now, null if none is healthy
+     */
+    public synchronized String getActiveServer() {
+        Session s = select();
+        return s != null ? s.toString() : null;
+    }
+
+    /**
+     * @return The state of every server, in the order they were added
+     */
+    public synchronized List<ServerStatus> getServerStatus() {
+        Session chosen = select();
+        long now = System.nanoTime();
+        List<ServerStatus> status = new ArrayList<>();
+        for (Session s : sessions) {
+            status.add(new ServerStatus(s.toString(), s.client.isConnectionActive(), isHealthy(s, now),
+                    s == chosen, s.rttMillis));
+        }
+        return status;
+    }
+
+    /**
+     * @return Number of times the messages were moved away from a server which died
+     */
+    public synchronized long getFailovers() {
+        return failovers;
+    }
+
+    /**
+     * @return Number of probes sent
+     */
+    public synchronized long getProbes() {
+        return probes;
+    }
+
+    /**
+     * @return Number of times a probe was found unanswered after the timeout
+     */
+    public synchronized long getProbeTimeouts() {
+        return probeTimeouts;
+    }
+
+    /**
+     * @return Number of successful reconnections
+     */
+    public synchronized long getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * Set how the messages received from several servers are deduplicated. By default a DuplicateFilter with the
+     * default window and capacity is used.
+     *
+     * @param filter Filter for the merged messages, null to deliver every message received
+     */
+    public void setDuplicateFilter(DuplicateFilter filter) {
+        this.dedup = filter;
+    }
+
+    /**
+     * @return The filter of the merged messages, for its counters; null if the messages are not deduplicated
+     */
+    public DuplicateFilter getDuplicateFilter() {
+        return dedup;
+    }
+}
@@ -0,0 +1,87 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Intern table for usernames: every name is kept as one shared String instance, instead of a new copy for every
+ * received message and user list. TCPClient interns the senders of the messages and the names of the user lists
+ * in the same table, and several clients can share a table.
+ * <p>
+ * The table is bounded: when it holds the maximum number of names, new names are not added (they are returned
+ * as they are), so a stream of unique names can't make it grow without limit.
+ */
+public class NameTable {
+    public static final int DEFAULT_MAX_NAMES = 65536;
+
+    private final int maxNames;
+    private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    public NameTable() {
+        this(DEFAULT_MAX_NAMES);
+    }
+
+    /**
+     * @param maxNames Maximum number of names in the table
+     */
+    public NameTable(int maxNames) {
+        this.maxNames = maxNames;
+    }
+
+    /**
+     * @param name A name
+     * @return The shared instance of the name; the name itself when it is new and the table is full
+     */
+    public String intern(String name) {
+        String shared = names.get(name);
+        if (shared != null) {
+            hits.increment();
+            return shared;
+        }
+        if (names.size() >= maxNames) {
+            overflows.increment();
+            return name;
+        }
+        shared = names.putIfAbsent(name, name);
+        misses.increment();
+        return shared != null ? shared : name;
+    }
+
+    /**
+     * Remove all the names, for example when the users of a big room have changed.
+     */
+    public void clear() {
+        names.clear();
+    }
+
+    /**
+     * @return Number of names in the table
+     */
+    public int getSize() {
+        return names.size();
+    }
+
+    /**
+     * @return Number of names found in the table
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of names added to the table
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Number of new names not added because the table was full
+     */
+    public long getOverflows() {
+        return overflows.sum();
+    }
+}
@@ -0,0 +1,329 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Outbound commands sorted in four priority queues and written by one writer thread. The highest priority
+ * non-empty queue is served first, so a login or a user list refresh does not wait behind thousands of public
+ * messages. Commands are written in batches and flushed when the queues run empty (or every MAX_BATCH
+ * commands).
+ * <p>
+ * Starvation protection: a command which has waited longer than the maximum wait is served before the higher
+ * priorities, oldest first, except CONTROL, which always goes first. Such aged commands get at most one of every
+ * AGED_SHARE turns, so under a sustained backlog (where every head is old) the priorities still hold for the
+ * other turns and the lower priorities still make progress.
+ */
+public class OutboundQueue {
+    /**
+     * Priorities, highest first.
+     */
+    public enum Priority {
+        CONTROL, PRIVATE, PUBLIC, BULK
+    }
+
+    /**
+     * Where the writer thread writes the commands.
+     */
+    public interface Sink {
+        /**
+         * Write a command, then run its afterWrite action before anything else can be written. The sink takes
+         * the attachment only if it returns normally.
+         *
+         * @param command    The command
+         * @param attachment What was submitted with the command, may be null
+         * @param afterWrite Run right after the command is written, null if nothing
+         * @throws IOException When writing fails
+         */
+        void write(String command, Object attachment, Action afterWrite) throws IOException;
+
+        void flush() throws IOException;
+
+        /**
+         * Called on the writer thread when writing failed. The writer thread stops after this.
+         *
+         * @param e          The error
+         * @param attachment Attachment of the command whose write failed, null if none or if flushing failed
+         */
+        void failed(IOException e, Object attachment);
+    }
+
+    /**
+     * Something to do on the writer thread right after a command is written, for example switching the codec
+     * after an extension request.
+     */
+    public interface Action {
+        void run() throws IOException;
+    }
+
+    // Flush at least this often when the queues do not run empty
+    public static final int MAX_BATCH = 64;
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final long DEFAULT_MAX_WAIT_MS = 500;
+    // At most one of this many commands (after CONTROL) is taken because it waited too long
+    public static final int AGED_SHARE = 4;
+
+    private static class Entry {
+        final String command;
+        final Action afterWrite;
+        final Object attachment;
+        final long enqueued;
+
+        Entry(String command, Action afterWrite, Object attachment, long enqueued) {
+            this.command = command;
+            this.afterWrite = afterWrite;
+            this.attachment = attachment;
+            this.enqueued = enqueued;
+        }
+    }
+
+    private final Sink sink;
+    private final LongSupplier clock;
+    private final List<ArrayDeque<Entry>> queues = new ArrayList<>();
+    private final int capacity;
+    private final long maxWaitNanos;
+    private int total = 0;
+    // Commands taken after the last aged one
+    private int sinceAged = AGED_SHARE;
+    private boolean closed = false;
+    private Thread writer = null;
+
+    private final long[] sent = new long[Priority.values().length];
+    private final long[] rejected = new long[Priority.values().length];
+    private final long[] aged = new long[Priority.values().length];
+    private final long[] latencyNanos = new long[Priority.values().length];
+    private final long[] maxLatencyNanos = new long[Priority.values().length];
+
+    /**
+     * @param sink Where to write the commands
+     */
+    public OutboundQueue(Sink sink) {
+        this(sink, DEFAULT_CAPACITY, DEFAULT_MAX_WAIT_MS, System::nanoTime);
+    }
+
+    /**
+     * @param sink      Where to write the commands
+     * @param capacity  Maximum length of each queue except CONTROL, which is not limited
+     * @param maxWaitMs Commands waiting longer than this are served before the higher priorities
+     * @param clock     Time source in nanoseconds
+     */
+    OutboundQueue(Sink sink, int capacity, long maxWaitMs, LongSupplier clock) {
+        this.sink = sink;
+        this.capacity = capacity;
+        this.maxWaitNanos = maxWaitMs * 1_000_000L;
+        this.clock = clock;
+        for (int i = 0; i < Priority.values().length; i++) {
+            queues.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    public synchronized void start() {
+        if (writer == null) {
+            writer = new Thread(this::run, "outbound-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * Stop the writer thread. The commands which are still queued are dropped.
+     *
+     * @return The attachments of the dropped commands (those that had one), in no particular order
+     */
+    public synchronized List<Object> close() {
+        closed = true;
+        List<Object> attachments = new ArrayList<>();
+        for (ArrayDeque<Entry> q : queues) {
+            for (Entry e : q) {
+                if (e.attachment != null) {
+                    attachments.add(e.attachment);
+                }
+            }
+            q.clear();
+        }
+        total = 0;
+        notifyAll();
+        return attachments;
+    }
+
+    /**
+     * Stop the writer thread, keeping the queued commands for close().
+     */
+    private synchronized void stop() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Queue a command.
+     *
+     * @param command    The command
+     * @param priority   Its priority
+     * @param afterWrite Run by the sink right after the command is written, before anything else; null if nothing
+     * @return true if the command was queued, false if the queue is full or closed
+     */
+    public boolean submit(String command, Priority priority, Action afterWrite) {
+        return submit(command, priority, afterWrite, null);
+    }
+
+    /**
+     * Queue a command with an attachment, which the writer thread gives to the sink together with the command.
+     *
+     * @param command    The command
+     * @param priority   Its priority
+     * @param afterWrite Run by the sink right after the command is written, before anything else; null if nothing
+     * @param attachment Given to the sink with the command, may be null
+     * @return true if the command was queued, false if the queue is full or closed
+     */
+    public synchronized boolean submit(String command, Priority priority, Action afterWrite, Object attachment) {
+        ArrayDeque<Entry> q = queues.get(priority.ordinal());
+        if (closed || (priority != Priority.CONTROL && q.size() >= capacity)) {
+            rejected[priority.ordinal()]++;
+            return false;
+        }
+        q.addLast(new Entry(command, afterWrite, attachment, clock.getAsLong()));
+        total++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Take the next command to write: a CONTROL command if there is one, otherwise the oldest command that has
+     * waited too long (if it is the turn of the aged commands), otherwise the first one of the highest priority
+     * queue. Call with the lock held and total > 0.
+     */
+    private Entry next(long now) {
+        int chosen = -1;
+        if (queues.get(0).isEmpty() && sinceAged >= AGED_SHARE - 1) {
+            long oldest = Long.MAX_VALUE;
+            for (int i = 1; i < queues.size(); i++) {
+                Entry head = queues.get(i).peekFirst();
+                if (head != null && now - head.enqueued > maxWaitNanos && head.enqueued < oldest) {
+                    chosen = i;
+                    oldest = head.enqueued;
+                }
+            }
+        }
+        if (chosen >= 0) {
+            aged[chosen]++;
+            sinceAged = 0;
+        } else {
+            chosen = 0;
+            while (queues.get(chosen).isEmpty()) {
+                chosen++;
+            }
+            if (chosen > 0) {
+                sinceAged++;
+            }
+        }
+        Entry e = queues.get(chosen).pollFirst();
+        total--;
+        long latency = now - e.enqueued;
+        sent[chosen]++;
+        latencyNanos[chosen] += latency;
+        maxLatencyNanos[chosen] = Math.max(maxLatencyNanos[chosen], latency);
+        return e;
+    }
+
+    private void run() {
+        int batch = 0;
+        // Taken from the queue and not written yet: close() no longer sees it
+        Entry e = null;
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (!closed && total == 0) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    e = next(clock.getAsLong());
+                }
+                sink.write(e.command, e.attachment, e.afterWrite);
+                e = null;
+                batch++;
+                boolean empty;
+                synchronized (this) {
+                    empty = total == 0;
+                }
+                if (empty || batch >= MAX_BATCH) {
+                    sink.flush();
+                    batch = 0;
+                }
+            }
+        } catch (IOException ex) {
+            stop();
+            sink.failed(ex, e != null ? e.attachment : null);
+        } catch (InterruptedException ex) {
+            stop();
+        }
+    }
+
+    /**
+     * @param priority Priority
+     * @return Number of commands waiting in the queue
+     */
+    public synchronized int getQueueLength(Priority priority) {
+        return queues.get(priority.ordinal()).size();
+    }
+
+    /**
+     * @param priority Priority
+     * @return Number of commands written
+     */
+    public synchronized long getSent(Priority priority) {
+        return sent[priority.ordinal()];
+    }
+
+    /**
+     * @param priority Priority
+     * @return Number of commands not queued because the queue was full
+     */
+    public synchronized long getRejected(Priority priority) {
+        return rejected[priority.ordinal()];
+    }
+
+    /**
+     * @param priority Priority
+     * @return Number of commands served before higher priorities because they had waited too long
+     */
+    public synchronized long getAged(Priority priority) {
+        return aged[priority.ordinal()];
+    }
+
+    /**
+     * @param priority Priority
+     * @return Average time from submit() to write, in nanoseconds
+     */
+    public synchronized long getAverageLatencyNanos(Priority priority) {
+        int i = priority.ordinal();
+        return sent[i] > 0 ? latencyNanos[i] / sent[i] : 0;
+    }
+
+    /**
+     * @param priority Priority
+     * @return Longest time from submit() to write, in nanoseconds
+     */
+    public synchronized long getMaxLatencyNanos(Priority priority) {
+        return maxLatencyNanos[priority.ordinal()];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Priority p : Priority.values()) {
+            int i = p.ordinal();
+            sb.append(String.format("%s: %d queued, %d sent (%d aged, %d rejected), latency avg %.2f ms max %.2f ms%n",
+                    p, queues.get(i).size(), sent[i], aged[i], rejected[i], getAverageLatencyNanos(p) / 1e6,
+                    maxLatencyNanos[i] / 1e6));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,588 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Durable store-and-forward outbox (see TCPClient.setOutbox()): the messages sent while the client is offline are
+ * appended to a journal file, and sent in order after the next login, at a limited rate.
+ * <p>
+ * Journal: one UTF-8 line per record, fields separated by tabs, with backslash escapes in the text.
+ * "A seq recipient text" appends a message (empty recipient for a public message), "D seq" records that the
+ * server confirmed it (msgok), "F seq error" that the server rejected it (msgerror). On open, the messages
+ * without D or F are pending again. A torn last line (crash while writing) is cut off.
+ * <p>
+ * Group commit: the writers of concurrent appends share one write and one fsync; append() returns when its
+ * record is on disk. The D and F records are written by the drain thread without making anyone wait.
+ * <p>
+ * Bookkeeping is exactly-once: every pending message is removed by exactly one answer. Delivery is at least
+ * once: a message whose answer was lost in a disconnect is sent again after the next login (counted as
+ * resent), and the server may then deliver it twice.
+ */
+public class Outbox implements Closeable {
+    public static final double DEFAULT_DRAIN_RATE = 20;
+    public static final int DEFAULT_DRAIN_BURST = 20;
+    // Messages sent by the drain and not yet answered
+    public static final int DEFAULT_WINDOW = 16;
+    // Wait before sending again a message the client refused while connected, doubled up to the maximum
+    private static final long MIN_RETRY_DELAY_MS = 50;
+    private static final long MAX_RETRY_DELAY_MS = 2000;
+
+    private static class Entry {
+        final long seq;
+        final String recipient;
+        final String text;
+        // Number of the journal record, the entry may be sent when it is on disk
+        final long ticket;
+        boolean sent = false;
+
+        Entry(long seq, String recipient, String text, long ticket) {
+            this.seq = seq;
+            this.recipient = recipient;
+            this.text = text;
+            this.ticket = ticket;
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    // Messages not yet answered, in order
+    private final TreeMap<Long, Entry> pending = new TreeMap<>();
+    private long nextSeq;
+
+    // Group commit: records waiting to be written, and the numbers of the last queued and last durable records
+    private List<byte[]> commitQueue = new ArrayList<>();
+    private long queuedRecords = 0;
+    private long durableRecords = 0;
+    private boolean committing = false;
+    private boolean sync = true;
+
+    // Drain: the client to send with (null when not draining), its pacing, and the messages in flight
+    private TCPClient client = null;
+    private TokenBucket bucket = new TokenBucket(DEFAULT_DRAIN_RATE, DEFAULT_DRAIN_BURST);
+    private int window = DEFAULT_WINDOW;
+    private int inFlight = 0;
+    private Thread drainer = null;
+    private long retryDelayMs = MIN_RETRY_DELAY_MS;
+    private boolean closed = false;
+
+    private long appended = 0;
+    private long commits = 0;
+    private long committedRecords = 0;
+    private long delivered = 0;
+    private long failed = 0;
+    private long resent = 0;
+    private long retries = 0;
+    private long drained = 0;
+    private long drainNanos = 0;
+    private long drainStart = 0;
+
+    private Outbox(File file, FileChannel channel, List<Entry> recovered, long nextSeq) {
+        this.file = file;
+        this.channel = channel;
+        for (Entry e : recovered) {
+            pending.put(e.seq, e);
+        }
+        this.nextSeq = nextSeq;
+    }
+
+    /**
+     * Open an outbox, with the messages still pending in its journal.
+     *
+     * @param file The journal file, created if it does not exist
+     * @return The outbox
+     * @throws IOException When the journal can't be read or opened for writing
+     */
+    public static Outbox open(File file) throws IOException {
+        byte[] content = file.exists() ? Files.readAllBytes(file.toPath()) : new byte[0];
+        int end = content.length;
+        while (end > 0 && content[end - 1] != '\n') {
+            end--;
+        }
+        TreeMap<Long, Entry> recovered = new TreeMap<>();
+        long nextSeq = 1;
+        for (String line : new String(content, 0, end, StandardCharsets.UTF_8).split("\n")) {
+            String[] fields = line.split("\t", 4);
+            if (fields.length < 2) {
+                continue;
+            }
+            long seq;
+            try {
+                seq = Long.parseLong(fields[1]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            nextSeq = Math.max(nextSeq, seq + 1);
+            if (fields[0].equals("A") && fields.length == 4) {
+                String recipient = fields[2].isEmpty() ? null : unescape(fields[2]);
+                recovered.put(seq, new Entry(seq, recipient, unescape(fields[3]), 0));
+            } else {
+                recovered.remove(seq);
+            }
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // Nothing pending: start with an empty journal. Otherwise cut off a torn last line.
+        channel.truncate(recovered.isEmpty() ? 0 : end);
+        channel.position(channel.size());
+        return new Outbox(file, channel, new ArrayList<>(recovered.values()), nextSeq);
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                sb.append(n == 'n' ? '\n' : n == 'r' ? '\r' : n == 't' ? '\t' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Queue a journal record. Call with the lock held.
+     *
+     * @return The number of the record, for commit()
+     */
+    private long enqueue(String record) {
+        commitQueue.add((record + "\n").getBytes(StandardCharsets.UTF_8));
+        return ++queuedRecords;
+    }
+
+    /**
+     * Wait until the given record is on disk. When no write is going on, this thread writes all the queued
+     * records, for itself and the others (group commit).
+     */
+    private void commit(long ticket) throws IOException {
+        while (true) {
+            List<byte[]> batch;
+            long upTo;
+            synchronized (this) {
+                while (committing && durableRecords < ticket) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the outbox journal");
+                    }
+                }
+                if (durableRecords >= ticket) {
+                    return;
+                }
+                committing = true;
+                batch = commitQueue;
+                commitQueue = new ArrayList<>();
+                upTo = queuedRecords;
+            }
+            boolean written = false;
+            try {
+                int size = 0;
+                for (byte[] record : batch) {
+                    size += record.length;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(size);
+                for (byte[] record : batch) {
+                    buffer.put(record);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (sync) {
+                    channel.force(false);
+                }
+                written = true;
+            } finally {
+                synchronized (this) {
+                    committing = false;
+                    if (written) {
+                        durableRecords = upTo;
+                        commits++;
+                        committedRecords += batch.size();
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Store a message to be sent after the next login. Returns when the message is on disk (see setSync()).
+     *
+     * @param recipient Username of the recipient of a private message, null for a public message
+     * @param text      Message text
+     * @return The sequence number of the message
+     * @throws IOException When the journal can't be written; the message is not stored then
+     */
+    public long append(String recipient, String text) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Outbox is closed");
+            }
+            long seq = nextSeq++;
+            long ticket = enqueue("A\t" + seq + "\t" + (recipient != null ? escape(recipient) : "") + "\t"
+                    + escape(text));
+            entry = new Entry(seq, recipient, text, ticket);
+            pending.put(seq, entry);
+        }
+        try {
+            commit(entry.ticket);
+        } catch (IOException e) {
+            synchronized (this) {
+                pending.remove(entry.seq);
+            }
+            throw e;
+        }
+        synchronized (this) {
+            appended++;
+            notifyAll();
+        }
+        return entry.seq;
+    }
+
+    /**
+     * Send the pending messages with the client, in order, on the drain thread. Called by TCPClient after a
+     * login. Draining stops when the client disconnects. A message which the client refuses while connected (rate
+     * limit, full outbound queue) is sent again after a growing delay.
+     *
+     * @param client The logged-in client
+     */
+    public synchronized void startDrain(TCPClient client) {
+        if (closed) {
+            return;
+        }
+        this.client = client;
+        if (drainStart == 0 && !pending.isEmpty()) {
+            drainStart = System.nanoTime();
+        }
+        if (drainer == null) {
+            drainer = new Thread(this::drain, "outbox-drain");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return The next message to send: the first one not sent yet, if it is on disk and the window has room
+     */
+    private Entry nextToSend() {
+        if (client == null || inFlight >= window) {
+            return null;
+        }
+        for (Entry e : pending.values()) {
+            if (!e.sent) {
+                return e.ticket <= durableRecords ? e : null;
+            }
+        }
+        return null;
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Entry next;
+                TCPClient target;
+                long markers;
+                synchronized (this) {
+                    while (!closed && commitQueue.isEmpty() && nextToSend() == null) {
+                        compact();
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    markers = commitQueue.isEmpty() ? 0 : queuedRecords;
+                    next = nextToSend();
+                    target = client;
+                }
+                if (markers > 0) {
+                    commit(markers);
+                }
+                if (next != null) {
+                    send(next, target);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("# Outbox: journal write failed, draining stopped: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Send one message with the client, at the drain rate.
+     */
+    private void send(final Entry entry, final TCPClient target) throws InterruptedException {
+        long delay = bucket.reserve();
+        if (delay > 0) {
+            Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+        }
+        synchronized (this) {
+            if (client != target || entry.sent || !pending.containsKey(entry.seq)) {
+                bucket.refund();
+                return;
+            }
+            entry.sent = true;
+            inFlight++;
+        }
+        boolean ok = target.sendTrackedMessage(entry.recipient, entry.text, error -> answered(entry, error, target));
+        long backoff;
+        synchronized (this) {
+            if (ok) {
+                retryDelayMs = MIN_RETRY_DELAY_MS;
+                return;
+            }
+            entry.sent = false;
+            inFlight--;
+            if (!target.isConnectionActive()) {
+                // Draining goes on after the next login
+                if (client == target) {
+                    client = null;
+                }
+                return;
+            }
+            if (!target.isSendable(entry.text)) {
+                // Too long for the client: it would be refused forever, like a message rejected by the server
+                finished(entry, "Message too long");
+                notifyAll();
+                return;
+            }
+            // Refused while connected (rate limit, full outbound queue, write error): try the same message again
+            retries++;
+            backoff = retryDelayMs;
+            retryDelayMs = Math.min(MAX_RETRY_DELAY_MS, retryDelayMs * 2);
+        }
+        Thread.sleep(backoff);
+    }
+
+    /**
+     * The server answered a message sent by the drain, or the answer can't come any more.
+     */
+    private synchronized void answered(Entry entry, String error, TCPClient target) {
+        inFlight--;
+        if (error != null && !target.isConnectionActive()) {
+            // Disconnected before the answer: send it again after the next login
+            entry.sent = false;
+            resent++;
+            if (client == target) {
+                client = null;
+            }
+        } else {
+            finished(entry, error);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Record the outcome of a drained message. Call with the lock held.
+     *
+     * @param error Why the message was not delivered, null if it was
+     */
+    private void finished(Entry entry, String error) {
+        pending.remove(entry.seq);
+        if (error == null) {
+            enqueue("D\t" + entry.seq);
+            delivered++;
+        } else {
+            enqueue("F\t" + entry.seq + "\t" + escape(error));
+            failed++;
+        }
+        drained++;
+        if (pending.isEmpty() && drainStart != 0) {
+            drainNanos += System.nanoTime() - drainStart;
+            drainStart = 0;
+        }
+    }
+
+    /**
+     * Empty the journal when nothing is pending and everything is written. Call with the lock held.
+     */
+    private void compact() {
+        if (pending.isEmpty() && commitQueue.isEmpty() && !committing) {
+            try {
+                if (channel.size() > 0) {
+                    channel.truncate(0);
+                    channel.position(0);
+                }
+            } catch (IOException e) {
+                System.out.println("# Outbox: journal truncate failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param sync true (the default) to fsync the journal on every group commit, false to leave it to the
+     *             operating system: faster, but messages can be lost if the machine crashes
+     */
+    public synchronized void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * Set the pace of the drain.
+     *
+     * @param ratePerSecond Sustained rate of messages
+     * @param burst         How many messages can be sent at once
+     * @param window        Maximum number of messages sent and not yet answered
+     */
+    public synchronized void setDrainRate(double ratePerSecond, int burst, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Invalid window: " + window);
+        }
+        this.bucket = new TokenBucket(ratePerSecond, burst);
+        this.window = window;
+    }
+
+    /**
+     * Stop the drain and close the journal. Records not yet written are written first.
+     */
+    @Override
+    public void close() throws IOException {
+        long last;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            last = queuedRecords;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            commit(last);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return true if messages are waiting to be sent or answered
+     */
+    public synchronized boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * @return Number of messages waiting to be sent or answered
+     */
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * @return The messages waiting to be sent or answered, in order: the recipient (null for public messages)
+     * and the text
+     */
+    public synchronized List<Map.Entry<String, String>> getPendingMessages() {
+        List<Map.Entry<String, String>> list = new ArrayList<>();
+        for (Entry e : pending.values()) {
+            list.add(new AbstractMap.SimpleImmutableEntry<>(e.recipient, e.text));
+        }
+        return list;
+    }
+
+    /**
+     * @return Number of messages stored since the outbox was opened
+     */
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    /**
+     * @return Number of group commits (writes followed by fsync)
+     */
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    /**
+     * @return Average number of records written per group commit
+     */
+    public synchronized double getAverageCommitSize() {
+        return commits == 0 ? 0 : (double) committedRecords / commits;
+    }
+
+    /**
+     * @return Number of drained messages confirmed by the server
+     */
+    public synchronized long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return Number of drained messages rejected by the server, or too long to be sent
+     */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return Number of messages which will be sent again because their answer was lost in a disconnect
+     */
+    public synchronized long getResent() {
+        return resent;
+    }
+
+    /**
+     * @return Number of times the client refused to send a message while connected, and the drain tried again
+     */
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return Messages answered per second while draining, over all the drains that emptied the outbox
+     */
+    public synchronized double getDrainThroughput() {
+        return drainNanos == 0 ? 0 : drained * 1e9 / drainNanos;
+    }
+
+    /**
+     * @return The journal file
+     */
+    public File getFile() {
+        return file;
+    }
+}
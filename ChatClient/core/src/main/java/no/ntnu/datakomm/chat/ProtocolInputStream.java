@@ -0,0 +1,235 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Buffered input for the protocol codecs. Unlike BufferedInputStream it is not synchronized (only the listen
+ * thread reads) and it can scan a whole line in the buffer at once. The codecs share one instance, so nothing is
+ * lost when the framing changes in the middle of a session. For the same reason a filter (for example
+ * decompression) can be inserted below the buffer, see applyFilter().
+ * <p>
+ * Lines are bounded: readLine() never buffers more than the maximum line length, so a server can not make the
+ * client grow its buffers without limit. Longer lines are returned in pieces (see isLineComplete()) and the
+ * codecs decide whether to process them piece by piece or to skip them.
+ */
+public class ProtocolInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 8192;
+    // Enough for any chat message; the long user lists are handled in pieces
+    public static final int DEFAULT_MAX_LINE_LENGTH = 64 * 1024;
+
+    private InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    // The last line read by readLine(), reused for all lines and grown when needed
+    private byte[] line = new byte[256];
+    private final int maxLineLength;
+    // False when the last readLine() stopped at the maximum length, before the end of the line
+    private boolean lineComplete = true;
+    private final FrameStats stats;
+
+    /**
+     * @param in The stream to read from
+     */
+    public ProtocolInputStream(InputStream in) {
+        this(in, DEFAULT_MAX_LINE_LENGTH, new FrameStats());
+    }
+
+    /**
+     * @param in            The stream to read from
+     * @param maxLineLength Longest line (or frame) that is read at once, in bytes
+     * @param stats         Where the codecs count the oversized lines and frames
+     */
+    public ProtocolInputStream(InputStream in, int maxLineLength, FrameStats stats) {
+        if (maxLineLength < 1) {
+            throw new IllegalArgumentException("Invalid maximum line length: " + maxLineLength);
+        }
+        this.in = in;
+        this.maxLineLength = maxLineLength;
+        this.stats = stats;
+    }
+
+    /**
+     * @return Longest line (or frame) that is read at once, in bytes
+     */
+    public int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    /**
+     * @return Counters of the oversized lines and frames
+     */
+    public FrameStats getFrameStats() {
+        return stats;
+    }
+
+    /**
+     * From now on, read everything through the given filter. The bytes which are already buffered but not read
+     * yet go through the filter too.
+     *
+     * @param filter Creates the filter stream on top of the current input
+     */
+    public void applyFilter(Function<InputStream, InputStream> filter) {
+        InputStream rest = in;
+        if (position < limit) {
+            byte[] unread = Arrays.copyOfRange(buffer, position, limit);
+            rest = new SequenceInputStream(new ByteArrayInputStream(unread), in);
+        }
+        position = 0;
+        limit = 0;
+        in = filter.apply(rest);
+    }
+
+    /**
+     * Make sure there are unread bytes in the buffer.
+     *
+     * @return false at end of stream
+     */
+    private boolean fill() throws IOException {
+        if (position < limit) {
+            return true;
+        }
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == limit && len >= buffer.length) {
+            // Large reads go directly to the destination
+            return in.read(b, off, len);
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - position);
+        System.arraycopy(buffer, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - position) + in.available();
+    }
+
+    /**
+     * Read one line. The bytes of the line, without the line ending (\n or \r\n), are available in
+     * getLineBytes() until the next call.
+     * <p>
+     * At most getMaxLineLength() bytes are read. If the line is longer, isLineComplete() returns false and the
+     * following calls return the rest of the same line, or skipLine() discards it.
+     *
+     * @return Length of the line in bytes, -1 if the stream ended before any byte of a new line
+     * @throws IOException When reading fails
+     */
+    public int readLine() throws IOException {
+        int length = 0;
+        lineComplete = true;
+        while (fill()) {
+            int start = position;
+            int end = start;
+            int stop = Math.min(limit, start + maxLineLength - length);
+            while (end < stop && buffer[end] != '\n') {
+                end++;
+            }
+            int n = end - start;
+            if (length + n > line.length) {
+                line = Arrays.copyOf(line, Math.min(maxLineLength, Math.max(line.length * 2, length + n)));
+            }
+            System.arraycopy(buffer, start, line, length, n);
+            length += n;
+            if (end < limit && buffer[end] == '\n') {
+                // Found the newline, consume it
+                position = end + 1;
+                return stripCarriageReturn(length);
+            }
+            position = end;
+            if (length == maxLineLength) {
+                lineComplete = false;
+                return length;
+            }
+        }
+        return length == 0 ? -1 : stripCarriageReturn(length);
+    }
+
+    /**
+     * @return false if the last readLine() returned only the beginning of a line because it was too long
+     */
+    public boolean isLineComplete() {
+        return lineComplete;
+    }
+
+    /**
+     * Discard the rest of the current line, after readLine() returned a piece of it.
+     *
+     * @return Number of bytes discarded, not including the line ending
+     * @throws IOException When reading fails
+     */
+    public long skipLine() throws IOException {
+        long skipped = 0;
+        while (!lineComplete) {
+            int length = readLine();
+            if (length < 0) {
+                break;
+            }
+            skipped += length;
+        }
+        return skipped;
+    }
+
+    /**
+     * Discard bytes that are not part of a line, for example the payload of a rejected frame.
+     *
+     * @param n Number of bytes to discard
+     * @return Number of bytes discarded, less than n only at end of stream
+     * @throws IOException When reading fails
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            int step = (int) Math.min(n - skipped, limit - position);
+            position += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    private int stripCarriageReturn(int length) {
+        return (length > 0 && line[length - 1] == '\r') ? length - 1 : length;
+    }
+
+    /**
+     * @return Buffer with the bytes of the last line read by readLine()
+     */
+    public byte[] getLineBytes() {
+        return line;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,77 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Function;
+
+/**
+ * Buffered output for the protocol codecs. Not synchronized, TCPClient serializes the writers. A filter (for
+ * example compression) can be inserted below the buffer in the middle of a session, the codecs keep writing to
+ * the same object.
+ */
+public class ProtocolOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 8192;
+
+    private OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count = 0;
+
+    /**
+     * @param out The stream to write to
+     */
+    public ProtocolOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * From now on, write everything through the given filter. The buffered bytes are flushed unfiltered first.
+     *
+     * @param filter Creates the filter stream on top of the current output
+     * @throws IOException When flushing fails
+     */
+    public void applyFilter(Function<OutputStream, OutputStream> filter) throws IOException {
+        flush();
+        out = filter.apply(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= buffer.length) {
+            flushBuffer();
+            out.write(b, off, len);
+            return;
+        }
+        if (len > buffer.length - count) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+}
@@ -0,0 +1,260 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client-side flood control for the commands that the server rate-limits: msg, privmsg and users. A command must
+ * get a token from its own command bucket (if configured), from the session bucket (if configured) and from the
+ * shared bucket (if any, the same instance can be given to the limiters of several clients). Other commands
+ * (login, help, protocol extensions) are never limited.
+ * <p>
+ * When a bucket is empty, the policy decides: QUEUE makes the sender wait for the tokens (but not longer than
+ * the maximum delay, then the command is rejected), REJECT fails the command at once.
+ */
+public class RateLimiter {
+    // Command words that are rate-limited
+    public static final String[] LIMITED_COMMANDS = {"msg", "privmsg", "users"};
+
+    /**
+     * What to do with a command when there are no tokens for it.
+     */
+    public enum Policy {
+        QUEUE, REJECT
+    }
+
+    private final Policy policy;
+    private final TokenBucket shared;
+    private TokenBucket session = null;
+    private final Map<String, TokenBucket> commandBuckets = new HashMap<>();
+    private long maxDelayNanos = 5_000_000_000L;
+
+    private long allowed = 0;
+    private long delayed = 0;
+    private long rejected = 0;
+    private long delayNanos = 0;
+
+    /**
+     * @param policy What to do with a command when there are no tokens for it
+     */
+    public RateLimiter(Policy policy) {
+        this(policy, null);
+    }
+
+    /**
+     * @param policy What to do with a command when there are no tokens for it
+     * @param shared Bucket shared with other clients, null if none
+     */
+    public RateLimiter(Policy policy, TokenBucket shared) {
+        this.policy = policy;
+        this.shared = shared;
+    }
+
+    /**
+     * Limit all the limited commands of this client together.
+     *
+     * @param ratePerSecond Sustained rate, commands per second
+     * @param burst         How many commands can be sent at once after a pause
+     */
+    public synchronized void setSessionLimit(double ratePerSecond, int burst) {
+        session = new TokenBucket(ratePerSecond, burst);
+    }
+
+    /**
+     * Limit one command.
+     *
+     * @param command       One of LIMITED_COMMANDS
+     * @param ratePerSecond Sustained rate, commands per second
+     * @param burst         How many commands can be sent at once after a pause
+     */
+    public synchronized void setCommandLimit(String command, double ratePerSecond, int burst) {
+        setCommandBucket(command, new TokenBucket(ratePerSecond, burst));
+    }
+
+    synchronized void setCommandBucket(String command, TokenBucket bucket) {
+        if (!isLimited(command)) {
+            throw new IllegalArgumentException("Command is not rate-limited: " + command);
+        }
+        commandBuckets.put(command, bucket);
+    }
+
+    synchronized void setSessionBucket(TokenBucket bucket) {
+        session = bucket;
+    }
+
+    /**
+     * With the QUEUE policy, reject the commands which would have to wait longer than this.
+     *
+     * @param millis Maximum delay in milliseconds
+     */
+    public synchronized void setMaxDelay(long millis) {
+        this.maxDelayNanos = millis * 1_000_000L;
+    }
+
+    /**
+     * @param command Command word
+     * @return true if the command is rate-limited
+     */
+    public static boolean isLimited(String command) {
+        for (String c : LIMITED_COMMANDS) {
+            if (c.equals(command)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized List<TokenBucket> bucketsFor(String command) {
+        List<TokenBucket> buckets = new ArrayList<>(3);
+        TokenBucket bucket = commandBuckets.get(command);
+        if (bucket != null) {
+            buckets.add(bucket);
+        }
+        if (session != null) {
+            buckets.add(session);
+        }
+        if (shared != null) {
+            buckets.add(shared);
+        }
+        return buckets;
+    }
+
+    /**
+     * Take the tokens for a command.
+     *
+     * @param command Command word
+     * @return -1 if the command is rejected, otherwise how long to wait before sending it (nanoseconds)
+     */
+    long admit(String command) {
+        return isLimited(command) ? admit(bucketsFor(command)) : 0;
+    }
+
+    private long admit(List<TokenBucket> buckets) {
+        if (policy == Policy.REJECT) {
+            for (int i = 0; i < buckets.size(); i++) {
+                if (!buckets.get(i).tryTake()) {
+                    for (int j = 0; j < i; j++) {
+                        buckets.get(j).refund();
+                    }
+                    count(-1);
+                    return -1;
+                }
+            }
+            count(0);
+            return 0;
+        }
+        long wait = 0;
+        for (TokenBucket bucket : buckets) {
+            wait = Math.max(wait, bucket.reserve());
+        }
+        if (wait > maxDelayNanos) {
+            for (TokenBucket bucket : buckets) {
+                bucket.refund();
+            }
+            count(-1);
+            return -1;
+        }
+        count(wait);
+        return wait;
+    }
+
+    private synchronized void count(long wait) {
+        if (wait < 0) {
+            rejected++;
+        } else if (wait > 0) {
+            delayed++;
+            delayNanos += wait;
+        } else {
+            allowed++;
+        }
+    }
+
+    /**
+     * Wait until the command may be sent.
+     *
+     * @param command Command word
+     * @return true if the command may be sent now, false if it is rejected
+     */
+    public boolean acquire(String command) {
+        if (!isLimited(command)) {
+            return true;
+        }
+        List<TokenBucket> buckets = bucketsFor(command);
+        long wait = admit(buckets);
+        if (wait < 0) {
+            return false;
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+            } catch (InterruptedException e) {
+                // The command is not sent: give the reserved tokens to the next ones
+                for (TokenBucket bucket : buckets) {
+                    bucket.refund();
+                }
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param command One of LIMITED_COMMANDS
+     * @return Tokens left in the bucket of the command, NaN if the command has no own limit
+     */
+    public synchronized double getTokens(String command) {
+        TokenBucket bucket = commandBuckets.get(command);
+        return bucket != null ? bucket.getTokens() : Double.NaN;
+    }
+
+    /**
+     * @return Tokens left in the session bucket, NaN if there is no session limit
+     */
+    public synchronized double getSessionTokens() {
+        return session != null ? session.getTokens() : Double.NaN;
+    }
+
+    /**
+     * @return Tokens left in the shared bucket, NaN if there is none
+     */
+    public double getSharedTokens() {
+        return shared != null ? shared.getTokens() : Double.NaN;
+    }
+
+    /**
+     * @return Number of limited commands sent without waiting
+     */
+    public synchronized long getAllowed() {
+        return allowed;
+    }
+
+    /**
+     * @return Number of commands which had to wait for tokens
+     */
+    public synchronized long getDelayed() {
+        return delayed;
+    }
+
+    /**
+     * @return Number of commands which were rejected
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return Total time the delayed commands had to wait, in nanoseconds
+     */
+    public synchronized long getDelayNanos() {
+        return delayNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d allowed, %d delayed (%.1f ms in total), %d rejected",
+                policy, allowed, delayed, delayNanos / 1e6, rejected);
+    }
+}
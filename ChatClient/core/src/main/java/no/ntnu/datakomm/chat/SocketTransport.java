@@ -0,0 +1,67 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Transport over a regular TCP socket. This is what TCPClient uses by default.
+ */
+public class SocketTransport implements Transport {
+    private final Socket socket;
+
+    /**
+     * Connect to the server (the three-way handshake is done here).
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @throws IOException When the connection fails
+     */
+    public SocketTransport(String host, int port) throws IOException {
+        this(new Socket(host, port));
+    }
+
+    /**
+     * Use an already connected socket, for example one accepted by a server socket.
+     *
+     * @param socket The connected socket
+     * @throws IOException When the socket options can not be set
+     */
+    public SocketTransport(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setKeepAlive(true);
+    }
+
+    /**
+     * @return A factory which opens a new TCP socket for every transport
+     */
+    public static TransportFactory factory() {
+        return SocketTransport::new;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket.isConnected() && !socket.isClosed();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return socket.getInetAddress().toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
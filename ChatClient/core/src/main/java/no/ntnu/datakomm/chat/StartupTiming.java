@@ -0,0 +1,37 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the time to first message: from the start of the JVM until the first chat message is written to the
+ * server. It includes everything the user waits for: JVM startup, class loading, (GUI) initialization,
+ * connecting and logging in. The clients report it once per run.
+ */
+public final class StartupTiming {
+    private static final AtomicBoolean reported = new AtomicBoolean(false);
+
+    private StartupTiming() {
+    }
+
+    /**
+     * @return Milliseconds since the JVM started
+     */
+    public static long millisSinceJvmStart() {
+        return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    /**
+     * Report the time to first message, unless it has been reported already.
+     *
+     * @param out    Where to print it
+     * @param client Name of the client, for example "gui" or "cli"
+     */
+    public static void firstMessageSent(PrintStream out, String client) {
+        if (reported.compareAndSet(false, true)) {
+            out.println("# Time to first message (" + client + "): " + millisSinceJvmStart()
+                    + " ms since JVM start");
+        }
+    }
+}
@@ -0,0 +1,1483 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TCPClient {
+    // The codecs encode/decode the commands on the buffered streams. They are replaced when the framing changes.
+    private volatile CommandCodec toServer;
+    private volatile CommandCodec fromServer;
+    private ProtocolInputStream fromServerStream;
+    private ProtocolOutputStream toServerStream;
+    // Commands are written from several threads (GUI, user polling), one at a time
+    private final Object writeLock = new Object();
+    private Transport connection;
+    private String serverIP;
+
+    // Opens the connections. Sockets by default, the tests use in-process loopback transports.
+    private final TransportFactory transportFactory;
+
+
+    // Hint: if you want to store a message for the last error, store it here
+    private String lastError = null;
+
+    // Commands and protocol extensions listed in the last "supported" response of the server
+    private volatile Set<String> serverCommands = Collections.emptySet();
+
+    // Compression of the "deflate" extension: blocks smaller than the threshold are sent uncompressed
+    private int compressionThreshold = CompressedOutputStream.DEFAULT_THRESHOLD;
+    private CompressionStats sentCompression = new CompressionStats();
+    private CompressionStats receivedCompression = new CompressionStats();
+
+    // Hard limits of the memory used for received commands: longer lines are read in pieces or skipped, and
+    // the names of a user list (or supported list) received in pieces are not collected beyond maxListEntries
+    public static final int DEFAULT_MAX_LIST_ENTRIES = 100000;
+    private int maxLineLength = ProtocolInputStream.DEFAULT_MAX_LINE_LENGTH;
+    private int maxListEntries = DEFAULT_MAX_LIST_ENTRIES;
+    private FrameStats frameStats = new FrameStats();
+    // Entries of a list received in pieces, collected until the last piece (listen thread only)
+    private List<String> partialList = null;
+    private volatile long droppedListEntries = 0;
+
+    // The user list listeners get the lists piece by piece. When collectUserLists is off, the lists received
+    // in pieces are not collected for the ChatListeners at all.
+    private final List<UserListListener> userListListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean collectUserLists = true;
+    // Names delivered so far of the user list being received, -1 between lists (listen thread only)
+    private int streamedUsers = -1;
+    // True while the pieces of a user list are being received (listen thread only)
+    private boolean userListInPieces = false;
+
+    // With the priority queues on, a writer thread sends the commands; null when sending on the caller's thread
+    private boolean priorityQueues = false;
+    private volatile OutboundQueue outboundQueue = null;
+
+    // Messages longer than this (bytes of text) are sent in fragments, 0 to send them whole
+    private volatile int maxMessageBytes = 0;
+    private final AtomicInteger fragmentIds = new AtomicInteger();
+    // The longest id of a fragmented message, for checking that a message can be sent before fragmenting it
+    private static final String LONGEST_FRAGMENT_ID = Integer.toString(Integer.MIN_VALUE, Character.MAX_RADIX);
+    // Puts together the fragmented messages received in the current connection
+    private MessageReassembler reassembler = new MessageReassembler();
+
+    // The msg/privmsg commands written and not yet answered with msgok/msgerror, in the order they were
+    // written. The messages of sendPrivateMessages() have an AckTag, those of sendTrackedMessage() their
+    // DeliveryCallback (held in a HeldAck when written directly), the others UNTRACKED.
+    private static final Object UNTRACKED = new Object();
+    private static final int MAX_PENDING_ACKS = 65536;
+    // sendPrivateMessages() flushes after this many messages
+    public static final int FAN_OUT_BATCH = 64;
+    private final ArrayDeque<Object> pendingAcks = new ArrayDeque<>();
+
+    /**
+     * Place in pendingAcks of a message whose sender does not know yet whether it was written. An answer which
+     * arrives before release() is kept and delivered by release(), or dropped if the message counts as not sent.
+     */
+    private static final class HeldAck {
+        private boolean released = false;
+        private Object tag = null;
+        private boolean answered = false;
+        private String error = null;
+
+        /**
+         * @param tag The tag to give the answer to, null if the message counts as not sent
+         */
+        void release(Object tag) {
+            synchronized (this) {
+                released = true;
+                this.tag = tag;
+                if (!answered) {
+                    return;
+                }
+            }
+            deliverAck(tag, error);
+        }
+
+        void answer(String error) {
+            Object t;
+            synchronized (this) {
+                if (!released) {
+                    answered = true;
+                    this.error = error;
+                    return;
+                }
+                t = tag;
+            }
+            deliverAck(t, error);
+        }
+    }
+
+    /**
+     * Identifies the recipient of a sendPrivateMessages() message when its response arrives.
+     */
+    private static final class AckTag {
+        final FanOutResult result;
+        final int index;
+
+        AckTag(FanOutResult result, int index) {
+            this.result = result;
+            this.index = index;
+        }
+    }
+
+    // Client-side flood control of msg, privmsg and users, null when not limited
+    private volatile RateLimiter rateLimiter = null;
+
+    // When set, all the sent and received lines are recorded here
+    private volatile TrafficCapture trafficCapture = null;
+
+    // Listeners are added from the GUI thread while the listen thread notifies them, hence copy-on-write
+    private final List<ChatListener> listeners = new CopyOnWriteArrayList<>();
+    // Messages sent while offline are stored here and sent after the next login, null when off
+    private volatile Outbox outbox = null;
+    // One shared String per username, for the message senders and the user lists
+    private volatile NameTable names = new NameTable();
+    // Drops spam before a message object is even created, null when off
+    private volatile FloodFilter floodFilter = null;
+    // Receive pipeline: every incoming message goes through these stages before the listeners get it
+    private final List<MessageStage> messageStages = new CopyOnWriteArrayList<>();
+
+    /**
+     * Create a client which connects to chat servers over TCP sockets.
+     */
+    public TCPClient() {
+        this(SocketTransport.factory());
+    }
+
+    /**
+     * Create a client which opens its connections with the given factory.
+     *
+     * @param transportFactory Factory used by connect() to open the connection to the server
+     */
+    public TCPClient(TransportFactory transportFactory) {
+        this.transportFactory = transportFactory;
+    }
+
+    /**
+     * Prints logMsg to console with formatting: "# TCPClientLog: " + logMsg
+     * @param logMsg String to print.
+     */
+    private void log(String logMsg) {
+        System.out.println("# TCPClientLog: " + logMsg);
+    }
+
+    /**
+     * Connect to a chat server.
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @return True on success, false otherwise
+     */
+    public boolean connect(String host, int port) {
+        // Answers expected on an earlier connection will never come
+        failPendingAcks("Disconnected");
+        try {
+            connection = transportFactory.open(host, port);
+            frameStats = new FrameStats();
+            fromServerStream = new ProtocolInputStream(connection.getInputStream(), maxLineLength, frameStats);
+            toServerStream = new ProtocolOutputStream(connection.getOutputStream());
+            // The protocol is UTF-8 on every host, whatever the platform default charset is
+            toServer = new TextLineCodec(fromServerStream, toServerStream, StandardCharsets.UTF_8);
+            fromServer = toServer;
+            serverCommands = Collections.emptySet();
+            sentCompression = new CompressionStats();
+            receivedCompression = new CompressionStats();
+            partialList = null;
+            streamedUsers = -1;
+            userListInPieces = false;
+            outboundQueue = priorityQueues ? createOutboundQueue() : null;
+            reassembler = new MessageReassembler();
+            serverIP = connection.getRemoteAddress();
+            log("Connected to server: '" + serverIP + "' at port: " + port);
+
+            return true; // connection and writer/reader creation successful
+        } catch (IOException e) {
+            log("Connection Exception: " + e.getMessage());
+            return false; // connection failed
+        }
+        // TODO Step 1: implement this method
+        // Hint: Remember to process all exceptions and return false on error
+        // Hint: Remember to set up all the necessary input/output stream variables
+
+    }
+
+    /**
+     * Close the socket. This method must be synchronized, because several
+     * threads may try to call it. For example: When "Disconnect" button is
+     * pressed in the GUI thread, the connection will get closed. Meanwhile, the
+     * background thread trying to read server's response will get error in the
+     * input stream and may try to call this method when the socket is already
+     * in the process of being closed. with "synchronized" keyword we make sure
+     * that no two threads call this method in parallel.
+     */
+    public synchronized void disconnect() {
+        // TODO Step 4: implement this method
+        // Hint: remember to check if connection is active
+        if (isConnectionActive()) {
+            try {
+                OutboundQueue queue = outboundQueue;
+                List<Object> unsent = Collections.emptyList();
+                if (queue != null) {
+                    unsent = queue.close();
+                    outboundQueue = null;
+                }
+                connection.close();
+                // A writer which is still writing registers its ack before it releases the write lock
+                synchronized (writeLock) {
+                    failPendingAcks("Disconnected");
+                }
+                for (Object tag : unsent) {
+                    deliverAck(tag, "Disconnected");
+                }
+                connection = null;
+                onDisconnect(); // Notify listeners of event
+               log("Connection closed.");
+            } catch (IOException e) {
+                log("Disconnect Exception: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return true if the connection is active (opened), false if not.
+     */
+    public boolean isConnectionActive() {
+        return (connection != null && connection.isOpen());
+    }
+
+    /**
+     * Send a command to server.
+     *
+     * @param cmd A command. It should include the command word and optional attributes, according to the protocol.
+     * @return true on success, false otherwise
+     */
+    private boolean sendCommand(String cmd) {
+        return sendCommand(cmd, priorityOf(commandWord(cmd)), null);
+    }
+
+    /**
+     * Send a command to server, or queue it when the priority queues are on.
+     *
+     * @param cmd        A command. It should include the command word and optional attributes, according to the
+     *                   protocol.
+     * @param priority   Priority of the command in the outbound queues
+     * @param afterWrite Run right after the command is written (before anything else is written), or null
+     * @return true on success (queued, with the priority queues), false otherwise
+     */
+    private boolean sendCommand(String cmd, OutboundQueue.Priority priority, OutboundQueue.Action afterWrite) {
+        return sendCommand(cmd, priority, afterWrite, null);
+    }
+
+    /**
+     * Send a command to server, or queue it when the priority queues are on.
+     *
+     * @param cmd        A command. It should include the command word and optional attributes, according to the
+     *                   protocol.
+     * @param priority   Priority of the command in the outbound queues
+     * @param afterWrite Run right after the command is written (before anything else is written), or null
+     * @param ackTag     For a msg/privmsg: what to notify when the server answers, null if nothing
+     * @return true on success (queued, with the priority queues), false otherwise
+     */
+    private boolean sendCommand(String cmd, OutboundQueue.Priority priority, OutboundQueue.Action afterWrite,
+                                Object ackTag) {
+
+        if (isConnectionActive()){
+            RateLimiter limiter = rateLimiter;
+            if (limiter != null && !limiter.acquire(commandWord(cmd))) {
+                lastError = "Rate limit exceeded";
+                log("Rate limit exceeded, command not sent: " + cmd);
+                return false;
+            }
+            OutboundQueue queue = outboundQueue;
+            if (queue != null) {
+                if (!queue.submit(cmd, priority, afterWrite, ackTag)) {
+                    lastError = "Outbound queue full";
+                    log("Outbound queue full, command not sent: " + cmd);
+                    return false;
+                }
+                return true;
+            }
+            // The answer may arrive before we know whether the write succeeded: hold it until then
+            HeldAck held = ackTag != null ? new HeldAck() : null;
+            synchronized (writeLock) {
+                try {
+                    writeCommand(cmd, held, afterWrite);
+                    toServer.flush();
+                } catch (IOException e) {
+                    log("Send Exception: " + e.getMessage());
+                    if (held != null) {
+                        // We return false, the caller must not get an answer too
+                        held.release(null);
+                    }
+                    return false;
+                }
+            }
+            if (held != null) {
+                held.release(ackTag);
+            }
+            return true;
+
+            // TODO Step 2: Implement this method
+            // Hint: Remember to check if connection is active
+        }
+        else {
+            log("Failed to send command. Is connection active?");
+            return false;
+        }
+    }
+
+    /**
+     * Write a command with the current codec, without flushing. Call with the write lock held.
+     *
+     * @param cmd        The command
+     * @param ackTag     For a msg/privmsg: what to notify when the server answers, null if nothing. It is kept
+     *                   only if the method returns normally.
+     * @param afterWrite Run right after the command is written, null if nothing
+     * @throws IOException When writing fails
+     */
+    private void writeCommand(String cmd, Object ackTag, OutboundQueue.Action afterWrite) throws IOException {
+        toServer.writeCommand(cmd);
+        TrafficCapture capture = trafficCapture;
+        if (capture != null) {
+            capture.recordSent(cmd);
+        }
+        if (afterWrite != null) {
+            afterWrite.run();
+        }
+        if (cmd.startsWith("msg ") || cmd.startsWith("privmsg ")) {
+            expectAck(ackTag != null ? ackTag : UNTRACKED);
+        }
+    }
+
+    /**
+     * Remember that a msg/privmsg was written and its msgok/msgerror is expected.
+     *
+     * @param tag AckTag, DeliveryCallback or HeldAck of the message, or UNTRACKED
+     */
+    private void expectAck(Object tag) {
+        synchronized (pendingAcks) {
+            if (pendingAcks.size() >= MAX_PENDING_ACKS) {
+                // The server does not answer; do not keep waiting forever
+                deliverAck(pendingAcks.pollFirst(), "No response from server");
+            }
+            pendingAcks.addLast(tag);
+        }
+    }
+
+    /**
+     * A msgok (error == null) or msgerror arrived: it answers the oldest message written.
+     *
+     * @param error Error message of msgerror, null for msgok
+     */
+    private void ackReceived(String error) {
+        Object tag;
+        synchronized (pendingAcks) {
+            tag = pendingAcks.pollFirst();
+        }
+        deliverAck(tag, error);
+    }
+
+    /**
+     * Give an answer to the tag of a message.
+     *
+     * @param tag   AckTag, DeliveryCallback or HeldAck; anything else is ignored
+     * @param error Error message, null if the message was delivered
+     */
+    private static void deliverAck(Object tag, String error) {
+        if (tag instanceof AckTag) {
+            AckTag t = (AckTag) tag;
+            if (error == null) {
+                t.result.delivered(t.index);
+            } else {
+                t.result.failed(t.index, error);
+            }
+        } else if (tag instanceof DeliveryCallback) {
+            ((DeliveryCallback) tag).onResult(error);
+        } else if (tag instanceof HeldAck) {
+            ((HeldAck) tag).answer(error);
+        }
+    }
+
+    /**
+     * Fail all the messages waiting for their msgok/msgerror.
+     *
+     * @param error The error to report
+     */
+    private void failPendingAcks(String error) {
+        List<Object> tags;
+        synchronized (pendingAcks) {
+            tags = new ArrayList<>(pendingAcks);
+            pendingAcks.clear();
+        }
+        for (Object tag : tags) {
+            deliverAck(tag, error);
+        }
+    }
+
+    /**
+     * Send the same private message to many recipients. The message is encoded once and written in batches of
+     * FAN_OUT_BATCH messages, one flush per batch; other commands can be sent between the batches. Messages over
+     * the maximum message size are fragmented once, and every recipient gets all the fragments. With the priority
+     * queues on, the messages are queued with the BULK priority instead and written by the writer thread.
+     * <p>
+     * The server's msgok/msgerror responses are matched with the recipients (the server answers every message,
+     * in order) and collected in the returned result.
+     *
+     * @param recipients Usernames of the recipients
+     * @param message    Message to send
+     * @return The outcome for each recipient; the responses of the server are filled in as they arrive
+     */
+    public FanOutResult sendPrivateMessages(Collection<String> recipients, String message) {
+        List<String> list = new ArrayList<>(recipients);
+        FanOutResult result = new FanOutResult(list);
+        if (!isConnectionActive()) {
+            log("Error sending private messages. Is connection open?");
+            for (int i = 0; i < list.size(); i++) {
+                result.failed(i, "Not connected");
+            }
+            return result;
+        }
+        long start = System.nanoTime();
+        int max = maxMessageBytes;
+        if (!isSendable(message, max)) {
+            lastError = "Message too long";
+            log("Message too long, private messages not sent");
+            for (int i = 0; i < list.size(); i++) {
+                result.failed(i, lastError);
+            }
+            return result;
+        }
+        List<String> parts = max <= 0 || MessageFragmenter.fits(message, max)
+                ? Collections.singletonList(message)
+                : MessageFragmenter.split(message, max,
+                        Integer.toString(fragmentIds.incrementAndGet(), Character.MAX_RADIX));
+        RateLimiter limiter = rateLimiter;
+        OutboundQueue queue = outboundQueue;
+        if (queue != null) {
+            queueFanOut(queue, list, parts, limiter, result);
+            result.setWriteNanos(System.nanoTime() - start);
+            return result;
+        }
+        byte[][] encoded = new byte[parts.size()][];
+        for (int k = 0; k < encoded.length; k++) {
+            encoded[k] = parts.get(k).getBytes(StandardCharsets.UTF_8);
+        }
+        boolean[] allowed = new boolean[FAN_OUT_BATCH];
+        int i = 0;
+        try {
+            while (i < list.size()) {
+                int batchStart = i;
+                int end = Math.min(list.size(), i + FAN_OUT_BATCH);
+                // The limiter may make us wait; not while holding the write lock
+                for (int j = batchStart; j < end; j++) {
+                    allowed[j - batchStart] = true;
+                    for (int k = 0; k < encoded.length && limiter != null && allowed[j - batchStart]; k++) {
+                        allowed[j - batchStart] = limiter.acquire("privmsg");
+                    }
+                }
+                synchronized (writeLock) {
+                    for (; i < end; i++) {
+                        if (!allowed[i - batchStart]) {
+                            result.failed(i, "Rate limit exceeded");
+                            continue;
+                        }
+                        writeFanOut(list.get(i), parts, encoded, new AckTag(result, i));
+                    }
+                    toServer.flush();
+                }
+            }
+        } catch (IOException e) {
+            log("Send Exception: " + e.getMessage());
+            for (; i < list.size(); i++) {
+                result.failed(i, "Send Exception: " + e.getMessage());
+            }
+        }
+        result.setWriteNanos(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Queue a fan-out message for every recipient, below the messages typed by the user. The tag of a
+     * recipient goes with its last part.
+     */
+    private void queueFanOut(OutboundQueue queue, List<String> recipients, List<String> parts, RateLimiter limiter,
+                             FanOutResult result) {
+        for (int i = 0; i < recipients.size(); i++) {
+            String error = null;
+            for (int k = 0; k < parts.size() && error == null; k++) {
+                if (limiter != null && !limiter.acquire("privmsg")) {
+                    error = "Rate limit exceeded";
+                } else if (!queue.submit("privmsg " + recipients.get(i) + " " + parts.get(k),
+                        OutboundQueue.Priority.BULK, null, k == parts.size() - 1 ? new AckTag(result, i) : null)) {
+                    error = "Outbound queue full";
+                }
+            }
+            if (error != null) {
+                result.failed(i, error);
+            }
+        }
+    }
+
+    /**
+     * Write all the parts of a fan-out message to one recipient. The tag goes with the last part. Call with the
+     * write lock held.
+     */
+    private void writeFanOut(String recipient, List<String> parts, byte[][] encoded, AckTag tag)
+            throws IOException {
+        TrafficCapture capture = trafficCapture;
+        for (int k = 0; k < encoded.length; k++) {
+            toServer.writeEncoded("privmsg", recipient, encoded[k]);
+            if (capture != null) {
+                capture.recordSent("privmsg " + recipient + " " + parts.get(k));
+            }
+            expectAck(k == encoded.length - 1 ? tag : UNTRACKED);
+        }
+    }
+
+    /**
+     * @param command A command word
+     * @return Priority of the command in the outbound queues: public and private messages below everything else
+     */
+    private static OutboundQueue.Priority priorityOf(String command) {
+        switch (command) {
+            case "msg":
+                return OutboundQueue.Priority.PUBLIC;
+            case "privmsg":
+                return OutboundQueue.Priority.PRIVATE;
+            default:
+                return OutboundQueue.Priority.CONTROL;
+        }
+    }
+
+    /**
+     * Write the commands from priority queues on a writer thread instead of on the calling thread (see
+     * OutboundQueue): control commands (login, users, help) go before private messages, private before public,
+     * public before bulk messages (sendBulkMessage() and sendPrivateMessages()). The send methods return as soon
+     * as the command is queued. Takes effect on the next connect().
+     *
+     * @param enabled true to use the priority queues
+     */
+    public void setPriorityQueues(boolean enabled) {
+        this.priorityQueues = enabled;
+    }
+
+    /**
+     * @return The outbound queues of the current connection (for the counters), null if they are not used
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * Create the outbound queues for a new connection. The writer thread writes with the current codec.
+     */
+    private OutboundQueue createOutboundQueue() {
+        OutboundQueue[] self = new OutboundQueue[1];
+        OutboundQueue queue = new OutboundQueue(new OutboundQueue.Sink() {
+            @Override
+            public void write(String command, Object attachment, OutboundQueue.Action afterWrite)
+                    throws IOException {
+                synchronized (writeLock) {
+                    // disconnect() replaced the queue and failed the expected acks: do not add to them
+                    if (outboundQueue != self[0]) {
+                        throw new IOException("Disconnected");
+                    }
+                    writeCommand(command, attachment, afterWrite);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                synchronized (writeLock) {
+                    toServer.flush();
+                }
+            }
+
+            @Override
+            public void failed(IOException e, Object attachment) {
+                log("Send Exception: " + e.getMessage());
+                disconnect();
+                deliverAck(attachment, "Disconnected");
+            }
+        });
+        self[0] = queue;
+        queue.start();
+        return queue;
+    }
+
+    /**
+     * @param cmd A command
+     * @return The command word of the command
+     */
+    private static String commandWord(String cmd) {
+        int space = cmd.indexOf(' ');
+        return space < 0 ? cmd : cmd.substring(0, space);
+    }
+
+    /**
+     * Limit the rate of the msg, privmsg and users commands (see RateLimiter). With the QUEUE policy the send
+     * methods block until the command may be sent.
+     *
+     * @param limiter The limiter, null to send without limits
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        this.rateLimiter = limiter;
+    }
+
+    /**
+     * @return The rate limiter, null if the commands are not limited
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Send a public message to all the recipients.
+     *
+     * @param message Message to send
+     * @return true if message sent, false on error
+     */
+    public boolean sendPublicMessage(String message) {
+        if (storeInOutbox(null, message)) {
+            return true;
+        }
+        if (isConnectionActive()) {
+           return sendMessage("msg ", message, OutboundQueue.Priority.PUBLIC);
+
+        } else {
+            log("Error sending message. Is connection open?");
+            return false;
+        }
+        // TODO Step 2: implement this method
+
+        // Hint: Reuse sendCommand() method
+        // Hint: update lastError if you want to store the reason for the error.
+    }
+
+    /**
+     * Send a public message with the lowest priority: with the priority queues on, it is written only when
+     * there is nothing more urgent to send. Without the queues this is the same as sendPublicMessage().
+     *
+     * @param message Message to send
+     * @return true if message sent (queued), false on error
+     */
+    public boolean sendBulkMessage(String message) {
+        if (isConnectionActive()) {
+            return sendMessage("msg ", message, OutboundQueue.Priority.BULK);
+        } else {
+            log("Error sending message. Is connection open?");
+            return false;
+        }
+    }
+
+    /**
+     * Send a private message to a single recipient.
+     *
+     * @param recipient username of the chat user who should receive the message
+     * @param message   Message to send
+     * @return true if message sent, false on error
+     */
+    public boolean sendPrivateMessage(String recipient, String message) {
+        if (storeInOutbox(recipient, message)) {
+            return true;
+        }
+        if (isConnectionActive()) {
+            return sendMessage("privmsg " + recipient + " ", message, OutboundQueue.Priority.PRIVATE);
+        } else {
+            log("Error sending private message. Is connection open?");
+            return false;
+        }
+
+        // TODO Step 6: Implement this method
+        // Hint: Reuse sendCommand() method
+        // Hint: update lastError if you want to store the reason for the error.
+    }
+
+    /**
+     * Send a message and get notified when the server has answered it with msgok or msgerror. The callback is
+     * called on the listen thread, or on the thread that disconnects when the answer can't come any more. It is
+     * not called when this method returns false.
+     *
+     * @param recipient Username of the recipient of a private message, null for a public message
+     * @param message   Message to send
+     * @param callback  What to notify when the answer arrives
+     * @return true if the message was sent (or queued), false on error
+     */
+    public boolean sendTrackedMessage(String recipient, String message, DeliveryCallback callback) {
+        if (!isConnectionActive()) {
+            log("Error sending message. Is connection open?");
+            return false;
+        }
+        if (recipient == null) {
+            return sendMessage("msg ", message, OutboundQueue.Priority.PUBLIC, callback);
+        }
+        return sendMessage("privmsg " + recipient + " ", message, OutboundQueue.Priority.PRIVATE, callback);
+    }
+
+    private boolean sendMessage(String prefix, String message, OutboundQueue.Priority priority) {
+        return sendMessage(prefix, message, priority, null);
+    }
+
+    /**
+     * Send a message, in fragments if it is longer than the maximum message size. Other commands can be sent
+     * between the fragments.
+     *
+     * @param prefix   The command word and the attributes before the text, ending with a space
+     * @param message  Message text
+     * @param priority Priority of the command in the outbound queues
+     * @param ackTag   What to notify when the server answers the message (its last fragment), null if nothing
+     * @return true on success, false if the message (or one of its fragments) was not sent
+     */
+    private boolean sendMessage(String prefix, String message, OutboundQueue.Priority priority, Object ackTag) {
+        int max = maxMessageBytes;
+        if (max <= 0 || MessageFragmenter.fits(message, max)) {
+            return sendCommand(prefix + message, priority, null, ackTag);
+        }
+        if (!isSendable(message, max)) {
+            lastError = "Message too long";
+            log("Message too long, not sent");
+            return false;
+        }
+        String id = Integer.toString(fragmentIds.incrementAndGet(), Character.MAX_RADIX);
+        List<String> fragments = MessageFragmenter.split(message, max, id);
+        for (int i = 0; i < fragments.size(); i++) {
+            if (!sendCommand(prefix + fragments.get(i), priority, null,
+                    i == fragments.size() - 1 ? ackTag : null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param message Message text
+     * @return false if the message is too long to be sent with the current maximum message size, even in
+     * fragments (see MessageReassembler.MAX_FRAGMENTS)
+     */
+    public boolean isSendable(String message) {
+        return isSendable(message, maxMessageBytes);
+    }
+
+    private static boolean isSendable(String message, int max) {
+        return max <= 0 || MessageFragmenter.fits(message, max)
+                || MessageFragmenter.canSplit(message, max, LONGEST_FRAGMENT_ID);
+    }
+
+    /**
+     * Send the messages longer than the given size in fragments (see MessageFragmenter). The receiving clients
+     * must support the fragments, otherwise they show them as separate messages with a header.
+     *
+     * @param maxBytes Maximum size of the message text in bytes (at least MessageFragmenter.MIN_FRAGMENT_BYTES),
+     *                 0 to send all the messages whole
+     */
+    public void setMaxMessageSize(int maxBytes) {
+        if (maxBytes != 0 && maxBytes < MessageFragmenter.MIN_FRAGMENT_BYTES) {
+            throw new IllegalArgumentException("Message size too small: " + maxBytes);
+        }
+        this.maxMessageBytes = maxBytes;
+    }
+
+    /**
+     * @return Counters of the fragmented messages received in the current (or last) connection
+     */
+    public MessageReassembler getReassembler() {
+        return reassembler;
+    }
+
+    /**
+     * Store the messages sent while not connected in a durable outbox, and send them after the next login. While
+     * the outbox is not empty, new messages go through it too, so that the order is kept.
+     *
+     * @param outbox The outbox, null to turn it off (the messages in it stay in its journal)
+     */
+    public void setOutbox(Outbox outbox) {
+        this.outbox = outbox;
+    }
+
+    /**
+     * @return The outbox, null if none
+     */
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Store a message in the outbox when there is one and the message can't (or must not yet) be sent directly.
+     *
+     * @return true if the message was stored, false if it must be sent directly
+     */
+    private boolean storeInOutbox(String recipient, String message) {
+        Outbox box = outbox;
+        if (box == null || (isConnectionActive() && !box.hasPending())) {
+            return false;
+        }
+        try {
+            box.append(recipient, message);
+            return true;
+        } catch (IOException e) {
+            lastError = "Outbox: " + e.getMessage();
+            log("Could not store the message in the outbox: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Use the given intern table for the usernames, for example to share it with other clients.
+     *
+     * @param table The table
+     */
+    public void setNameTable(NameTable table) {
+        this.names = Objects.requireNonNull(table);
+    }
+
+    /**
+     * @return The intern table of the usernames
+     */
+    public NameTable getNameTable() {
+        return names;
+    }
+
+    /**
+     * Drop the floods and repeated messages of the senders before the message stages and listeners get them.
+     *
+     * @param filter The filter, null to turn it off
+     */
+    public void setFloodFilter(FloodFilter filter) {
+        this.floodFilter = filter;
+    }
+
+    /**
+     * @return The flood filter in use, null if none
+     */
+    public FloodFilter getFloodFilter() {
+        return floodFilter;
+    }
+
+    /**
+     * Send a login request to the chat server.
+     *
+     * @param username Username to use
+     */
+    public void tryLogin(String username) {
+
+        if (isConnectionActive()) {
+            sendCommand("login " + username);
+
+        } else if (!isConnectionActive()) {
+            log("No connection active, cannot log in.");
+        } else {
+            log("Could not log in. Username is invalid format.");
+        } // TODO remove logging if unnecessary
+        // TODO Step 3: implement this method
+        // Hint: Reuse sendCommand() method
+    }
+
+    /**
+     * Send a request for latest user list to the server. To get the new users,
+     * clear your current user list and use events in the listener.
+     */
+    public void refreshUserList() {
+        if (isConnectionActive()) {
+            sendCommand("users");
+        } else log("No connection active, cannot query user list.");
+        // TODO Step 5: implement this method
+        // Hint: Use Wireshark and the provided chat client reference app to find out what commands the
+        // client and server exchange for user listing.
+    }
+
+
+    /**
+     * Send a request for the list of commands that server supports.
+     */
+    public void askSupportedCommands() {
+        if (isConnectionActive()) {
+            sendCommand("help");
+        } else log("No connection active. Cannot query server for supported commands.");
+        // TODO Step 8: Implement this method
+        // Hint: Reuse sendCommand() method
+    }
+
+
+    /**
+     * @return true if the server has advertised the binary framing extension in its "supported" response.
+     * Call askSupportedCommands() first.
+     */
+    public boolean isBinaryFramingSupported() {
+        return serverCommands.contains(BinaryFrameCodec.EXTENSION);
+    }
+
+    /**
+     * Switch to the length-prefixed binary framing (see BinaryFrameCodec). Our commands are framed right after
+     * the request; the server's responses are framed after it has confirmed the switch with "binframeok".
+     *
+     * @return true if the switch was requested, false if the server does not support it or sending failed
+     */
+    public boolean enableBinaryFraming() {
+        if (!isBinaryFramingSupported()) {
+            log("Server does not support binary framing.");
+            return false;
+        }
+        // Switch right after the request, before any other command is written
+        return sendCommand(BinaryFrameCodec.EXTENSION, OutboundQueue.Priority.CONTROL,
+                () -> toServer = new BinaryFrameCodec(fromServerStream, toServerStream));
+    }
+
+    /**
+     * @return true if the server has advertised the compression extension in its "supported" response.
+     * Call askSupportedCommands() first.
+     */
+    public boolean isCompressionSupported() {
+        return serverCommands.contains(CompressedOutputStream.EXTENSION);
+    }
+
+    /**
+     * Set the size (in bytes) under which a command is sent uncompressed when compression is enabled. Takes
+     * effect on the next enableCompression().
+     *
+     * @param threshold Smallest command size worth compressing
+     */
+    public void setCompressionThreshold(int threshold) {
+        this.compressionThreshold = threshold;
+    }
+
+    /**
+     * Compress the traffic in both directions (see CompressedOutputStream). Our commands are compressed right
+     * after the request; the server's responses after it has confirmed with "deflateok".
+     *
+     * @return true if compression was requested, false if the server does not support it or sending failed
+     */
+    public boolean enableCompression() {
+        if (!isCompressionSupported()) {
+            log("Server does not support compression.");
+            return false;
+        }
+        return sendCommand(CompressedOutputStream.EXTENSION, OutboundQueue.Priority.CONTROL,
+                () -> toServerStream.applyFilter(out -> new CompressedOutputStream(out, compressionThreshold,
+                        sentCompression)));
+    }
+
+    /**
+     * @return Compression counters of the commands sent to the server
+     */
+    public CompressionStats getSentCompressionStats() {
+        return sentCompression;
+    }
+
+    /**
+     * @return Compression counters of the commands received from the server
+     */
+    public CompressionStats getReceivedCompressionStats() {
+        return receivedCompression;
+    }
+
+    /**
+     * Set the longest line (frame) the client reads at once. Longer user lists and supported lists are
+     * processed in pieces, other longer commands are skipped (see getFrameStats()). Takes effect on the next
+     * connect().
+     *
+     * @param maxLineLength Maximum line length in bytes
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Set how many names of a user list (or supported list) received in pieces are collected. The rest are
+     * dropped, see getDroppedListEntries().
+     *
+     * @param maxListEntries Maximum number of entries in one list
+     */
+    public void setMaxListEntries(int maxListEntries) {
+        this.maxListEntries = maxListEntries;
+    }
+
+    /**
+     * Choose whether the user lists that are received in pieces are collected and delivered whole to the
+     * ChatListeners. Turn it off when the UserListListeners are enough, then the memory used by a user list does
+     * not depend on its length.
+     *
+     * @param collect When false, ChatListener.onUserList() is only called for lists that fit in one line
+     */
+    public void setCollectUserLists(boolean collect) {
+        this.collectUserLists = collect;
+    }
+
+    /**
+     * @return Counters of the oversized lines (frames) received in the current (or last) connection
+     */
+    public FrameStats getFrameStats() {
+        return frameStats;
+    }
+
+    /**
+     * @return Number of list entries dropped because a list was longer than the maximum number of entries
+     */
+    public long getDroppedListEntries() {
+        return droppedListEntries;
+    }
+
+    /**
+     * Wait for chat server's response
+     *
+     * @return one command received from the server: the command word and the message part (null if the command
+     * had no message)
+     */
+    private String[] waitServerResponse() {
+        String[] resp = null;
+        if (isConnectionActive()) {
+            try {
+                // Block until a whole command arrives. Null means that the server closed the stream.
+                resp = fromServer.readCommand();
+                TrafficCapture capture = trafficCapture;
+                if (resp != null && capture != null) {
+                    capture.recordReceived(resp[1] == null ? resp[0] : resp[0] + " " + resp[1]);
+                }
+                if (resp == null && isConnectionActive()) {
+                    log("Server closed the connection.");
+                    this.disconnect();
+                }
+            } catch (IOException e) {
+                log("Response Exception: " + e.getMessage());
+                log("Disconnecting socket due to server response error.");
+                this.disconnect();
+            }
+        }
+    return resp;
+        // TODO Step 3: Implement this method
+        // TODO Step 4: If you get I/O Exception or null from the stream, it means that something has gone wrong
+        // with the stream and hence the socket. Probably a good idea to close the socket in that case.
+    }
+
+    /**
+     * Get the last error message
+     *
+     * @return Error message or "" if there has been no error
+     */
+    public String getLastError() {
+        if (lastError != null) {
+            return lastError;
+        } else {
+            return "";
+        }
+    }
+
+    /**
+     * Record all the traffic of this client from now on. The capture is not closed by the client.
+     *
+     * @param capture Where to record the traffic, null to stop recording
+     */
+    public void setTrafficCapture(TrafficCapture capture) {
+        this.trafficCapture = capture;
+    }
+
+    /**
+     * Start listening for incoming commands from the server in a new CPU thread.
+     */
+    public void startListenThread() {
+        // Call parseIncomingCommands() in the new thread.
+        Thread t = new Thread(this::parseIncomingCommands);
+        t.start();
+    }
+
+    /**
+     * Read incoming messages one by one, generate events for the listeners. A loop that runs until
+     * the connection is closed. Package-private so that TrafficReplay can run it on its own thread.
+     */
+    void parseIncomingCommands() {
+        while (isConnectionActive()) {
+
+            // the response is already split into command and message parts
+            String[] response = waitServerResponse();
+
+            if (response != null) {
+
+                // server response command is first word in response string
+                String command = response[0];
+                // message is the remainder of the response, or null if response had no message
+                String message = response[1];
+
+                switch (command) {
+                    case "loginok":
+                        onLoginResult(true, message); // message == null here, but signature demands it
+                        Outbox box = outbox;
+                        if (box != null) {
+                            box.startDrain(this);
+                        }
+                        break;
+
+                    case "loginerr":
+                        onLoginResult(false, message);
+                        break;
+
+                    case "cmderr":
+                        lastError = message;
+                        onCmdError(message);
+                        break;
+
+                    case "msgerror":
+                        lastError = message;
+                        ackReceived(message != null ? message : "");
+                        onMsgError(message);
+                        break;
+
+                    case "msg":
+                        if (message != null) {
+                            String[] msgAsArray = message.split(" ", 2);
+                            String sender = names.intern(msgAsArray[0]);
+                            String text = reassembler.accept(sender, false, msgAsArray[1]);
+                            if (text != null) {
+                                onMsgReceived(false, sender, text);
+                            }
+                        }
+                        break;
+
+                    case "privmsg":
+                        if (message != null) {
+                            String[] privMsgAsArray = message.split(" ", 2);
+                            String sender = names.intern(privMsgAsArray[0]);
+                            String text = reassembler.accept(sender, true, privMsgAsArray[1]);
+                            if (text != null) {
+                                onMsgReceived(true, sender, text);
+                            }
+                        }
+                        break;
+
+                    case "msgok":
+                        ackReceived(null);
+                        break;
+
+                    case "users":
+                        if (message != null) {
+                            boolean continued = fromServer.isContinued();
+                            boolean whole = !continued && !userListInPieces;
+                            userListInPieces = continued;
+                            onUsersPiece(message, continued);
+                            if (collectUserLists || whole) {
+                                String[] usersArray = collectList(message, continued, names);
+                                if (usersArray != null) {
+                                    onUsersList(usersArray);
+                                }
+                            }
+                        }
+                        break;
+
+                    case "supported":
+                       if (message != null) {
+                           String[] supportedCmd = collectList(message, fromServer.isContinued(), null);
+                           if (supportedCmd != null) {
+                               serverCommands = new HashSet<>(Arrays.asList(supportedCmd));
+                               onSupported(supportedCmd);
+                           }
+                       }
+                        break;
+
+                    case BinaryFrameCodec.EXTENSION_OK:
+                        // everything the server sends from now on is framed
+                        fromServer = new BinaryFrameCodec(fromServerStream, toServerStream);
+                        break;
+
+                    case CompressedOutputStream.EXTENSION_OK:
+                        // everything the server sends from now on is compressed
+                        fromServerStream.applyFilter(in -> new CompressedInputStream(in, receivedCompression));
+                        break;
+
+                    default: // we don't know what happened.
+                        log("Unexpected command case: " +
+                                "\n\tServer command: " + command +
+                                "\n\tServer message: " + message);
+                        break;
+
+                }// switch
+            }// if
+        }// while
+
+        // TODO Step 3: Implement this method
+        // Hint: Reuse waitServerResponse() method
+        // Hint: Have a switch-case (or other way) to check what type of response is received from the server
+        // and act on it.
+        // Hint: In Step 3 you need to handle only login-related responses.
+        // Hint: In Step 3 reuse onLoginResult() method
+
+        // TODO Step 5: update this method, handle user-list response from the server
+        // Hint: In Step 5 reuse onUserList() method
+
+        // TODO Step 7: add support for incoming chat messages from other users (types: msg, privmsg)
+        // TODO Step 7: add support for incoming message errors (type: msgerr)
+        // TODO Step 7: add support for incoming command errors (type: cmderr)
+        // Hint for Step 7: call corresponding onXXX() methods which will notify all the listeners
+
+        // TODO Step 8: add support for incoming supported command list (type: supported)
+
+    } // parseIncomingCommands
+
+    /**
+     * Split a list, or collect the pieces of a list that was too long to be read at once.
+     *
+     * @param message   The list, or a piece of it
+     * @param continued true if more pieces are coming
+     * @param table     Intern table for the entries, null to keep them as they are
+     * @return The whole list, or null if more pieces are coming
+     */
+    private String[] collectList(String message, boolean continued, NameTable table) {
+        if (partialList == null && !continued) {
+            String[] list = message.split(" ");
+            if (table != null) {
+                for (int i = 0; i < list.length; i++) {
+                    list[i] = table.intern(list[i]);
+                }
+            }
+            return list;
+        }
+        if (partialList == null) {
+            partialList = new ArrayList<>();
+        }
+        for (String entry : message.split(" ")) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            if (partialList.size() < maxListEntries) {
+                partialList.add(table != null ? table.intern(entry) : entry);
+            } else {
+                droppedListEntries++;
+            }
+        }
+        if (continued) {
+            return null;
+        }
+        String[] list = partialList.toArray(new String[0]);
+        partialList = null;
+        return list;
+    }
+
+    /**
+     * Register a new listener for events (login result, incoming message, etc)
+     *
+     * @param listener The ChatListener listener to register.
+     */
+    public void addListener(ChatListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Register a listener which gets the user lists piece by piece.
+     *
+     * @param listener The listener to register
+     */
+    public void addUserListListener(UserListListener listener) {
+        if (!userListListeners.contains(listener)) {
+            userListListeners.add(listener);
+        }
+    }
+
+    /**
+     * Unregister a user list listener.
+     *
+     * @param listener The listener to unregister
+     */
+    public void removeUserListListener(UserListListener listener) {
+        userListListeners.remove(listener);
+    }
+
+    /**
+     * Add a stage to the end of the receive pipeline. The stages process every incoming message, in the order
+     * they were added, before the listeners are notified; a stage can drop the message.
+     *
+     * @param stage The stage to add
+     */
+    public void addMessageStage(MessageStage stage) {
+        if (!messageStages.contains(stage)) {
+            messageStages.add(stage);
+        }
+    }
+
+    /**
+     * Remove a stage from the receive pipeline.
+     *
+     * @param stage The stage to remove
+     */
+    public void removeMessageStage(MessageStage stage) {
+        messageStages.remove(stage);
+    }
+
+    /**
+     * Unregister an event listener
+     *
+     * @param listener The ChatListener listener to unregister.
+     */
+    public void removeListener(ChatListener listener) {
+        listeners.remove(listener);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // The following methods are all event-notificators - notify all the listeners about a specific event.
+    // By "event" here we mean "information received from the chat server".
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Notify listeners that login operation is complete (either with success or
+     * failure)
+     *
+     * @param success When true, login successful. When false, it failed
+     * @param errMsg  Error message if any
+     */
+    private void onLoginResult(boolean success, String errMsg) {
+        for (ChatListener l : listeners) {
+            l.onLoginResult(success, errMsg);
+        }
+    }
+
+    /**
+     * Notify listeners that socket was closed by the remote end (server or
+     * Internet error)
+     */
+    private void onDisconnect() {
+        for (ChatListener l : listeners) {
+            l.onDisconnect();
+        }
+        // TODO Step 4: Implement this method
+        // Hint: all the onXXX() methods will be similar to onLoginResult()
+    }
+
+    /**
+     * Notify listeners that server sent us a list of currently connected users
+     *
+     * @param users List with usernames
+     */
+    private void onUsersList(String[] users) {
+        for (ChatListener l : listeners) {
+            l.onUserList(users);
+        }
+        // TODO Step 5: Implement this method
+    }
+
+    /**
+     * Notify the user list listeners of a piece of the user list. The first piece starts a new list.
+     *
+     * @param piece     Names separated by spaces
+     * @param continued true if more pieces of the same list are coming
+     */
+    private void onUsersPiece(String piece, boolean continued) {
+        if (userListListeners.isEmpty()) {
+            if (!continued) {
+                streamedUsers = -1;
+            }
+            return;
+        }
+        if (streamedUsers < 0) {
+            streamedUsers = 0;
+            for (UserListListener l : userListListeners) {
+                l.onUserListStart();
+            }
+        }
+        String[] usernames = splitNames(piece, names);
+        streamedUsers += usernames.length;
+        for (UserListListener l : userListListeners) {
+            l.onUsers(usernames);
+        }
+        if (!continued) {
+            for (UserListListener l : userListListeners) {
+                l.onUserListEnd(streamedUsers);
+            }
+            streamedUsers = -1;
+        }
+    }
+
+    /**
+     * Split a list at the spaces, without empty entries.
+     *
+     * @param list  Names separated by spaces
+     * @param table Intern table for the names
+     * @return The names
+     */
+    private static String[] splitNames(String list, NameTable table) {
+        List<String> names = new ArrayList<>();
+        int start = 0;
+        while (start < list.length()) {
+            int end = list.indexOf(' ', start);
+            if (end < 0) {
+                end = list.length();
+            }
+            if (end > start) {
+                names.add(table.intern(list.substring(start, end)));
+            }
+            start = end + 1;
+        }
+        return names.toArray(new String[0]);
+    }
+
+    /**
+     * Notify listeners that a message is received from the server
+     *
+     * @param priv   When true, this is a private message
+     * @param sender Username of the sender
+     * @param text   Message text
+     */
+    private void onMsgReceived(boolean priv, String sender, String text) {
+        FloodFilter filter = floodFilter;
+        if (filter != null && !filter.accept(sender, priv, text)) {
+            return;
+        }
+        // One message object, shared by the stages and all the listeners
+        TextMessage message = new TextMessage(sender, priv, text);
+        for (MessageStage stage : messageStages) {
+            if (!stage.process(message)) {
+                return;
+            }
+        }
+        for (ChatListener l : listeners) {
+            l.onMessageReceived(message);
+        }
+    }
+
+    /**
+     * Notify listeners that our message was not delivered
+     *
+     * @param errMsg Error description returned by the server
+     */
+    private void onMsgError(String errMsg) {
+        log("Message error: " + errMsg);
+        for (ChatListener l : listeners) {
+            l.onMessageError(errMsg);
+        }
+        // TODO Step 7: Implement this method
+    }
+
+    /**
+     * Notify listeners that command was not understood by the server.
+     *
+     * @param errMsg Error message
+     */
+    private void onCmdError(String errMsg) {
+        for (ChatListener l : listeners) {
+            l.onCommandError(errMsg);
+        }
+        // TODO Step 7: Implement this method
+    }
+
+    /**
+     * Notify listeners that a help response (supported commands) was received
+     * from the server
+     *
+     * @param commands Commands supported by the server
+     */
+    private void onSupported(String[] commands) {
+        for (ChatListener l : listeners) {
+            l.onSupportedCommands(commands);
+        }
+        // TODO Step 8: Implement this method
+    }
+}
@@ -0,0 +1,148 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * The original text protocol: one command per line, the command word separated from the message by a space.
+ * <p>
+ * Lines are read from a ProtocolInputStream instead of through a Reader. A Reader decodes ahead of the current
+ * line; here nothing after the newline is consumed, so the same stream can be handed to another codec (see
+ * BinaryFrameCodec) in the middle of a session. The command word is found at byte level and the known command
+ * words are not decoded at all (see LineDecoder).
+ */
+public class TextLineCodec implements CommandCodec {
+    // Command words the server sends; they are recognized without decoding
+    static final String[] COMMAND_WORDS = {
+            "msg", "privmsg", "msgok", "users", "loginok", "loginerr", "msgerror", "cmderr", "supported",
+            "login", "help", BinaryFrameCodec.EXTENSION_OK, CompressedOutputStream.EXTENSION_OK
+    };
+
+    private final ProtocolInputStream in;
+    private final OutputStream out;
+    private final Charset charset;
+    private final LineDecoder decoder;
+    // Set while an oversized list is returned in pieces
+    private String continuedCommand = null;
+    private ListChunker chunker = null;
+    private boolean continued = false;
+
+    /**
+     * @param in      Stream to read from
+     * @param out     Buffered stream to write to
+     * @param charset Charset of the text
+     */
+    public TextLineCodec(ProtocolInputStream in, OutputStream out, Charset charset) {
+        this.in = in;
+        this.out = out;
+        this.charset = charset;
+        this.decoder = new LineDecoder(charset, COMMAND_WORDS);
+    }
+
+    @Override
+    public void writeCommand(String command) throws IOException {
+        out.write(command.getBytes(charset));
+        out.write('\n');
+    }
+
+    @Override
+    public void writeEncoded(String word, String attribute, byte[] message) throws IOException {
+        out.write(word.getBytes(charset));
+        out.write(' ');
+        if (attribute != null) {
+            out.write(attribute.getBytes(charset));
+            out.write(' ');
+        }
+        out.write(message);
+        out.write('\n');
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public String[] readCommand() throws IOException {
+        while (true) {
+            int length = in.readLine();
+            if (length < 0) {
+                continuedCommand = null;
+                continued = false;
+                return null;
+            }
+            byte[] line = in.getLineBytes();
+            if (continuedCommand != null) {
+                return nextPiece(line, 0, length);
+            }
+            int space = 0;
+            while (space < length && line[space] != ' ') {
+                space++;
+            }
+            String command = decoder.decodeWord(line, 0, space);
+            if (in.isLineComplete()) {
+                continued = false;
+                if (space == length) {
+                    return new String[]{command, null};
+                }
+                return new String[]{command, decoder.decode(line, space + 1, length - space - 1)};
+            }
+            if (space < length && ListChunker.isChunkable(command)) {
+                in.getFrameStats().chunkedFrame();
+                continuedCommand = command;
+                if (chunker == null) {
+                    chunker = new ListChunker(charset);
+                }
+                return nextPiece(line, space + 1, length - space - 1);
+            }
+            // Too long to be anything sensible, skip it and go on with the next line
+            in.getFrameStats().rejected(length + in.skipLine());
+        }
+    }
+
+    private String[] nextPiece(byte[] line, int offset, int length) {
+        boolean last = in.isLineComplete();
+        String command = continuedCommand;
+        String text = chunker.next(line, offset, length, last);
+        if (last) {
+            continuedCommand = null;
+        }
+        continued = !last;
+        in.getFrameStats().chunk();
+        return new String[]{command, text};
+    }
+
+    @Override
+    public boolean isContinued() {
+        return continued;
+    }
+
+    /**
+     * Read one line, without the line ending (\n or \r\n).
+     *
+     * @return The line, or null if the stream ended before any byte of a new line
+     * @throws IOException When reading fails
+     */
+    public String readLine() throws IOException {
+        int length = in.readLine();
+        if (length < 0) {
+            return null;
+        }
+        return decoder.decode(in.getLineBytes(), 0, length);
+    }
+
+    /**
+     * Split a text line in the command word and the message part.
+     *
+     * @param text The line
+     * @return Array of two elements: the command word and the message (null if there is no space in the line)
+     */
+    static String[] splitCommand(String text) {
+        int space = text.indexOf(' ');
+        if (space < 0) {
+            return new String[]{text, null};
+        }
+        return new String[]{text.substring(0, space), text.substring(space + 1)};
+    }
+}
@@ -0,0 +1,151 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Represents a chat message
+ * <p>
+ * The text is kept compact, as bytes: one byte per character when all the characters are Latin-1 (most chat
+ * messages), otherwise UTF-8. getText() creates the String on demand; callers that need it several times
+ * should keep it. The pipeline stages scan getTextChars() instead, which reads Latin-1 bytes without creating a
+ * String.
+ */
+public class TextMessage {
+
+    private final String sender;
+    private final boolean priv;
+    // The text, Latin-1 or UTF-8 encoded; null when there is no text
+    private final byte[] text;
+    private final boolean latin1;
+
+    /**
+     * @param sender Username of the sender
+     * @param priv When true, message is private
+     * @param text Text of the message
+     */
+    public TextMessage(String sender, boolean priv, String text) {
+        this.sender = sender;
+        this.priv = priv;
+        if (text == null) {
+            this.text = null;
+            this.latin1 = true;
+        } else {
+            byte[] bytes = new byte[text.length()];
+            boolean fits = true;
+            for (int i = 0; i < bytes.length && fits; i++) {
+                char c = text.charAt(i);
+                bytes[i] = (byte) c;
+                fits = c < 0x100;
+            }
+            this.text = fits ? bytes : text.getBytes(StandardCharsets.UTF_8);
+            this.latin1 = fits;
+        }
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public boolean isPrivate() {
+        return priv;
+    }
+
+    public String getText() {
+        if (text == null) {
+            return null;
+        }
+        return new String(text, latin1 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The text for scanning it (pipeline stages), without creating a String when it is Latin-1: then the
+     * characters are read from the bytes directly. Otherwise this is the decoded text.
+     *
+     * @return The text, null when there is no text
+     */
+    public CharSequence getTextChars() {
+        if (text == null) {
+            return null;
+        }
+        return latin1 ? new Latin1Chars(text, 0, text.length) : getText();
+    }
+
+    /**
+     * Characters of Latin-1 bytes, one per byte.
+     */
+    private static final class Latin1Chars implements CharSequence {
+        private final byte[] bytes;
+        private final int start;
+        private final int end;
+
+        Latin1Chars(byte[] bytes, int start, int end) {
+            this.bytes = bytes;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            return (char) (bytes[start + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > end - start || from > to) {
+                throw new IndexOutOfBoundsException("Range: " + from + "-" + to);
+            }
+            return new Latin1Chars(bytes, start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * @return Number of bytes used for the text
+     */
+    public int getTextSize() {
+        return text != null ? text.length : 0;
+    }
+
+    @Override
+    public String toString() {
+        return (priv ? "PRIVATE " : "") + " from " + sender + ": " + getText();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TextMessage)) {
+            return false;
+        }
+        TextMessage other = (TextMessage) o;
+        // The encoding depends on the text only, so equal texts have equal bytes
+        return priv == other.priv && latin1 == other.latin1 && Objects.equals(sender, other.sender)
+                && Arrays.equals(text, other.text);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 3;
+        hash = 71 * hash + Objects.hashCode(this.sender);
+        hash = 71 * hash + (this.priv ? 1 : 0);
+        hash = 71 * hash + Arrays.hashCode(this.text);
+        return hash;
+    }
+
+}
@@ -0,0 +1,429 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Transport encrypted with TLS, built on an SSLEngine over a non-blocking SocketChannel. The streams block the
+ * calling thread in a selector, so TCPClient can use this transport like any other; reading and writing are
+ * independent, each direction has its own selector.
+ * <p>
+ * The SSLEngine is created from the SSLContext of the factory together with the host and port, so the
+ * context's client session cache can resume the session on the next connection to the same server and skip
+ * the full handshake. See TlsTransportFactory.
+ */
+public class TlsTransport implements Transport {
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final Selector readSelector;
+    private final Selector writeSelector;
+    private final String remoteAddress;
+    // Encrypted bytes received from the network, not unwrapped yet (kept in "write mode")
+    private ByteBuffer netIn;
+    // Decrypted bytes, not read by the application yet (kept in "read mode")
+    private ByteBuffer appIn;
+    // Encrypted bytes to send (kept in "write mode")
+    private ByteBuffer netOut;
+    // Serializes wrap() and the channel writes: the listen thread may need to wrap during a handshake
+    private final Object writeLock = new Object();
+    private final long handshakeNanos;
+    private final boolean resumed;
+    private volatile boolean closed = false;
+
+    private final InputStream input = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return readApplicationData(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (TlsTransport.this) {
+                return appIn.remaining();
+            }
+        }
+    };
+
+    private final OutputStream output = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeApplicationData(ByteBuffer.wrap(b, off, len));
+        }
+    };
+
+    /**
+     * Connect to the server and do the TLS handshake.
+     *
+     * @param context SSL context; its session cache is used for resumption
+     * @param host    host name of the server, also checked against the server's certificate
+     * @param port    TCP port of the server
+     * @param sessions Tells whether the new session was resumed from an earlier one
+     * @throws IOException When the connection or the handshake fails
+     */
+    TlsTransport(SSLContext context, String host, int port, SessionTracker sessions) throws IOException {
+        channel = SocketChannel.open();
+        readSelector = Selector.open();
+        writeSelector = Selector.open();
+        try {
+            channel.configureBlocking(false);
+            long start = System.nanoTime();
+            channel.connect(new InetSocketAddress(host, port));
+            channel.register(writeSelector, SelectionKey.OP_CONNECT);
+            while (!channel.finishConnect()) {
+                writeSelector.select();
+            }
+            writeSelector.keys().iterator().next().interestOps(SelectionKey.OP_WRITE);
+            channel.register(readSelector, SelectionKey.OP_READ);
+
+            engine = context.createSSLEngine(host, port);
+            engine.setUseClientMode(true);
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+            SSLSession session = engine.getSession();
+            netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+            netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+            appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+            appIn.flip();
+
+            engine.beginHandshake();
+            handshake();
+            handshakeNanos = System.nanoTime() - start;
+            resumed = sessions.track(engine.getSession());
+            remoteAddress = "tls:" + channel.socket().getInetAddress();
+        } catch (IOException | RuntimeException e) {
+            closeChannel();
+            throw e;
+        }
+    }
+
+    /**
+     * Remembers the sessions of a factory to tell whether a new session was resumed.
+     */
+    interface SessionTracker {
+        /**
+         * @param session The session of a completed handshake
+         * @return true if the session was resumed
+         */
+        boolean track(SSLSession session);
+    }
+
+    /**
+     * @return Time from the start of the TCP connection until the end of the TLS handshake, in nanoseconds
+     */
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    /**
+     * @return true if the handshake resumed an earlier session (abbreviated handshake)
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return The negotiated TLS session (protocol version, cipher suite, ...)
+     */
+    public SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Send the TLS close_notify (best effort) and close the channel. A thread blocked in reading gets
+     * end-of-stream, a thread blocked in writing gets an IOException. The close_notify is not sent when the
+     * socket buffer is full.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // A writer blocked on a full socket buffer holds writeLock: wake it up, it gives up because we are closed
+        writeSelector.wakeup();
+        try {
+            synchronized (writeLock) {
+                engine.closeOutbound();
+                wrap(ByteBuffer.allocate(0));
+            }
+        } catch (IOException e) {
+            // The peer may already be gone, the channel is closed anyway
+        } finally {
+            closeChannel();
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        readSelector.wakeup();
+        writeSelector.wakeup();
+        channel.close();
+        readSelector.close();
+        writeSelector.close();
+    }
+
+    /**
+     * Drive the handshake until the engine has no more handshake work.
+     */
+    private void handshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    synchronized (writeLock) {
+                        wrap(ByteBuffer.allocate(0));
+                    }
+                    break;
+                case NEED_UNWRAP:
+                    unwrapHandshake();
+                    break;
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                default:
+                    // NEED_UNWRAP_AGAIN exists since Java 9 only (for DTLS), compared by name to build on Java 8
+                    if (engine.getHandshakeStatus().name().equals("NEED_UNWRAP_AGAIN")) {
+                        unwrapHandshake();
+                        break;
+                    }
+                    return;
+            }
+        }
+    }
+
+    private void unwrapHandshake() throws IOException {
+        synchronized (this) {
+            if (unwrap() < 0) {
+                throw new SSLException("Connection closed during the TLS handshake");
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Return decrypted application data, reading from the network when nothing is buffered.
+     */
+    private synchronized int readApplicationData(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (!appIn.hasRemaining()) {
+            if (closed || unwrap() < 0) {
+                return -1;
+            }
+            // Post-handshake messages (session tickets, key updates) may need an answer
+            if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                handshake();
+            }
+        }
+        int n = Math.min(len, appIn.remaining());
+        appIn.get(b, off, n);
+        return n;
+    }
+
+    /**
+     * Unwrap one TLS record, reading from the channel if a whole record is not buffered yet. Decrypted data
+     * is appended to appIn. Caller must hold the lock of this object.
+     *
+     * @return Number of application bytes produced, -1 at end of stream
+     */
+    private int unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            appIn.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                appIn.flip();
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                    }
+                    return result.bytesProduced();
+                case CLOSED:
+                    return -1;
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize(), true);
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (netIn.position() == netIn.capacity()) {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize(), false);
+                    }
+                    if (readFromChannel() < 0) {
+                        return -1;
+                    }
+                    break;
+                default:
+                    throw new SSLException("Unexpected unwrap status: " + result.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Block until some bytes arrive from the network and append them to netIn.
+     *
+     * @return Number of bytes read, -1 at end of stream
+     */
+    private int readFromChannel() throws IOException {
+        while (true) {
+            if (closed) {
+                return -1;
+            }
+            int n;
+            try {
+                n = channel.read(netIn);
+            } catch (ClosedChannelException e) {
+                return -1;
+            }
+            if (n != 0) {
+                return n;
+            }
+            if (!await(readSelector)) {
+                return -1;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted while waiting for TLS data");
+            }
+        }
+    }
+
+    /**
+     * Wait in a selector until the channel is ready.
+     *
+     * @return false if the transport was closed meanwhile (close() also closes the selectors)
+     */
+    private boolean await(Selector selector) throws IOException {
+        try {
+            selector.select();
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            return false;
+        }
+        return !closed;
+    }
+
+    private void writeApplicationData(ByteBuffer data) throws IOException {
+        synchronized (writeLock) {
+            if (closed) {
+                throw new IOException("TLS transport closed");
+            }
+            while (data.hasRemaining()) {
+                wrap(data);
+            }
+        }
+    }
+
+    /**
+     * Encrypt (a part of) the data and send the resulting record. Caller must hold writeLock.
+     */
+    private void wrap(ByteBuffer data) throws IOException {
+        while (true) {
+            SSLEngineResult result = engine.wrap(data, netOut);
+            switch (result.getStatus()) {
+                case OK:
+                case CLOSED:
+                    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                    }
+                    writeToChannel();
+                    return;
+                case BUFFER_OVERFLOW:
+                    netOut = grow(netOut, engine.getSession().getPacketBufferSize(), false);
+                    break;
+                default:
+                    throw new SSLException("Unexpected wrap status: " + result.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Send everything in netOut, waiting in the selector when the socket buffer is full.
+     */
+    private void writeToChannel() throws IOException {
+        netOut.flip();
+        try {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) {
+                    if (!await(writeSelector)) {
+                        throw new IOException("TLS transport closed");
+                    }
+                }
+            }
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    /**
+     * Make a larger copy of the buffer, keeping its content and mode.
+     *
+     * @param readMode true if the buffer is kept in read mode (position..limit is the content)
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int suggested, boolean readMode) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(suggested, buffer.capacity() * 2));
+        if (readMode) {
+            bigger.put(buffer);
+            bigger.flip();
+        } else {
+            buffer.flip();
+            bigger.put(buffer);
+        }
+        return bigger;
+    }
+}
@@ -0,0 +1,109 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Opens TLS transports (see TlsTransport) which share one SSLContext. Reusing the context is what makes session
+ * resumption possible: its client session cache keeps the sessions (TLS 1.2 session IDs, TLS 1.3 session
+ * tickets) and offers them on the next connection to the same host and port, which avoids the full handshake.
+ * <p>
+ * The factory also keeps statistics of the handshakes.
+ */
+public class TlsTransportFactory implements TransportFactory {
+    // How many sessions to remember for the "resumed" statistics
+    private static final int TRACKED_SESSIONS = 1000;
+
+    private final SSLContext context;
+    // Creation times of the sessions seen so far, by session. A resumed session is the same session object,
+    // or (TLS 1.3) a new one carrying the creation time of the original session.
+    private final Map<String, Long> knownSessions = Collections.synchronizedMap(
+            new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > TRACKED_SESSIONS;
+                }
+            });
+    private long handshakes = 0;
+    private long resumedHandshakes = 0;
+    private long totalHandshakeNanos = 0;
+    private long lastHandshakeNanos = 0;
+
+    /**
+     * Create a factory which trusts the certificates trusted by the JVM.
+     *
+     * @throws GeneralSecurityException When TLS is not available
+     */
+    public TlsTransportFactory() throws GeneralSecurityException {
+        this(SSLContext.getDefault());
+    }
+
+    /**
+     * @param context The SSL context to use for all the connections (trust managers, session cache, ...)
+     */
+    public TlsTransportFactory(SSLContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public Transport open(String host, int port) throws IOException {
+        TlsTransport transport = new TlsTransport(context, host, port, this::track);
+        synchronized (this) {
+            handshakes++;
+            if (transport.isResumed()) {
+                resumedHandshakes++;
+            }
+            lastHandshakeNanos = transport.getHandshakeNanos();
+            totalHandshakeNanos += lastHandshakeNanos;
+        }
+        return transport;
+    }
+
+    /**
+     * Remember the session and tell whether it continues an earlier one.
+     */
+    private boolean track(SSLSession session) {
+        String peer = session.getPeerHost() + ":" + session.getPeerPort();
+        Long created = knownSessions.put(peer + "@" + session.getCreationTime(), session.getCreationTime());
+        return created != null;
+    }
+
+    /**
+     * @return Number of completed handshakes
+     */
+    public synchronized long getHandshakeCount() {
+        return handshakes;
+    }
+
+    /**
+     * @return Number of handshakes which resumed an earlier session
+     */
+    public synchronized long getResumedCount() {
+        return resumedHandshakes;
+    }
+
+    /**
+     * @return Duration of the last handshake (including the TCP connection), in nanoseconds
+     */
+    public synchronized long getLastHandshakeNanos() {
+        return lastHandshakeNanos;
+    }
+
+    /**
+     * @return Average duration of the handshakes (including the TCP connection), in nanoseconds
+     */
+    public synchronized long getAverageHandshakeNanos() {
+        return handshakes > 0 ? totalHandshakeNanos / handshakes : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d TLS handshakes, %d resumed, last %.2f ms, average %.2f ms", handshakes,
+                resumedHandshakes, lastHandshakeNanos / 1e6, getAverageHandshakeNanos() / 1e6);
+    }
+}
@@ -0,0 +1,91 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket: tokens are added at a constant rate up to the burst size, every command takes one. A bucket can
+ * be shared by several clients (see RateLimiter) to limit their total rate.
+ */
+public class TokenBucket {
+    private final double tokensPerNano;
+    private final int burst;
+    private final LongSupplier clock;
+    // Can be negative: tokens reserved by commands which wait for them
+    private double tokens;
+    private long last;
+
+    /**
+     * @param ratePerSecond Sustained rate, commands per second
+     * @param burst         How many commands can be sent at once after a pause
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        this(ratePerSecond, burst, System::nanoTime);
+    }
+
+    /**
+     * @param ratePerSecond Sustained rate, commands per second
+     * @param burst         How many commands can be sent at once after a pause
+     * @param clock         Time source in nanoseconds
+     */
+    TokenBucket(double ratePerSecond, int burst, LongSupplier clock) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Invalid rate " + ratePerSecond + " or burst " + burst);
+        }
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.burst = burst;
+        this.clock = clock;
+        this.tokens = burst;
+        this.last = clock.getAsLong();
+    }
+
+    private void refill() {
+        long now = clock.getAsLong();
+        tokens = Math.min(burst, tokens + (now - last) * tokensPerNano);
+        last = now;
+    }
+
+    /**
+     * Take a token if there is one.
+     *
+     * @return true if a token was taken
+     */
+    public synchronized boolean tryTake() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take a token, even if it has not been earned yet.
+     *
+     * @return How long to wait (nanoseconds) before the token is really available, 0 if it is available now
+     */
+    public synchronized long reserve() {
+        refill();
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+
+    /**
+     * Give back a token taken with tryTake() or reserve() which was not used.
+     */
+    public synchronized void refund() {
+        tokens = Math.min(burst, tokens + 1);
+    }
+
+    /**
+     * @return Tokens available now; negative when commands are waiting for tokens
+     */
+    public synchronized double getTokens() {
+        refill();
+        return tokens;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%.1f/%d tokens, %.1f/s", tokens, burst, tokensPerNano * 1e9);
+    }
+}
@@ -0,0 +1,246 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.LongSupplier;
+
+/**
+ * Receive pipeline stage with live statistics of who is talking and how fast, over a sliding time window.
+ * <p>
+ * The window is divided in buckets, each with a CountMinSketch of the messages per sender received in that
+ * period; when the window slides, the oldest bucket is cleared and reused. The rate of a sender is estimated
+ * from the sum of its counts in all the buckets. The heaviest senders are kept in a min-heap of at most K
+ * candidates. The memory used depends on the sketch size, the number of buckets and K only, not on the number of
+ * distinct senders. The engine never drops messages.
+ */
+public class TrafficAnalytics implements MessageStage {
+    public static final long DEFAULT_WINDOW_MS = 60000;
+    public static final int DEFAULT_BUCKETS = 12;
+    public static final int DEFAULT_WIDTH = 2048;
+    public static final int DEFAULT_DEPTH = 4;
+    public static final int DEFAULT_TOP = 10;
+
+    /**
+     * A sender and its estimated traffic in the window.
+     */
+    public static class SenderRate {
+        private final String sender;
+        private final long messages;
+        private final double perSecond;
+
+        SenderRate(String sender, long messages, double perSecond) {
+            this.sender = sender;
+            this.messages = messages;
+            this.perSecond = perSecond;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        /**
+         * @return Estimated number of messages in the window (never lower than the real number)
+         */
+        public long getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return Estimated messages per second over the window
+         */
+        public double getPerSecond() {
+            return perSecond;
+        }
+
+        @Override
+        public String toString() {
+            return sender + "=" + messages;
+        }
+    }
+
+    // A heavy hitter candidate, with its estimated count when it was last updated
+    private static class Candidate {
+        final String sender;
+        long count;
+
+        Candidate(String sender, long count) {
+            this.sender = sender;
+            this.count = count;
+        }
+    }
+
+    private final CountMinSketch[] buckets;
+    private final long bucketNanos;
+    private final int top;
+    private final LongSupplier clock;
+    // Number of the bucket period of the newest bucket
+    private long currentPeriod;
+
+    private final PriorityQueue<Candidate> heap = new PriorityQueue<>((a, b) -> Long.compare(a.count, b.count));
+    private final Map<String, Candidate> candidates = new HashMap<>();
+
+    private long publicMessages = 0;
+    private long privateMessages = 0;
+
+    public TrafficAnalytics() {
+        this(DEFAULT_WINDOW_MS, DEFAULT_BUCKETS, DEFAULT_WIDTH, DEFAULT_DEPTH, DEFAULT_TOP);
+    }
+
+    /**
+     * @param windowMs Length of the sliding window
+     * @param buckets  Number of buckets the window is divided in, the window slides one bucket at a time
+     * @param width    Counters per row of the sketches
+     * @param depth    Rows of the sketches
+     * @param top      Number of heavy hitters to track
+     */
+    public TrafficAnalytics(long windowMs, int buckets, int width, int depth, int top) {
+        this(windowMs, buckets, width, depth, top, System::nanoTime);
+    }
+
+    TrafficAnalytics(long windowMs, int buckets, int width, int depth, int top, LongSupplier clock) {
+        if (buckets < 1 || windowMs < buckets || top < 1) {
+            throw new IllegalArgumentException("Invalid window " + windowMs + " ms, " + buckets + " buckets or top "
+                    + top);
+        }
+        this.buckets = new CountMinSketch[buckets];
+        for (int i = 0; i < buckets; i++) {
+            this.buckets[i] = new CountMinSketch(width, depth);
+        }
+        this.bucketNanos = windowMs * 1_000_000L / buckets;
+        this.top = top;
+        this.clock = clock;
+        this.currentPeriod = clock.getAsLong() / bucketNanos;
+    }
+
+    /**
+     * Slide the window to the current time, clearing the buckets which fell out of it.
+     */
+    private void advance() {
+        long period = clock.getAsLong() / bucketNanos;
+        long expired = Math.min(period - currentPeriod, buckets.length);
+        for (long i = 1; i <= expired; i++) {
+            buckets[(int) Math.floorMod(currentPeriod + i, (long) buckets.length)].clear();
+        }
+        if (period > currentPeriod) {
+            currentPeriod = period;
+        }
+    }
+
+    private long estimate(String sender) {
+        long sum = 0;
+        for (CountMinSketch bucket : buckets) {
+            sum += bucket.estimate(sender);
+        }
+        return sum;
+    }
+
+    private double windowSeconds() {
+        return buckets.length * bucketNanos / 1e9;
+    }
+
+    @Override
+    public synchronized boolean process(TextMessage message) {
+        advance();
+        String sender = message.getSender();
+        buckets[(int) Math.floorMod(currentPeriod, (long) buckets.length)].add(sender, 1);
+        if (message.isPrivate()) {
+            privateMessages++;
+        } else {
+            publicMessages++;
+        }
+        long count = estimate(sender);
+        Candidate candidate = candidates.get(sender);
+        if (candidate != null) {
+            heap.remove(candidate);
+            candidate.count = count;
+            heap.add(candidate);
+        } else if (candidates.size() < top) {
+            add(sender, count);
+        } else if (count > refreshMinimum()) {
+            candidates.remove(heap.poll().sender);
+            add(sender, count);
+        }
+        return true;
+    }
+
+    private void add(String sender, long count) {
+        Candidate candidate = new Candidate(sender, count);
+        candidates.put(sender, candidate);
+        heap.add(candidate);
+    }
+
+    /**
+     * The counts in the heap get stale when the window slides: a candidate which stopped talking has a lower
+     * count than the heap says. Update the minimum until it is current (estimates only go down meanwhile, so
+     * this ends after at most K updates).
+     *
+     * @return The current count of the lightest candidate
+     */
+    private long refreshMinimum() {
+        while (true) {
+            Candidate min = heap.peek();
+            long count = estimate(min.sender);
+            if (count == min.count) {
+                return count;
+            }
+            heap.poll();
+            min.count = count;
+            heap.add(min);
+        }
+    }
+
+    /**
+     * @param sender Username of the sender
+     * @return Estimated messages per second of the sender over the window
+     */
+    public synchronized double getRate(String sender) {
+        advance();
+        return estimate(sender) / windowSeconds();
+    }
+
+    /**
+     * @return Number of messages received in the window, from all the senders
+     */
+    public synchronized long getWindowMessages() {
+        advance();
+        long sum = 0;
+        for (CountMinSketch bucket : buckets) {
+            sum += bucket.getTotal();
+        }
+        return sum;
+    }
+
+    /**
+     * @return The heaviest senders of the window, at most K, the heaviest first
+     */
+    public synchronized List<SenderRate> getTopSenders() {
+        advance();
+        double seconds = windowSeconds();
+        List<SenderRate> result = new ArrayList<>();
+        for (Candidate c : candidates.values()) {
+            long count = estimate(c.sender);
+            if (count > 0) {
+                result.add(new SenderRate(c.sender, count, count / seconds));
+            }
+        }
+        result.sort((a, b) -> Long.compare(b.getMessages(), a.getMessages()));
+        return result;
+    }
+
+    /**
+     * @return Number of public messages processed since the start
+     */
+    public synchronized long getPublicMessages() {
+        return publicMessages;
+    }
+
+    /**
+     * @return Number of private messages processed since the start
+     */
+    public synchronized long getPrivateMessages() {
+        return privateMessages;
+    }
+}
@@ -0,0 +1,213 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the lines a TCPClient sends and receives, with timestamps, so that the traffic can be replayed later
+ * (see TrafficReplay).
+ * <p>
+ * File format (gzip-compressed): the magic string "DKCAP1", then one record per line:
+ * direction byte ('<' received, '>' sent), time since the previous record in microseconds (varint),
+ * line length in bytes (varint), the line in UTF-8 without the newline.
+ */
+public class TrafficCapture implements Closeable {
+    static final byte[] MAGIC = "DKCAP1".getBytes(StandardCharsets.US_ASCII);
+    public static final byte RECEIVED = '<';
+    public static final byte SENT = '>';
+
+    private final DataOutputStream out;
+    private long lastTime;
+    private long recordCount = 0;
+
+    /**
+     * @param stream Where the capture is written. It is closed when the capture is closed.
+     * @throws IOException When the header can not be written
+     */
+    public TrafficCapture(OutputStream stream) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(stream)));
+        out.write(MAGIC);
+        lastTime = System.nanoTime();
+    }
+
+    /**
+     * Create a capture writing to a file. An existing file is overwritten.
+     *
+     * @param file The file to write to
+     * @return The capture
+     * @throws IOException When the file can not be opened
+     */
+    public static TrafficCapture toFile(File file) throws IOException {
+        return new TrafficCapture(new FileOutputStream(file));
+    }
+
+    /**
+     * Record one line received from the server.
+     *
+     * @param line The line, without newline
+     */
+    public void recordReceived(String line) {
+        record(RECEIVED, line);
+    }
+
+    /**
+     * Record one line sent to the server.
+     *
+     * @param line The line, without newline
+     */
+    public void recordSent(String line) {
+        record(SENT, line);
+    }
+
+    /**
+     * @return Number of records written so far
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    private synchronized void record(byte direction, String line) {
+        long now = System.nanoTime();
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        try {
+            out.writeByte(direction);
+            writeVarLong(out, (now - lastTime) / 1000);
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+            lastTime = now;
+            recordCount++;
+        } catch (IOException e) {
+            // Capturing must never break the chat session itself
+            System.out.println("# TrafficCapture: failed to record line: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Open a capture file for reading.
+     *
+     * @param file The capture file
+     * @return Reader positioned at the first record
+     * @throws IOException When the file can not be opened or is not a capture file
+     */
+    public static Reader open(File file) throws IOException {
+        return new Reader(new FileInputStream(file));
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * One captured line.
+     */
+    public static class Record {
+        private final byte direction;
+        private final long timeMicros;
+        private final String line;
+
+        Record(byte direction, long timeMicros, String line) {
+            this.direction = direction;
+            this.timeMicros = timeMicros;
+            this.line = line;
+        }
+
+        /**
+         * @return true if the line was received from the server, false if it was sent by the client
+         */
+        public boolean isReceived() {
+            return direction == RECEIVED;
+        }
+
+        /**
+         * @return Time of the record in microseconds, counted from the start of the capture
+         */
+        public long getTimeMicros() {
+            return timeMicros;
+        }
+
+        public String getLine() {
+            return line;
+        }
+    }
+
+    /**
+     * Reads the records of a capture one by one.
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private long time = 0;
+
+        /**
+         * @param stream The capture data. It is closed when the reader is closed.
+         * @throws IOException When the data is not a capture
+         */
+        public Reader(InputStream stream) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(stream)));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            for (int i = 0; i < magic.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException("Not a traffic capture");
+                }
+            }
+        }
+
+        /**
+         * @return The next record, or null when there are no more records
+         * @throws IOException When the capture is corrupt
+         */
+        public Record next() throws IOException {
+            int direction = in.read();
+            if (direction < 0) {
+                return null;
+            }
+            try {
+                time += readVarLong(in);
+                byte[] bytes = new byte[(int) readVarLong(in)];
+                in.readFully(bytes);
+                return new Record((byte) direction, time, new String(bytes, StandardCharsets.UTF_8));
+            } catch (EOFException e) {
+                throw new IOException("Truncated traffic capture", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
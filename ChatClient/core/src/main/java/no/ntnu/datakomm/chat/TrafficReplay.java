@@ -0,0 +1,153 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the received lines of a traffic capture (see TrafficCapture) into a TCPClient, as if a server sent
+ * them. Used to reproduce incidents and to measure how fast the client parses the traffic and notifies its
+ * listeners.
+ */
+public class TrafficReplay {
+    // Speed value which means "no delays at all, as fast as possible"
+    public static final double MAX_SPEED = 0;
+
+    private final File captureFile;
+    private final double speed;
+
+    /**
+     * @param captureFile The capture to replay
+     * @param speed       1 replays in real time, N replays N times faster, MAX_SPEED replays without delays
+     */
+    public TrafficReplay(File captureFile, double speed) {
+        this.captureFile = captureFile;
+        this.speed = speed;
+    }
+
+    /**
+     * Replay the capture into a new client, connected to an in-process transport. The lines are parsed on the
+     * calling thread and the listeners get notified as usual. Returns when the whole capture has been processed.
+     *
+     * @param listeners Listeners to register on the client
+     * @return Statistics of the replay
+     * @throws IOException When the capture can not be read
+     */
+    public Result replay(ChatListener... listeners) throws IOException {
+        LoopbackTransport[] ends = LoopbackTransport.pair(captureFile.getName());
+        TCPClient replayClient = new TCPClient((host, port) -> ends[0]);
+        for (ChatListener l : listeners) {
+            replayClient.addListener(l);
+        }
+        if (!replayClient.connect(captureFile.getName(), 0)) {
+            throw new IOException("Could not connect the client to the replay transport");
+        }
+        Result result = new Result();
+        IOException[] feedError = new IOException[1];
+        Thread feeder = new Thread(() -> {
+            try {
+                feed(ends[1], result);
+            } catch (IOException e) {
+                feedError[0] = e;
+            } finally {
+                ends[1].close();
+            }
+        });
+        long start = System.nanoTime();
+        feeder.start();
+        replayClient.parseIncomingCommands();
+        result.elapsedNanos = System.nanoTime() - start;
+        try {
+            feeder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (feedError[0] != null) {
+            throw feedError[0];
+        }
+        return result;
+    }
+
+    /**
+     * Write the received lines of the capture to the transport, keeping the captured timing (scaled by speed).
+     */
+    private void feed(Transport transport, Result result) throws IOException {
+        OutputStream out = transport.getOutputStream();
+        long start = System.nanoTime();
+        try (TrafficCapture.Reader reader = TrafficCapture.open(captureFile)) {
+            TrafficCapture.Record r;
+            while ((r = reader.next()) != null) {
+                if (!r.isReceived()) {
+                    continue;
+                }
+                if (speed > 0) {
+                    long due = start + (long) (r.getTimeMicros() * 1000 / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                byte[] bytes = (r.getLine() + "\n").getBytes(StandardCharsets.UTF_8);
+                out.write(bytes);
+                result.lines++;
+                result.bytes += bytes.length;
+            }
+        }
+    }
+
+    /**
+     * Statistics of one replay.
+     */
+    public static class Result {
+        private long lines = 0;
+        private long bytes = 0;
+        private long elapsedNanos = 0;
+
+        public long getLines() {
+            return lines;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return Processed lines per second
+         */
+        public double getLinesPerSecond() {
+            return elapsedNanos > 0 ? lines * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d lines, %d bytes in %.1f ms (%.0f lines/s, %.1f MB/s)",
+                    lines, bytes, elapsedNanos / 1e6, getLinesPerSecond(),
+                    elapsedNanos > 0 ? bytes * 1e3 / elapsedNanos : 0.0);
+        }
+    }
+
+    /**
+     * Replay a capture file without listeners, to benchmark the parser.
+     *
+     * @param args capture file, optional speed (default: max speed), optional number of rounds (default 5)
+     * @throws IOException When the capture can not be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: TrafficReplay <capture file> [speed, 0 = max] [rounds]");
+            return;
+        }
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : MAX_SPEED;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        TrafficReplay replay = new TrafficReplay(new File(args[0]), speed);
+        for (int i = 1; i <= rounds; i++) {
+            System.out.println("Round " + i + ": " + replay.replay());
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte channel between the chat client and a chat server. TCPClient does not care whether the
+ * bytes travel over a real TCP socket or stay inside the JVM, it only needs the two streams.
+ */
+public interface Transport {
+
+    /**
+     * @return Stream with the bytes sent by the server
+     * @throws IOException When the stream can not be obtained (transport closed, etc)
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * @return Stream where the bytes to the server must be written
+     * @throws IOException When the stream can not be obtained (transport closed, etc)
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * @return true if the transport is open and can be used, false if it is closed
+     */
+    boolean isOpen();
+
+    /**
+     * @return Human readable address of the remote end, used for logging
+     */
+    String getRemoteAddress();
+
+    /**
+     * Close the transport. Any thread blocked while reading from the input stream will get an exception or
+     * end-of-stream.
+     *
+     * @throws IOException When closing fails
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,20 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+
+/**
+ * Opens new transports. TCPClient gets one of these so that the tests (and other users) can decide where the
+ * client actually connects to.
+ */
+public interface TransportFactory {
+
+    /**
+     * Open a new transport to the given chat server.
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @return The opened transport, never null
+     * @throws IOException When the connection can not be established
+     */
+    Transport open(String host, int port) throws IOException;
+}
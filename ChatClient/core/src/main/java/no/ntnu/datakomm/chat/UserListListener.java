@@ -0,0 +1,29 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Listener which gets the user list in pieces, as the names arrive from the server, instead of the whole list
+ * at once (see ChatListener.onUserList()). A long list is read in pieces of at most the maximum line length of
+ * the connection, so the memory needed for it does not grow with the number of users. A short list comes as
+ * one piece.
+ */
+public interface UserListListener {
+
+    /**
+     * This method is called when a new user list begins.
+     */
+    public void onUserListStart();
+
+    /**
+     * This method is called for every piece of the list, in the order the names arrive.
+     *
+     * @param usernames The next names of the list
+     */
+    public void onUsers(String[] usernames);
+
+    /**
+     * This method is called after the last piece of the list.
+     *
+     * @param count Number of names in the whole list
+     */
+    public void onUserListEnd(int count);
+}
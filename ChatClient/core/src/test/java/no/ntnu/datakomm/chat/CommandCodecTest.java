@@ -0,0 +1,177 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CommandCodecTest {
+    // Commands with the tricky cases: no message, empty message, unknown command word, non-ASCII text
+    private static final String[] COMMANDS = {
+            "loginok", "users ", "msg alice Hello there", "supported login msg", "weird stuff here",
+            "weird", "privmsg bob Blåbærsyltetøy", "msgerror"
+    };
+
+    /**
+     * Encode the commands with the codec, decode them again and compare with the text protocol split
+     *
+     * @param binary When true, use the binary framing, otherwise the text protocol
+     * @throws IOException When decoding fails
+     */
+    private void roundTrip(boolean binary) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CommandCodec encoder = binary ? new BinaryFrameCodec(null, out)
+                : new TextLineCodec(null, out, StandardCharsets.UTF_8);
+        for (String c : COMMANDS) {
+            encoder.writeCommand(c);
+        }
+        encoder.flush();
+        ProtocolInputStream in = new ProtocolInputStream(new ByteArrayInputStream(out.toByteArray()));
+        CommandCodec decoder = binary ? new BinaryFrameCodec(in, null)
+                : new TextLineCodec(in, null, StandardCharsets.UTF_8);
+        for (String c : COMMANDS) {
+            String[] expected = c.split(" ", 2);
+            String[] decoded = decoder.readCommand();
+            assertEquals(expected[0], decoded[0]);
+            assertEquals(expected.length > 1 ? expected[1] : null, decoded[1]);
+        }
+        assertNull(decoder.readCommand());
+    }
+
+    @Test
+    public void testTextRoundTrip() throws IOException {
+        roundTrip(false);
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws IOException {
+        roundTrip(true);
+    }
+
+    /**
+     * The text codec must not consume anything after the line, so that the stream can switch to frames.
+     *
+     * @throws IOException When decoding fails
+     */
+    @Test
+    public void testSwitchInTheMiddleOfStream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TextLineCodec(null, out, StandardCharsets.UTF_8).writeCommand(BinaryFrameCodec.EXTENSION_OK);
+        new BinaryFrameCodec(null, out).writeCommand("msg alice framed");
+        ProtocolInputStream in = new ProtocolInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(BinaryFrameCodec.EXTENSION_OK, new TextLineCodec(in, null, StandardCharsets.UTF_8)
+                .readCommand()[0]);
+        assertEquals("alice framed", new BinaryFrameCodec(in, null).readCommand()[1]);
+    }
+
+    /**
+     * A frame that ends in the middle must be reported, not silently returned as a shorter command.
+     *
+     * @throws IOException Expected
+     */
+    @Test(expected = IOException.class)
+    public void testTruncatedFrame() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BinaryFrameCodec(null, out).writeCommand("msg alice this frame gets cut");
+        byte[] bytes = out.toByteArray();
+        ProtocolInputStream in = new ProtocolInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 3));
+        new BinaryFrameCodec(in, null).readCommand();
+    }
+
+    /**
+     * Multi-byte characters must survive when the network delivers them one byte at a time.
+     *
+     * @throws IOException When decoding fails
+     */
+    @Test
+    public void testMultiByteSplitAcrossReads() throws IOException {
+        String text = "msg ærlig Blåbær Привет 你好 👋";
+        byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        InputStream oneByteAtATime = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        TextLineCodec codec = new TextLineCodec(new ProtocolInputStream(oneByteAtATime), null, StandardCharsets.UTF_8);
+        String[] decoded = codec.readCommand();
+        assertEquals("msg", decoded[0]);
+        assertEquals("ærlig Blåbær Привет 你好 👋", decoded[1]);
+    }
+
+    /**
+     * Invalid UTF-8 is replaced, not thrown, and does not break the following lines.
+     *
+     * @throws IOException When decoding fails
+     */
+    @Test
+    public void testMalformedInput() throws IOException {
+        byte[] bytes = {'m', 's', 'g', ' ', 'a', ' ', (byte) 0xC3, '\n', 'u', 's', 'e', 'r', 's', ' ', 'b', '\n'};
+        TextLineCodec codec = new TextLineCodec(new ProtocolInputStream(new ByteArrayInputStream(bytes)), null,
+                StandardCharsets.UTF_8);
+        assertEquals("a \uFFFD", codec.readCommand()[1]);
+        assertEquals("b", codec.readCommand()[1]);
+    }
+
+    /**
+     * With a small maximum line length, a long user list comes in pieces which split no names, and a long
+     * message is skipped without losing the commands around it.
+     *
+     * @param binary When true, use the binary framing, otherwise the text protocol
+     * @throws IOException When decoding fails
+     */
+    private void oversized(boolean binary) throws IOException {
+        StringBuilder users = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            users.append(i > 0 ? " " : "").append("user").append(i).append(i % 7 == 0 ? "ÆØÅ" : "");
+        }
+        StringBuilder flood = new StringBuilder("msg flooder ");
+        for (int i = 0; i < 500; i++) {
+            flood.append("ø");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CommandCodec encoder = binary ? new BinaryFrameCodec(null, out)
+                : new TextLineCodec(null, out, StandardCharsets.UTF_8);
+        encoder.writeCommand("msg alice before");
+        encoder.writeCommand(flood.toString());
+        encoder.writeCommand("users " + users);
+        encoder.writeCommand("msg alice after");
+        encoder.flush();
+
+        FrameStats stats = new FrameStats();
+        ProtocolInputStream in = new ProtocolInputStream(new ByteArrayInputStream(out.toByteArray()), 64, stats);
+        CommandCodec decoder = binary ? new BinaryFrameCodec(in, null)
+                : new TextLineCodec(in, null, StandardCharsets.UTF_8);
+        assertEquals("alice before", decoder.readCommand()[1]);
+        StringBuilder received = new StringBuilder();
+        int pieces = 0;
+        do {
+            String[] piece = decoder.readCommand();
+            assertEquals("users", piece[0]);
+            received.append(pieces > 0 ? " " : "").append(piece[1]);
+            pieces++;
+        } while (decoder.isContinued());
+        assertEquals(users.toString(), received.toString());
+        assertTrue(pieces > 1);
+        assertEquals("alice after", decoder.readCommand()[1]);
+        assertFalse(decoder.isContinued());
+        assertNull(decoder.readCommand());
+        assertEquals(1, stats.getChunkedFrames());
+        assertEquals(pieces, stats.getChunks());
+        assertEquals(1, stats.getRejectedFrames());
+    }
+
+    @Test
+    public void testTextOversizedLines() throws IOException {
+        oversized(false);
+    }
+
+    @Test
+    public void testBinaryOversizedFrames() throws IOException {
+        oversized(true);
+    }
+}
@@ -0,0 +1,58 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CompressedInputStreamTest {
+
+    /**
+     * A block that inflates to much more than the buffers is streamed piece by piece, and the blocks after it
+     * are read as usual.
+     *
+     * @throws IOException When the test fails
+     */
+    @Test
+    public void testLargeBlockIsStreamed() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        CompressionStats sent = new CompressionStats();
+        CompressedOutputStream out = new CompressedOutputStream(wire, CompressedOutputStream.DEFAULT_THRESHOLD,
+                sent);
+        byte[] zeros = new byte[1024 * 1024];
+        for (int i = 0; i < 20; i++) {
+            out.write(zeros, 0, zeros.length);
+        }
+        out.flush();
+        out.write("msg bob hi\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        // 20 MiB of zeros deflate to a few kilobytes
+        assertTrue(wire.size() < 64 * 1024);
+
+        CompressionStats received = new CompressionStats();
+        InputStream in = new CompressedInputStream(new ByteArrayInputStream(wire.toByteArray()), received);
+        byte[] buffer = new byte[100000];
+        long total = 0;
+        int n;
+        while (total < 20 * zeros.length && (n = in.read(buffer, 0, buffer.length)) > 0) {
+            for (int i = 0; i < n; i++) {
+                assertEquals(0, buffer[i]);
+            }
+            total += n;
+            // Never more than one buffer of decompressed data at once
+            assertTrue(in.available() <= 8192);
+        }
+        assertEquals(20 * zeros.length, total);
+        byte[] line = new byte[11];
+        assertEquals(11, in.read(line, 0, line.length));
+        assertEquals("msg bob hi\n", new String(line, StandardCharsets.US_ASCII));
+        assertEquals(-1, in.read());
+        assertEquals(2, received.getBlocks());
+        assertEquals(sent.getRawBytes(), received.getRawBytes());
+        assertEquals(sent.getWireBytes(), received.getWireBytes());
+    }
+}
@@ -0,0 +1,77 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DuplicateFilterTest {
+    // Fake time for the window
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void testMessageEquality() {
+        TextMessage m = new TextMessage("alice", false, "hello");
+        assertEquals(m, new TextMessage("alice", false, "hello"));
+        assertEquals(m.hashCode(), new TextMessage("alice", false, "hello").hashCode());
+        assertNotEquals(m, new TextMessage("alice", true, "hello"));
+        assertNotEquals(m, new TextMessage("bob", false, "hello"));
+        assertNotEquals(m, "alice hello");
+        assertNotEquals(m, null);
+        // "Aa" and "BB" have the same String hash code, so these messages have the same hash code too
+        TextMessage a = new TextMessage("alice", false, "Aa");
+        TextMessage b = new TextMessage("alice", false, "BB");
+        assertEquals(a.hashCode(), b.hashCode());
+        assertNotEquals(a, b);
+    }
+
+    @Test
+    public void testFingerprints() {
+        long[] a = DuplicateFilter.fingerprint("alice", false, "Aa");
+        assertArrayEquals(a, DuplicateFilter.fingerprint("alice", false, "Aa"));
+        assertFalse(a[0] == DuplicateFilter.fingerprint("alice", false, "BB")[0]);
+        // The field boundaries count: "ab"+"c" is not "a"+"bc"
+        assertFalse(DuplicateFilter.fingerprint("ab", false, "c")[1] == DuplicateFilter.fingerprint("a", false, "bc")[1]);
+        assertFalse(a[1] == DuplicateFilter.fingerprint("alice", true, "Aa")[1]);
+    }
+
+    @Test
+    public void testWindow() {
+        DuplicateFilter filter = new DuplicateFilter(1000, 1024, now::get);
+        TextMessage m = new TextMessage("alice", false, "hello");
+        assertTrue(filter.process(m));
+        assertFalse(filter.process(new TextMessage("alice", false, "hello")));
+        assertTrue(filter.process(new TextMessage("alice", true, "hello")));
+        // Still remembered in the previous generation
+        now.addAndGet(1_500_000_000L);
+        assertFalse(filter.process(m));
+        // Forgotten after two windows
+        now.addAndGet(2_000_000_000L);
+        assertTrue(filter.process(m));
+        assertEquals(5, filter.getChecked());
+        assertEquals(2, filter.getDuplicates());
+        assertEquals(0.4, filter.getHitRate(), 0.001);
+    }
+
+    @Test
+    public void testFingerprintWithoutDecoding() {
+        // A Latin-1 text is fingerprinted from its bytes, with the same result as from the String
+        DuplicateFilter filter = new DuplicateFilter(60000, 64, now::get);
+        assertTrue(filter.process(new TextMessage("alice", false, "Blåbær")));
+        assertTrue(filter.isDuplicate("alice", false, "Blåbær"));
+        assertTrue(filter.process(new TextMessage("alice", false, "Smile 😀")));
+        assertTrue(filter.isDuplicate("alice", false, "Smile 😀"));
+    }
+
+    @Test
+    public void testBoundedMemory() {
+        DuplicateFilter filter = new DuplicateFilter(60000, 64, now::get);
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(filter.isDuplicate("bot", false, "message " + i));
+        }
+        assertTrue(filter.getSize() <= 96);
+        assertTrue(filter.getEarlyRotations() > 0);
+        // The latest messages are still remembered
+        assertTrue(filter.isDuplicate("bot", false, "message 999"));
+    }
+}
@@ -0,0 +1,66 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FloodFilterTest {
+    // Fake time for the token buckets and windows
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void testNearDuplicates() {
+        long[] a = FloodFilter.sketch("BUY cheap watches now at example dot com!!!");
+        assertEquals(1.0, FloodFilter.similarity(a, FloodFilter.sketch("buy cheap watches NOW at example dot com")),
+                0.001);
+        assertTrue(FloodFilter.similarity(a, FloodFilter.sketch("buy cheap watches now at example dot org")) > 0.5);
+        assertTrue(FloodFilter.similarity(a, FloodFilter.sketch("Anyone up for lunch at noon today?")) < 0.3);
+        // Texts without letters or digits are compared as they are
+        assertEquals(1.0, FloodFilter.similarity(FloodFilter.sketch("!!!"), FloodFilter.sketch("!!!")), 0.001);
+        assertEquals(0.0, FloodFilter.similarity(FloodFilter.sketch("!!!"), FloodFilter.sketch("???")), 0.001);
+    }
+
+    @Test
+    public void testCollapse() {
+        FloodFilter filter = new FloodFilter(100, now::get);
+        filter.setFloodLimit(1, 3);
+        assertTrue(filter.accept("spammer", false, "Visit my site"));
+        assertFalse(filter.accept("spammer", false, "visit my site!"));
+        assertFalse(filter.accept("spammer", false, "VISIT MY SITE"));
+        // Different messages pass until the burst is used up
+        assertTrue(filter.accept("spammer", false, "first"));
+        assertTrue(filter.accept("spammer", false, "second one"));
+        assertFalse(filter.accept("spammer", false, "third thing"));
+        // Other senders are not affected
+        assertTrue(filter.accept("alice", false, "visit my site"));
+        assertEquals(4, filter.getPassed());
+        assertEquals(2, filter.getRepeated());
+        assertEquals(1, filter.getFlooded());
+
+        // After the repeat window and some tokens, the sender can talk again
+        now.addAndGet(31_000_000_000L);
+        assertTrue(filter.accept("spammer", false, "visit my site"));
+        assertEquals(0, filter.getMutes());
+    }
+
+    @Test
+    public void testMuteAndBoundedSenders() {
+        FloodFilter filter = new FloodFilter(10, now::get);
+        filter.setPolicy(FloodFilter.Policy.MUTE);
+        filter.setMuteTime(5000);
+        assertTrue(filter.accept("spammer", false, "hello everyone"));
+        assertFalse(filter.accept("spammer", true, "hello everyone"));
+        assertFalse(filter.accept("spammer", false, "something completely different"));
+        assertEquals(1, filter.getMutes());
+        assertEquals(1, filter.getMutedMessages());
+        now.addAndGet(5_000_000_000L);
+        assertTrue(filter.accept("spammer", false, "sorry about that"));
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(filter.accept("user" + i, false, "hi"));
+        }
+        assertEquals(10, filter.getTrackedSenders());
+        assertEquals(91, filter.getEvictedSenders());
+    }
+}
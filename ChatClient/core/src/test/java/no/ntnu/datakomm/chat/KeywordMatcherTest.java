@@ -0,0 +1,75 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeywordMatcherTest {
+
+    @Test
+    public void testOverlappingKeywords() {
+        KeywordMatcher m = new KeywordMatcher(Arrays.asList("he", "she", "his", "hers"), false);
+        assertEquals(4, m.size());
+        // The classic example: every keyword is found, overlaps and keywords inside keywords included
+        assertEquals("[she@1-4, he@2-4, hers@2-6]", m.match("ushers").toString());
+        assertEquals("[his@1-4, she@3-6, he@4-6]", m.match("ahishe").toString());
+        assertTrue(m.match("nothing to see").isEmpty());
+        assertTrue(m.match("").isEmpty());
+    }
+
+    @Test
+    public void testCaseAndWholeWords() {
+        KeywordMatcher any = new KeywordMatcher(Arrays.asList("Cat", "cat", "Blåbær"), false);
+        assertEquals(2, any.size());
+        assertEquals("[Cat@0-3, Cat@8-11, Blåbær@12-18]", any.match("CATalog cat BLÅBÆR").toString());
+        KeywordMatcher words = new KeywordMatcher(Arrays.asList("cat", "blåbær"), true);
+        assertEquals("[cat@8-11, blåbær@12-18]", words.match("CATalog cat BLÅBÆR, catcat").toString());
+    }
+
+    @Test
+    public void testManyKeywords() {
+        List<String> keywords = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            keywords.add("word" + i + "x");
+        }
+        KeywordMatcher m = new KeywordMatcher(keywords, true);
+        List<KeywordMatch> found = m.match("say word17x and word4999x but not word5000x or word17");
+        assertEquals("[word17x@4-11, word4999x@16-25]", found.toString());
+    }
+
+    @Test
+    public void testReloadAndAlerts() throws IOException {
+        AlertEngine engine = new AlertEngine(true);
+        final List<String> alerts = new ArrayList<>();
+        engine.addListener((message, matches) -> alerts.add(message.getSender() + " " + matches));
+        TextMessage message = new TextMessage("bob", false, "hello alice, spam here");
+        assertTrue(engine.process(message));
+        assertTrue(alerts.isEmpty());
+
+        engine.setKeywords(Arrays.asList("alice"));
+        assertTrue(engine.process(message));
+        assertEquals(Arrays.asList("bob [alice@6-11]"), alerts);
+
+        Path file = Files.createTempFile("keywords", ".txt");
+        try {
+            Files.write(file, Arrays.asList("# watch-words", "", "  spam ", "alice"), StandardCharsets.UTF_8);
+            engine.reload(file);
+        } finally {
+            Files.delete(file);
+        }
+        assertEquals(2, engine.getKeywordCount());
+        assertTrue(engine.process(message));
+        assertEquals("bob [alice@6-11, spam@13-17]", alerts.get(1));
+        assertEquals(3, engine.getScannedMessages());
+        assertEquals(2, engine.getAlerts());
+        assertEquals(3, engine.getMatches());
+        assertEquals(2, engine.getReloads());
+    }
+}
@@ -0,0 +1,158 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import no.ntnu.datakomm.chat.MessageExporter.Format;
+import no.ntnu.datakomm.chat.MessageExporter.FsyncPolicy;
+import no.ntnu.datakomm.chat.helpers.AwaitingListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageExporterTest {
+    private File directory;
+    private final AtomicLong now = new AtomicLong(1_700_000_000_000L);
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("export").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private MessageExporter open(Format... formats) throws IOException {
+        return new MessageExporter(directory, "chat", 1024, formats, now::get);
+    }
+
+    private List<File> files(String suffix) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(suffix));
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testBothFormats() throws IOException {
+        MessageExporter exporter = open(Format.NDJSON, Format.COLUMNAR);
+        exporter.onMessageReceived(new TextMessage("alice", false, "Hello"));
+        now.addAndGet(1500);
+        exporter.onMessageReceived(new TextMessage("bob", true, "Quote \" and\ttab, blåbær"));
+        exporter.onMessageReceived(new TextMessage("alice", false, "Bye"));
+        exporter.close();
+
+        assertEquals(3, exporter.getExported());
+        assertEquals(1, exporter.getCompletedFiles());
+        assertTrue(files(MessageExporter.PART).isEmpty());
+        List<File> json = files(Format.NDJSON.getExtension());
+        assertEquals(1, json.size());
+        assertEquals("chat-000001.ndjson.gz", json.get(0).getName());
+        assertEquals(Arrays.asList(
+                "{\"time\":1700000000000,\"sender\":\"alice\",\"private\":false,\"text\":\"Hello\"}",
+                "{\"time\":1700000001500,\"sender\":\"bob\",\"private\":true,"
+                        + "\"text\":\"Quote \\\" and\\ttab, blåbær\"}",
+                "{\"time\":1700000001500,\"sender\":\"alice\",\"private\":false,\"text\":\"Bye\"}"),
+                readLines(json.get(0)));
+
+        List<File> columnar = files(Format.COLUMNAR.getExtension());
+        assertEquals(1, columnar.size());
+        List<ExportRecord> records = ColumnarFormat.read(columnar.get(0));
+        assertEquals(3, records.size());
+        assertEquals(1_700_000_001_500L, records.get(1).getTime());
+        assertEquals(new TextMessage("bob", true, "Quote \" and\ttab, blåbær"), records.get(1).getMessage());
+        assertEquals(new TextMessage("alice", false, "Bye"), records.get(2).getMessage());
+    }
+
+    @Test
+    public void testSizeRotation() throws IOException {
+        MessageExporter exporter = open(Format.COLUMNAR);
+        exporter.setRotation(300, Long.MAX_VALUE);
+        exporter.setFsyncPolicy(FsyncPolicy.EVERY_BATCH);
+        exporter.setMaxBatch(10);
+        for (int i = 0; i < 500; i++) {
+            exporter.onMessageReceived(new TextMessage("user" + (i % 7), false, "Message number " + i));
+        }
+        exporter.close();
+
+        List<File> columnar = files(Format.COLUMNAR.getExtension());
+        assertTrue(columnar.size() > 2);
+        assertEquals(columnar.size(), exporter.getCompletedFiles());
+        List<ExportRecord> records = new ArrayList<>();
+        for (File f : columnar) {
+            records.addAll(ColumnarFormat.read(f));
+        }
+        assertEquals(500, records.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals("Message number " + i, records.get(i).getMessage().getText());
+        }
+        assertEquals(500, exporter.getExported());
+        assertEquals(0, exporter.getDropped());
+        assertTrue(exporter.getThroughput() > 0);
+        assertTrue(exporter.getMaxLagMillis() >= exporter.getLagMillis());
+    }
+
+    @Test
+    public void testTimeRotationAndFlush() throws Exception {
+        MessageExporter exporter = open(Format.NDJSON, Format.COLUMNAR);
+        exporter.setRotation(Long.MAX_VALUE, 60000);
+        exporter.onMessageReceived(new TextMessage("alice", false, "First file"));
+        exporter.flush();
+        // A file still being written can be read up to the flush
+        List<File> parts = files(Format.COLUMNAR.getExtension() + MessageExporter.PART);
+        assertEquals(1, parts.size());
+        assertEquals(1, ColumnarFormat.read(parts.get(0)).size());
+
+        now.addAndGet(60000);
+        long deadline = System.currentTimeMillis() + AwaitingListener.TIMEOUT_MS;
+        while (exporter.getCompletedFiles() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, exporter.getCompletedFiles());
+        exporter.onMessageReceived(new TextMessage("alice", false, "Second file"));
+        exporter.close();
+
+        List<File> json = files(Format.NDJSON.getExtension());
+        assertEquals(2, json.size());
+        assertEquals(1, readLines(json.get(1)).size());
+        assertTrue(readLines(json.get(1)).get(0).contains("Second file"));
+
+        // After close, messages are dropped; a new exporter continues the numbering
+        exporter.onMessageReceived(new TextMessage("alice", false, "Too late"));
+        assertEquals(1, exporter.getDropped());
+        exporter = open(Format.NDJSON);
+        exporter.onMessageReceived(new TextMessage("alice", false, "Third file"));
+        exporter.close();
+        assertEquals("chat-000003.ndjson.gz", files(Format.NDJSON.getExtension()).get(2).getName());
+    }
+}
@@ -0,0 +1,120 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageReassemblerTest {
+    // Fake time for the timeouts
+    private final AtomicLong now = new AtomicLong();
+
+    private static String longText(int repeats) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < repeats; i++) {
+            sb.append("Blåbær ").append(i).append(" 😀 ");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testSplitBounds() {
+        String text = longText(200);
+        assertFalse(MessageFragmenter.fits(text, 500));
+        assertTrue(MessageFragmenter.fits("short", 64));
+        List<String> fragments = MessageFragmenter.split(text, 100, "a1");
+        StringBuilder joined = new StringBuilder();
+        for (String f : fragments) {
+            assertTrue(f.getBytes(StandardCharsets.UTF_8).length <= 100);
+            // No surrogate pair is cut in half
+            assertFalse(Character.isHighSurrogate(f.charAt(f.length() - 1)));
+            joined.append(f.substring(f.indexOf(MessageFragmenter.MARKER, 1) + 1));
+        }
+        assertEquals(text, joined.toString());
+    }
+
+    @Test
+    public void testFragmentLimit() {
+        // 50 bytes of text in a 64 byte fragment with the id a1
+        char[] longest = new char[50 * MessageReassembler.MAX_FRAGMENTS];
+        Arrays.fill(longest, 'x');
+        String text = new String(longest);
+        assertTrue(MessageFragmenter.canSplit(text, 64, "a1"));
+        assertEquals(MessageReassembler.MAX_FRAGMENTS, MessageFragmenter.split(text, 64, "a1").size());
+        assertFalse(MessageFragmenter.canSplit(text + "x", 64, "a1"));
+    }
+
+    @Test
+    public void testInterleavedReassembly() {
+        MessageReassembler r = new MessageReassembler(100000, 1000, now::get);
+        String a = longText(50);
+        String b = longText(70);
+        List<String> fa = MessageFragmenter.split(a, 80, "1");
+        List<String> fb = MessageFragmenter.split(b, 80, "1");
+        String resultA = null;
+        String resultB = null;
+        for (int i = 0; i < Math.max(fa.size(), fb.size()); i++) {
+            if (i < fa.size()) {
+                resultA = r.accept("alice", false, fa.get(i));
+            }
+            // Same id, other sender
+            if (i < fb.size()) {
+                resultB = r.accept("bob", false, fb.get(fb.size() - 1 - i));
+            }
+            assertEquals("normal", r.accept("alice", false, "normal"));
+        }
+        assertEquals(a, resultA);
+        assertEquals(b, resultB);
+        assertEquals(2, r.getReassembled());
+        assertEquals(0, r.getPendingMessages());
+        assertEquals(0, r.getPendingChars());
+    }
+
+    @Test
+    public void testTimeout() {
+        MessageReassembler r = new MessageReassembler(100000, 1000, now::get);
+        List<String> f = MessageFragmenter.split(longText(20), 80, "x");
+        assertNull(r.accept("alice", true, f.get(0)));
+        now.addAndGet(2_000_000_000L);
+        assertNull(r.accept("bob", true, MessageFragmenter.split(longText(20), 80, "y").get(0)));
+        assertEquals(1, r.getExpired());
+        assertEquals(1, r.getPendingMessages());
+    }
+
+    @Test
+    public void testMemoryBound() {
+        MessageReassembler r = new MessageReassembler(200, 1000, now::get);
+        for (int i = 0; i < 10; i++) {
+            assertNull(r.accept("sender" + i, false, MessageFragmenter.split(longText(20), 80, "z").get(0)));
+            assertTrue(r.getPendingChars() <= 200);
+        }
+        assertTrue(r.getDropped() > 0);
+    }
+
+    @Test
+    public void testEmptyFragmentsAreCharged() {
+        MessageReassembler r = new MessageReassembler(10000, 30000, now::get);
+        char marker = MessageFragmenter.MARKER;
+        for (int i = 0; i < 100000; i++) {
+            assertNull(r.accept("mallory", false, marker + "id" + i + " 0/" + MessageReassembler.MAX_FRAGMENTS
+                    + marker));
+            assertTrue(r.getPendingChars() <= 10000);
+        }
+        assertTrue(r.getPendingMessages() <= 10000 / MessageReassembler.MESSAGE_OVERHEAD);
+        assertTrue(r.getDropped() > 0);
+    }
+
+    @Test
+    public void testNotAFragment() {
+        MessageReassembler r = new MessageReassembler();
+        String[] texts = {"", "hello", MessageFragmenter.MARKER + "broken", MessageFragmenter.MARKER + "id 3/2"
+                + MessageFragmenter.MARKER + "x", MessageFragmenter.MARKER + "id a/b" + MessageFragmenter.MARKER};
+        for (String t : texts) {
+            assertEquals(t, r.accept("alice", false, t));
+        }
+        assertEquals(0, r.getFragments());
+    }
+}
@@ -0,0 +1,141 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import no.ntnu.datakomm.chat.helpers.AwaitingListener;
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.helpers.FakeChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MultiServerClientTest {
+    private FakeChatServer serverA;
+    private FakeChatServer serverB;
+    private MultiServerClient multi;
+    private DummyMsgReceiver receiver;
+
+    @Before
+    public void startServers() throws InterruptedException {
+        serverA = new FakeChatServer();
+        serverB = new FakeChatServer();
+        multi = new MultiServerClient();
+        multi.addServer("a", 1300, serverA);
+        multi.addServer("b", 1300, serverB);
+        multi.setProbing(20, 200);
+        receiver = new DummyMsgReceiver();
+        multi.addListener(receiver);
+        assertTrue(multi.start("alice"));
+        assertTrue(eventually(this::bothMeasured));
+    }
+
+    @After
+    public void stop() {
+        multi.stop();
+        serverA.shutdown();
+        serverB.shutdown();
+    }
+
+    /**
+     * Wait for a change of the health state, which is not announced to the listeners.
+     */
+    private static boolean eventually(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + AwaitingListener.TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    private boolean bothMeasured() {
+        for (MultiServerClient.ServerStatus s : multi.getServerStatus()) {
+            if (!s.isHealthy() || s.getRttMillis() < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private TCPClient observer(FakeChatServer server, DummyMsgReceiver listener) {
+        TCPClient client = new TCPClient(server);
+        assertTrue(client.connect("observer", 1300));
+        client.addListener(listener);
+        client.startListenThread();
+        client.tryLogin("bob");
+        return client;
+    }
+
+    @Test
+    public void testMergedStreamWithoutDuplicates() throws InterruptedException {
+        serverA.broadcast("msg carl Hello from both");
+        serverB.broadcast("msg carl Hello from both");
+        serverB.broadcast("msg dave Only on B");
+        TextMessage fromB = new TextMessage("dave", false, "Only on B");
+        assertTrue(receiver.await(() -> receiver.hasReceived(fromB)));
+        assertTrue(receiver.hasReceived(new TextMessage("carl", false, "Hello from both")));
+        // The copy from A may still be on its way: the sessions have their own listen threads
+        assertTrue(eventually(() -> multi.getDuplicateFilter().getDuplicates() == 1));
+        assertEquals(2, multi.getDuplicateFilter().getChecked() - multi.getDuplicateFilter().getDuplicates());
+        // The probe answers are not part of the merged stream
+        assertTrue(multi.getProbes() >= 2);
+    }
+
+    @Test
+    public void testWithoutDuplicateFilter() throws InterruptedException {
+        multi.setDuplicateFilter(null);
+        AtomicInteger received = new AtomicInteger();
+        multi.addListener(new EmptyChatListener() {
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                received.incrementAndGet();
+            }
+        });
+        // A message really repeated by its sender is delivered every time
+        serverA.broadcast("msg carl ok");
+        serverA.broadcast("msg carl ok");
+        assertTrue(eventually(() -> received.get() == 2));
+        assertNull(multi.getDuplicateFilter());
+    }
+
+    @Test
+    public void testFailover() throws InterruptedException {
+        String first = multi.getActiveServer();
+        assertNotNull(first);
+        boolean aFirst = first.startsWith("a:");
+        FakeChatServer dying = aFirst ? serverA : serverB;
+        FakeChatServer surviving = aFirst ? serverB : serverA;
+        DummyMsgReceiver bob = new DummyMsgReceiver();
+        TCPClient observer = observer(surviving, bob);
+
+        // The active server hangs: its probes are not answered any more
+        dying.script("help");
+        assertTrue(eventually(() -> !first.equals(multi.getActiveServer())));
+        assertEquals(1, multi.getFailovers());
+        assertTrue(multi.getProbeTimeouts() > 0);
+        assertTrue(multi.sendPublicMessage("After failover"));
+        TextMessage expected = new TextMessage("alice", false, "After failover");
+        assertTrue(bob.await(() -> bob.hasReceived(expected)));
+
+        // The other server dies too: nothing is left to send through
+        surviving.shutdown();
+        assertTrue(eventually(() -> multi.getActiveServer() == null));
+        assertFalse(multi.sendPublicMessage("Nowhere to go"));
+        observer.disconnect();
+    }
+
+    @Test
+    public void testReconnect() throws InterruptedException {
+        serverA.shutdown();
+        serverB.shutdown();
+        assertTrue(eventually(() -> multi.getActiveServer() == null));
+        // Both servers accept new connections again, the sessions come back on their own
+        assertTrue(eventually(() -> multi.getReconnects() >= 2 && bothMeasured()));
+        assertNotNull(multi.getActiveServer());
+    }
+}
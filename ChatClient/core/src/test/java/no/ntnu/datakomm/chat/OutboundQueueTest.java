@@ -0,0 +1,189 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import no.ntnu.datakomm.chat.OutboundQueue.Priority;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+    // Fake time for the ageing, so the tests do not depend on how fast they run
+    private final AtomicLong now = new AtomicLong();
+
+    /**
+     * Records the written commands. The first write blocks until release(), so that the test can fill the
+     * queues while the writer is busy. Writing the command failOn fails.
+     */
+    private static class BlockingSink implements OutboundQueue.Sink {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final CountDownLatch failure = new CountDownLatch(1);
+        private final List<String> written = new ArrayList<>();
+        private int flushes = 0;
+        private volatile String failOn = null;
+        private volatile Object failedAttachment = null;
+
+        @Override
+        public void write(String command, Object attachment, OutboundQueue.Action afterWrite) throws IOException {
+            started.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (command.equals(failOn)) {
+                throw new IOException("Broken pipe");
+            }
+            synchronized (this) {
+                written.add(command);
+                notifyAll();
+            }
+            if (afterWrite != null) {
+                afterWrite.run();
+            }
+        }
+
+        @Override
+        public synchronized void flush() {
+            flushes++;
+        }
+
+        @Override
+        public void failed(IOException e, Object attachment) {
+            failedAttachment = attachment;
+            failure.countDown();
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        synchronized List<String> awaitWritten(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (written.size() < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            return new ArrayList<>(written);
+        }
+    }
+
+    @Test
+    public void testControlGoesFirst() throws InterruptedException {
+        BlockingSink sink = new BlockingSink();
+        OutboundQueue queue = new OutboundQueue(sink, 100, 1000, now::get);
+        queue.start();
+        queue.submit("msg first", Priority.PUBLIC, null);
+        assertTrue(sink.started.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            queue.submit("msg bulk" + i, Priority.BULK, null);
+            queue.submit("msg public" + i, Priority.PUBLIC, null);
+        }
+        queue.submit("privmsg bob hi", Priority.PRIVATE, null);
+        queue.submit("users", Priority.CONTROL, null);
+        sink.release();
+        List<String> written = sink.awaitWritten(23);
+        assertEquals(23, written.size());
+        assertEquals("msg first", written.get(0));
+        assertEquals("users", written.get(1));
+        assertEquals("privmsg bob hi", written.get(2));
+        assertEquals("msg public0", written.get(3));
+        assertEquals("msg public9", written.get(12));
+        assertEquals("msg bulk0", written.get(13));
+        assertEquals(11, queue.getSent(Priority.PUBLIC));
+        // Written in batches, not flushed after every command
+        assertTrue(sink.flushes < 23);
+        queue.close();
+    }
+
+    @Test
+    public void testStarvationProtection() throws InterruptedException {
+        BlockingSink sink = new BlockingSink();
+        OutboundQueue queue = new OutboundQueue(sink, 100, 500, now::get);
+        queue.start();
+        queue.submit("users", Priority.CONTROL, null);
+        assertTrue(sink.started.await(2, TimeUnit.SECONDS));
+        queue.submit("msg old bulk", Priority.BULK, null);
+        now.addAndGet(600_000_000L);
+        for (int i = 0; i < 5; i++) {
+            queue.submit("privmsg bob " + i, Priority.PRIVATE, null);
+        }
+        sink.release();
+        List<String> written = sink.awaitWritten(7);
+        assertEquals("msg old bulk", written.get(1));
+        assertEquals(1, queue.getAged(Priority.BULK));
+        queue.close();
+    }
+
+    @Test
+    public void testControlFirstUnderBacklog() throws InterruptedException {
+        BlockingSink sink = new BlockingSink();
+        OutboundQueue queue = new OutboundQueue(sink, 100, 500, now::get);
+        queue.start();
+        queue.submit("msg first", Priority.PUBLIC, null);
+        assertTrue(sink.started.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            queue.submit("msg public" + i, Priority.PUBLIC, null);
+        }
+        // The whole public backlog is older than the maximum wait
+        now.addAndGet(600_000_000L);
+        for (int i = 0; i < 10; i++) {
+            queue.submit("privmsg bob " + i, Priority.PRIVATE, null);
+        }
+        queue.submit("users", Priority.CONTROL, null);
+        sink.release();
+        List<String> written = sink.awaitWritten(22);
+        assertEquals(22, written.size());
+        assertEquals("users", written.get(1));
+        // Aged commands get one turn out of AGED_SHARE, the private messages the others
+        assertEquals("msg public0", written.get(2));
+        assertEquals("privmsg bob 0", written.get(3));
+        assertEquals("privmsg bob 2", written.get(5));
+        assertEquals("msg public1", written.get(6));
+        assertEquals("privmsg bob 3", written.get(7));
+        queue.close();
+    }
+
+    /**
+     * Every attachment comes back exactly once: written, given to failed(), or returned by close().
+     *
+     * @throws InterruptedException When interrupted while waiting
+     */
+    @Test
+    public void testWriteFailure() throws InterruptedException {
+        BlockingSink sink = new BlockingSink();
+        sink.failOn = "msg broken";
+        OutboundQueue queue = new OutboundQueue(sink, 100, 500, now::get);
+        queue.start();
+        queue.submit("msg first", Priority.PUBLIC, null, "first");
+        assertTrue(sink.started.await(2, TimeUnit.SECONDS));
+        queue.submit("msg broken", Priority.PUBLIC, null, "broken");
+        queue.submit("msg never", Priority.PUBLIC, null, "never");
+        sink.release();
+        assertTrue(sink.failure.await(2, TimeUnit.SECONDS));
+        assertEquals("broken", sink.failedAttachment);
+        assertEquals(Collections.singletonList("msg first"), sink.awaitWritten(1));
+        assertEquals(Collections.singletonList("never"), queue.close());
+    }
+
+    @Test
+    public void testCapacity() {
+        OutboundQueue queue = new OutboundQueue(new BlockingSink(), 2, 500, now::get);
+        assertTrue(queue.submit("msg 1", Priority.PUBLIC, null));
+        assertTrue(queue.submit("msg 2", Priority.PUBLIC, null));
+        assertFalse(queue.submit("msg 3", Priority.PUBLIC, null));
+        // Control commands are always accepted
+        assertTrue(queue.submit("users", Priority.CONTROL, null));
+        assertTrue(queue.submit("help", Priority.CONTROL, null));
+        assertTrue(queue.submit("help", Priority.CONTROL, null));
+        assertEquals(1, queue.getRejected(Priority.PUBLIC));
+        assertEquals(3, queue.getQueueLength(Priority.CONTROL));
+        queue.close();
+        assertFalse(queue.submit("users", Priority.CONTROL, null));
+    }
+}
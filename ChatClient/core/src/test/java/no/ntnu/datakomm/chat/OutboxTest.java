@@ -0,0 +1,87 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+    private File journal;
+
+    @Before
+    public void createJournal() throws IOException {
+        journal = File.createTempFile("outbox", ".journal");
+    }
+
+    @After
+    public void deleteJournal() {
+        journal.delete();
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+        Outbox outbox = Outbox.open(journal);
+        outbox.append(null, "First");
+        outbox.append("bob", "Tabs\tand\nnew lines \\ too");
+        outbox.append(null, "Third");
+        outbox.close();
+        // A crash while writing leaves a torn line at the end
+        Files.write(journal.toPath(), "A\t9\t\tTorn".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        outbox = Outbox.open(journal);
+        List<Map.Entry<String, String>> pending = outbox.getPendingMessages();
+        assertEquals(3, pending.size());
+        assertNull(pending.get(0).getKey());
+        assertEquals("First", pending.get(0).getValue());
+        assertEquals("bob", pending.get(1).getKey());
+        assertEquals("Tabs\tand\nnew lines \\ too", pending.get(1).getValue());
+        assertEquals("Third", pending.get(2).getValue());
+        // New messages go after the recovered ones
+        assertEquals(4, outbox.append(null, "Fourth"));
+        outbox.close();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        final Outbox outbox = Outbox.open(journal);
+        List<Thread> threads = new ArrayList<>();
+        final List<Exception> errors = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int id = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        outbox.append(null, "Thread " + id + " message " + i);
+                    }
+                } catch (IOException e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.isEmpty());
+        assertEquals(400, outbox.getAppended());
+        assertEquals(400, outbox.getPending());
+        assertTrue(outbox.getCommits() <= 400);
+        assertEquals(400.0, outbox.getCommits() * outbox.getAverageCommitSize(), 0.001);
+        outbox.close();
+        Outbox reopened = Outbox.open(journal);
+        assertEquals(400, reopened.getPending());
+        reopened.close();
+    }
+}
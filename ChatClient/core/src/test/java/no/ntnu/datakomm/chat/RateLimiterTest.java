@@ -0,0 +1,120 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import no.ntnu.datakomm.chat.helpers.FakeChatServer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    // Fake time, so the tests do not depend on how fast they run
+    private final AtomicLong now = new AtomicLong();
+
+    private TokenBucket bucket(double rate, int burst) {
+        return new TokenBucket(rate, burst, now::get);
+    }
+
+    @Test
+    public void testBucketRefill() {
+        TokenBucket b = bucket(2, 3);
+        assertTrue(b.tryTake());
+        assertTrue(b.tryTake());
+        assertTrue(b.tryTake());
+        assertFalse(b.tryTake());
+        now.addAndGet(SECOND / 2);
+        assertTrue(b.tryTake());
+        assertFalse(b.tryTake());
+        // Never more than the burst
+        now.addAndGet(100 * SECOND);
+        assertEquals(3.0, b.getTokens(), 1e-9);
+    }
+
+    @Test
+    public void testRejectPolicy() {
+        RateLimiter limiter = new RateLimiter(RateLimiter.Policy.REJECT);
+        limiter.setCommandBucket("msg", bucket(1, 2));
+        limiter.setSessionBucket(bucket(1, 3));
+        assertEquals(0, limiter.admit("msg"));
+        assertEquals(0, limiter.admit("msg"));
+        assertEquals(-1, limiter.admit("msg"));
+        // The session still has one token for the other commands
+        assertEquals(0, limiter.admit("privmsg"));
+        assertEquals(-1, limiter.admit("users"));
+        // Rejected commands do not use tokens
+        assertEquals(0.0, limiter.getTokens("msg"), 1e-9);
+        assertEquals(0.0, limiter.getSessionTokens(), 1e-9);
+        // Control commands are never limited
+        assertEquals(0, limiter.admit("login"));
+        assertEquals(3, limiter.getAllowed());
+        assertEquals(2, limiter.getRejected());
+    }
+
+    @Test
+    public void testQueuePolicy() {
+        RateLimiter limiter = new RateLimiter(RateLimiter.Policy.QUEUE);
+        limiter.setCommandBucket("msg", bucket(10, 1));
+        limiter.setMaxDelay(250);
+        assertEquals(0, limiter.admit("msg"));
+        // Each following message waits 100 ms more than the one before
+        assertEquals(SECOND / 10, limiter.admit("msg"), 1000);
+        assertEquals(2 * SECOND / 10, limiter.admit("msg"), 1000);
+        assertEquals(-1, limiter.admit("msg"));
+        assertEquals(2, limiter.getDelayed());
+        assertEquals(1, limiter.getRejected());
+        assertEquals(-2.0, limiter.getTokens("msg"), 1e-6);
+    }
+
+    @Test
+    public void testInterruptedWaitRefunds() {
+        RateLimiter limiter = new RateLimiter(RateLimiter.Policy.QUEUE);
+        limiter.setCommandBucket("msg", bucket(10, 1));
+        assertTrue(limiter.acquire("msg"));
+        Thread.currentThread().interrupt();
+        assertFalse(limiter.acquire("msg"));
+        assertTrue(Thread.interrupted());
+        // The interrupted command gave its token back: the next one waits 100 ms, not 200
+        assertEquals(0.0, limiter.getTokens("msg"), 1e-6);
+        assertEquals(SECOND / 10, limiter.admit("msg"), 1000);
+    }
+
+    @Test
+    public void testSharedBucket() {
+        TokenBucket shared = bucket(1, 2);
+        RateLimiter a = new RateLimiter(RateLimiter.Policy.REJECT, shared);
+        RateLimiter b = new RateLimiter(RateLimiter.Policy.REJECT, shared);
+        assertEquals(0, a.admit("msg"));
+        assertEquals(0, b.admit("privmsg"));
+        assertEquals(-1, a.admit("msg"));
+        assertEquals(-1, b.admit("msg"));
+        now.addAndGet(SECOND);
+        assertEquals(0, b.admit("msg"));
+    }
+
+    /**
+     * The client fails the commands over the limit and sends the rest.
+     *
+     * @throws InterruptedException When interrupted while waiting
+     */
+    @Test
+    public void testClientRejects() throws InterruptedException {
+        FakeChatServer server = new FakeChatServer();
+        try {
+            TCPClient client = new TCPClient(server);
+            assertTrue(client.connect("localhost", 1300));
+            RateLimiter limiter = new RateLimiter(RateLimiter.Policy.REJECT);
+            limiter.setCommandLimit("msg", 0.001, 2);
+            client.setRateLimiter(limiter);
+            assertTrue(client.sendPublicMessage("one"));
+            assertTrue(client.sendPublicMessage("two"));
+            assertFalse(client.sendPublicMessage("three"));
+            assertEquals("Rate limit exceeded", client.getLastError());
+            client.refreshUserList();
+            assertEquals(1, limiter.getRejected());
+            client.disconnect();
+        } finally {
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,909 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import no.ntnu.datakomm.chat.helpers.AwaitingListener;
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.DummySupportedReceiver;
+import no.ntnu.datakomm.chat.helpers.DummyUserListingReceiver;
+import no.ntnu.datakomm.chat.helpers.DummyUserStreamReceiver;
+import no.ntnu.datakomm.chat.helpers.FakeChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TcpClientTest {
+    // Host and port to be used for all connection in the tests
+    private static final String SERVER_HOST = "datakomm.work";
+    private static final int SERVER_PORT = 1300;
+
+    // In-process server, the clients reach it through loopback transports instead of the network
+    private FakeChatServer server;
+
+    @Before
+    public void startServer() {
+        server = new FakeChatServer();
+    }
+
+    @After
+    public void stopServer() {
+        server.shutdown();
+    }
+
+    /**
+     * @return A new client which connects to the in-process server
+     */
+    private TCPClient newClient() {
+        return new TCPClient(server);
+    }
+
+    /**
+     * Connect a new client, log in and wait for the login to be confirmed. The client listens for incoming
+     * messages when this method returns.
+     *
+     * @param username Username to log in with
+     * @return The logged-in client
+     * @throws InterruptedException When interrupted while waiting for the login response
+     */
+    private TCPClient connectAndLogin(String username) throws InterruptedException {
+        TCPClient client = newClient();
+        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        client.startListenThread();
+        client.tryLogin(username);
+        assertTrue(counter.await(() -> counter.loginSuccess == 1));
+        client.removeListener(counter);
+        return client;
+    }
+
+    /**
+     * Test if opening and closing connection works
+     */
+    @Test
+    public void testConnection() {
+        // Note - this test is not very accurate. It does not actually check whether we have made
+        // connection to the right server. That would be a bit difficult to do, although it is doable.
+        TCPClient client = newClient();
+        assertFalse(client.isConnectionActive());
+        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(client.isConnectionActive());
+        client.disconnect();
+        assertFalse(client.isConnectionActive());
+    }
+
+    /**
+     * Test if login works correctly. Note: this test can fail if several students run the same test at the same
+     * time: several clients will try to use the same username.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testLogin() throws InterruptedException {
+        TCPClient client = newClient();
+        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        // The incoming messages will be received on another thread
+        client.startListenThread();
+        // Listen to how many messages of each type the client receives
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        assertEquals(0, counter.loginSuccess);
+        assertEquals(0, counter.loginError);
+
+        // Try bad username
+        client.tryLogin("Bad username");
+        // wait for the login response (loginerr) to arrive
+        assertTrue(counter.await(() -> counter.loginError == 1));
+        assertEquals(0, counter.loginSuccess);
+        assertEquals(1, counter.loginError);
+
+        // Reset the counters
+        counter.reset();
+
+        // Try ok username with letters only
+        client.tryLogin("unittestnormal");
+        // wait for the login response to arrive
+        assertTrue(counter.await(() -> counter.loginSuccess == 1));
+        assertEquals(1, counter.loginSuccess);
+        assertEquals(0, counter.loginError);
+
+        // Reset the counters
+        counter.reset();
+
+        // Try ok username with big and small letters
+        client.tryLogin("UnitTestCamel");
+        // wait for the login response to arrive
+        assertTrue(counter.await(() -> counter.loginSuccess == 1));
+        assertEquals(1, counter.loginSuccess);
+        assertEquals(0, counter.loginError);
+
+        // Reset the counters
+        counter.reset();
+
+        // Alphanumerics
+        client.tryLogin("UnitTest35Alpha");
+        // wait for the login response to arrive
+        assertTrue(counter.await(() -> counter.loginSuccess == 1));
+        assertEquals(1, counter.loginSuccess);
+        assertEquals(0, counter.loginError);
+        counter.reset();
+
+        client.disconnect();
+    }
+
+    /**
+     * Test if sending public messages works
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testPublicMessages() throws InterruptedException {
+        // Create three clients. When one sends a message others should receive
+        TCPClient c1 = newClient();
+        TCPClient c2 = newClient();
+        TCPClient c3 = newClient();
+        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c3.connect(SERVER_HOST, SERVER_PORT));
+
+        // Client 1 logs in with a specific username
+        String C1_USERNAME = "UnitTestCC";
+        c1.tryLogin(C1_USERNAME);
+
+        // Clients 2 and 3 will listen for incoming messages, each on a different CPU thread
+        c2.startListenThread();
+        c3.startListenThread();
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        DummyMsgReceiver rec3 = new DummyMsgReceiver();
+        c2.addListener(rec2);
+        c3.addListener(rec3);
+
+        final String MSG_TEXT = "[Unittest] This is a specific text message, please, don't repeat it!";
+        c1.sendPublicMessage(MSG_TEXT);
+
+        // Wait for the messages to arrive
+        TextMessage expectedMsg = new TextMessage(C1_USERNAME, false, MSG_TEXT);
+        assertTrue(rec2.await(() -> rec2.hasReceived(expectedMsg)));
+        assertTrue(rec3.await(() -> rec3.hasReceived(expectedMsg)));
+
+        // Disconnect all clients
+        c1.disconnect();
+        c2.disconnect();
+        c3.disconnect();
+    }
+
+    /**
+     * Test if sending private messages works.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testPrivateMessages() throws InterruptedException {
+        // Create three clients. One sends message to another. Third one should not receive.
+        // Clients log in with specific usernames and listen for incoming messages, each on a different CPU thread
+        String C1_USERNAME = "UnitTestC1";
+        String C2_USERNAME = "UnitTestC2";
+        String C3_USERNAME = "UnitTestC3";
+        TCPClient c1 = connectAndLogin(C1_USERNAME);
+        TCPClient c2 = connectAndLogin(C2_USERNAME);
+        TCPClient c3 = connectAndLogin(C3_USERNAME);
+
+        DummyMsgReceiver rec1 = new DummyMsgReceiver();
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        DummyMsgReceiver rec3 = new DummyMsgReceiver();
+        c1.addListener(rec1);
+        c2.addListener(rec2);
+        c3.addListener(rec3);
+
+        String MSG_TEXT = "[Unittest2] This is a specific text message, please, don't repeat it!";
+        // Send to Client #2 only
+        c1.sendPrivateMessage(C2_USERNAME, MSG_TEXT);
+
+        // Wait for the message to arrive
+        final TextMessage expectedMsg = new TextMessage(C1_USERNAME, true, MSG_TEXT);
+        assertTrue(rec2.await(() -> rec2.hasReceived(expectedMsg)));
+        assertFalse(rec1.hasReceived(expectedMsg));
+        assertFalse(rec3.hasReceived(expectedMsg));
+
+        rec1.clearMessages();
+        rec2.clearMessages();
+        rec3.clearMessages();
+
+        // Now send from C2 to C3
+        MSG_TEXT = "[Unittest3] This is a specific text message, please, don't repeat it!";
+        c2.sendPrivateMessage(C3_USERNAME, MSG_TEXT);
+
+        // Wait for the message to arrive
+        final TextMessage expectedMsg2 = new TextMessage(C2_USERNAME, true, MSG_TEXT);
+        assertTrue(rec3.await(() -> rec3.hasReceived(expectedMsg2)));
+        assertFalse(rec1.hasReceived(expectedMsg2));
+        assertFalse(rec2.hasReceived(expectedMsg2));
+
+        // Disconnect all clients
+        c1.disconnect();
+        c2.disconnect();
+        c3.disconnect();
+    }
+
+    /**
+     * Try to close a connection that was never opened. There should be no exception.
+     */
+    @Test
+    public void testDisconnectFail() {
+        TCPClient client = newClient();
+        client.disconnect();
+    }
+
+    /**
+     * Test if user listing works correctly.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testUserListing() throws InterruptedException {
+        // Create three clients. One sends message to another. Third one should not receive.
+        // Clients log in with specific usernames, the incoming messages will be received on other threads
+        // Get some randomness added to the usernames
+        int rand = (int) (Math.random() * 10000);
+        String C1_USERNAME = "UnitTestC1" + rand;
+        String C2_USERNAME = "UnitTestC2" + rand;
+        String C3_USERNAME = "UnitTestC3" + rand;
+        TCPClient c1 = connectAndLogin(C1_USERNAME);
+        TCPClient c2 = connectAndLogin(C2_USERNAME);
+        TCPClient c3 = connectAndLogin(C3_USERNAME);
+
+        // Listen to user listing.
+        DummyUserListingReceiver userListing = new DummyUserListingReceiver();
+        c1.addListener(userListing);
+
+        // Try to get user listing
+        c1.refreshUserList();
+
+        // Wait for the user listing response to arrive
+        // We should get all the users listed in a single message and it should contain all the three client names
+        assertTrue(userListing.await(() -> userListing.getCount() >= 3));
+        assertTrue(userListing.contains(C1_USERNAME));
+        assertTrue(userListing.contains(C2_USERNAME));
+        assertTrue(userListing.contains(C3_USERNAME));
+
+        // Disconnect all clients
+        c1.disconnect();
+        c2.disconnect();
+        c3.disconnect();
+    }
+
+    /**
+     * Lines longer than the maximum line length: a huge user list arrives in pieces and is delivered whole, a
+     * huge message is skipped.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testOversizedLines() throws InterruptedException {
+        StringBuilder users = new StringBuilder("users");
+        for (int i = 0; i < 300; i++) {
+            users.append(" UnitTestUser").append(i);
+        }
+        StringBuilder flood = new StringBuilder("msg flooder ");
+        for (int i = 0; i < 1000; i++) {
+            flood.append('x');
+        }
+        server.script("users", flood.toString(), users.toString());
+
+        TCPClient c1 = newClient();
+        c1.setMaxLineLength(256);
+        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+        DummyUserListingReceiver userListing = new DummyUserListingReceiver();
+        c1.addListener(userListing);
+        c1.startListenThread();
+        c1.refreshUserList();
+
+        assertTrue(userListing.await(() -> userListing.getCount() >= 300));
+        assertEquals(300, userListing.getCount());
+        assertTrue(userListing.contains("UnitTestUser0"));
+        assertTrue(userListing.contains("UnitTestUser299"));
+        FrameStats stats = c1.getFrameStats();
+        assertEquals(1, stats.getChunkedFrames());
+        assertTrue(stats.getChunks() > 1);
+        assertEquals(1, stats.getRejectedFrames());
+        c1.disconnect();
+    }
+
+    /**
+     * A user list listener gets a long list in pieces; with collecting off, the ChatListeners get nothing.
+     * Short lists come as one piece.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testStreamedUserList() throws InterruptedException {
+        StringBuilder users = new StringBuilder("users");
+        for (int i = 0; i < 1000; i++) {
+            users.append(" UnitTestUser").append(i);
+        }
+        server.script("users", users.toString());
+        server.script("help", "users UnitTestA UnitTestB");
+
+        TCPClient c1 = newClient();
+        c1.setMaxLineLength(512);
+        c1.setCollectUserLists(false);
+        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+        DummyUserListingReceiver userListing = new DummyUserListingReceiver();
+        DummyUserStreamReceiver stream = new DummyUserStreamReceiver();
+        c1.addListener(userListing);
+        c1.addUserListListener(stream);
+        c1.startListenThread();
+        c1.refreshUserList();
+
+        assertTrue(stream.await(() -> stream.getLists() >= 1));
+        assertEquals(1000, stream.getReportedCount());
+        assertTrue(stream.getPieces() > 1);
+        assertTrue(stream.contains("UnitTestUser999"));
+        c1.askSupportedCommands();
+        assertTrue(stream.await(() -> stream.getLists() == 2));
+        assertEquals(2, stream.getCount());
+        assertEquals(2, stream.getReportedCount());
+        assertEquals(1, stream.getPieces());
+        // Only the short list reached the ChatListener
+        assertTrue(userListing.await(() -> userListing.getCount() == 2));
+        assertFalse(userListing.contains("UnitTestUser0"));
+        c1.disconnect();
+    }
+
+    /**
+     * Test if supported command listing works correctly.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testSupportedCommands() throws InterruptedException {
+        // Create a TCP chat client.
+        TCPClient c1 = newClient();
+        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+
+        // The incoming messages will be received on another thread
+        c1.startListenThread();
+
+        // Listen to user listing.
+        DummySupportedReceiver supported = new DummySupportedReceiver();
+        c1.addListener(supported);
+
+        // Try to get supported command listing
+        c1.askSupportedCommands();
+
+        // Wait for the listing response to arrive
+        assertTrue(supported.await(() -> supported.getCount() > 0));
+        assertTrue(supported.contains("login"));
+        assertTrue(supported.contains("msg"));
+        assertTrue(supported.contains("privmsg"));
+        assertTrue(supported.contains("users"));
+        assertTrue(supported.contains("help"));
+
+        // Disconnect all clients
+        c1.disconnect();
+    }
+
+    /**
+     * Test that the clients can switch to the binary framing when the server supports it, and keep chatting.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testBinaryFraming() throws InterruptedException {
+        server.advertise(BinaryFrameCodec.EXTENSION);
+        TCPClient c1 = connectAndLogin("UnitTestBin1");
+        TCPClient c2 = connectAndLogin("UnitTestBin2");
+        assertFalse(c1.enableBinaryFraming());
+
+        // The extension is discovered through the supported command listing
+        DummySupportedReceiver supported = new DummySupportedReceiver();
+        c1.addListener(supported);
+        c1.askSupportedCommands();
+        assertTrue(supported.await(() -> supported.contains(BinaryFrameCodec.EXTENSION)));
+        assertTrue(c1.isBinaryFramingSupported());
+        assertTrue(c1.enableBinaryFraming());
+
+        // Messages flow both ways: c1 sends framed, c2 still uses the text protocol
+        DummyMsgReceiver rec1 = new DummyMsgReceiver();
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        c1.addListener(rec1);
+        c2.addListener(rec2);
+        final TextMessage toC2 = new TextMessage("UnitTestBin1", true, "Framed message");
+        final TextMessage toC1 = new TextMessage("UnitTestBin2", false, "Text message with ÆØÅ");
+        c1.sendPrivateMessage("UnitTestBin2", toC2.getText());
+        assertTrue(rec2.await(() -> rec2.hasReceived(toC2)));
+        c2.sendPublicMessage(toC1.getText());
+        assertTrue(rec1.await(() -> rec1.hasReceived(toC1)));
+
+        c1.disconnect();
+        c2.disconnect();
+    }
+
+    /**
+     * Test sending through the priority queues, including the extension switches which must happen right after
+     * their requests are written.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testPriorityQueues() throws InterruptedException {
+        server.advertise(BinaryFrameCodec.EXTENSION);
+        server.advertise(CompressedOutputStream.EXTENSION);
+        TCPClient c1 = newClient();
+        c1.setPriorityQueues(true);
+        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+        DummyResponseCounter counter = new DummyResponseCounter();
+        DummySupportedReceiver supported = new DummySupportedReceiver();
+        c1.addListener(counter);
+        c1.addListener(supported);
+        c1.startListenThread();
+        c1.tryLogin("UnitTestQ1");
+        assertTrue(counter.await(() -> counter.loginSuccess == 1));
+        c1.askSupportedCommands();
+        assertTrue(supported.await(() -> supported.contains(BinaryFrameCodec.EXTENSION)));
+        TCPClient c2 = connectAndLogin("UnitTestQ2");
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        c2.addListener(rec2);
+
+        assertTrue(c1.enableBinaryFraming());
+        assertTrue(c1.enableCompression());
+        for (int i = 0; i < 20; i++) {
+            assertTrue(c1.sendBulkMessage("Bulk message " + i));
+            assertTrue(c1.sendPublicMessage("Public message " + i));
+        }
+        final TextMessage lastBulk = new TextMessage("UnitTestQ1", false, "Bulk message 19");
+        final TextMessage lastPublic = new TextMessage("UnitTestQ1", false, "Public message 19");
+        assertTrue(rec2.await(() -> rec2.hasReceived(lastBulk) && rec2.hasReceived(lastPublic)));
+        OutboundQueue queue = c1.getOutboundQueue();
+        assertEquals(20, queue.getSent(OutboundQueue.Priority.BULK));
+        assertEquals(20, queue.getSent(OutboundQueue.Priority.PUBLIC));
+        assertTrue(c1.getSentCompressionStats().getBlocks() > 0);
+
+        // A fan-out goes through the queues too, as bulk messages
+        FanOutResult result = c1.sendPrivateMessages(Arrays.asList("UnitTestQ2", "UnitTestNobody"), "Fan-out");
+        assertTrue(result.await(AwaitingListener.TIMEOUT_MS));
+        assertEquals(1, result.getDelivered());
+        assertEquals(1, result.getFailed());
+        assertEquals(22, queue.getSent(OutboundQueue.Priority.BULK));
+
+        c1.disconnect();
+        c2.disconnect();
+    }
+
+    /**
+     * Long messages are sent in fragments and delivered whole, public and private.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testFragmentedMessages() throws InterruptedException {
+        TCPClient c1 = connectAndLogin("UnitTestFrag1");
+        TCPClient c2 = connectAndLogin("UnitTestFrag2");
+        c1.setMaxMessageSize(100);
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        c2.addListener(rec2);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("Fragment ").append(i).append(" æøå ");
+        }
+        final TextMessage pub = new TextMessage("UnitTestFrag1", false, text.toString());
+        final TextMessage priv = new TextMessage("UnitTestFrag1", true, "Private " + text);
+        final TextMessage small = new TextMessage("UnitTestFrag1", false, "Small");
+        assertTrue(c1.sendPublicMessage(pub.getText()));
+        assertTrue(c1.sendPrivateMessage("UnitTestFrag2", priv.getText()));
+        assertTrue(c1.sendPublicMessage(small.getText()));
+        assertTrue(rec2.await(() -> rec2.hasReceived(pub) && rec2.hasReceived(priv) && rec2.hasReceived(small)));
+        assertEquals(2, c2.getReassembler().getReassembled());
+        c1.disconnect();
+        c2.disconnect();
+    }
+
+    /**
+     * The same private message to many recipients: the good ones receive it, the unknown one is reported by
+     * the server, and the outcomes are matched with the recipients.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testFanOut() throws InterruptedException {
+        server.advertise(BinaryFrameCodec.EXTENSION);
+        TCPClient sender = connectAndLogin("UnitTestFanOut");
+        TCPClient[] receivers = new TCPClient[3];
+        DummyMsgReceiver[] received = new DummyMsgReceiver[3];
+        for (int i = 0; i < receivers.length; i++) {
+            receivers[i] = connectAndLogin("UnitTestFan" + i);
+            received[i] = new DummyMsgReceiver();
+            receivers[i].addListener(received[i]);
+        }
+        final TextMessage expected = new TextMessage("UnitTestFanOut", true, "Notification ÆØÅ");
+        FanOutResult result = sender.sendPrivateMessages(
+                Arrays.asList("UnitTestFan0", "UnitTestNobody", "UnitTestFan1", "UnitTestFan2"),
+                expected.getText());
+        // Public messages in between are answered too, but not counted in the result
+        assertTrue(sender.sendPublicMessage("Hello"));
+        assertTrue(result.await(AwaitingListener.TIMEOUT_MS));
+        assertEquals(3, result.getDelivered());
+        assertEquals(1, result.getFailed());
+        assertTrue(result.getErrors().containsKey("UnitTestNobody"));
+        assertTrue(result.getCompletionNanos() >= 0);
+        for (DummyMsgReceiver r : received) {
+            assertTrue(r.await(() -> r.hasReceived(expected)));
+        }
+
+        // Pre-encoded messages are framed correctly too
+        DummySupportedReceiver supported = new DummySupportedReceiver();
+        sender.addListener(supported);
+        sender.askSupportedCommands();
+        assertTrue(supported.await(() -> supported.contains(BinaryFrameCodec.EXTENSION)));
+        assertTrue(sender.enableBinaryFraming());
+        final TextMessage framed = new TextMessage("UnitTestFanOut", true, "Framed notification");
+        result = sender.sendPrivateMessages(Arrays.asList("UnitTestFan0", "UnitTestFan1"), framed.getText());
+        assertTrue(result.await(AwaitingListener.TIMEOUT_MS));
+        assertEquals(2, result.getDelivered());
+        assertTrue(received[1].await(() -> received[1].hasReceived(framed)));
+
+        sender.disconnect();
+        for (TCPClient r : receivers) {
+            r.disconnect();
+        }
+    }
+
+    /**
+     * Test that the traffic can be compressed when the server supports it. Small commands stay uncompressed,
+     * large ones are compressed, and the messages arrive unchanged in both directions.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testCompression() throws InterruptedException {
+        server.advertise(CompressedOutputStream.EXTENSION);
+        TCPClient c1 = connectAndLogin("UnitTestZip1");
+        TCPClient c2 = connectAndLogin("UnitTestZip2");
+        DummySupportedReceiver supported = new DummySupportedReceiver();
+        c1.addListener(supported);
+        c1.askSupportedCommands();
+        assertTrue(supported.await(() -> supported.contains(CompressedOutputStream.EXTENSION)));
+        assertTrue(c1.enableCompression());
+
+        DummyMsgReceiver rec1 = new DummyMsgReceiver();
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        c1.addListener(rec1);
+        c2.addListener(rec2);
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            longText.append("This sentence repeats a lot. ");
+        }
+        final TextMessage big = new TextMessage("UnitTestZip1", false, longText.toString());
+        final TextMessage small = new TextMessage("UnitTestZip1", false, "hi");
+        c1.sendPublicMessage(small.getText());
+        c1.sendPublicMessage(big.getText());
+        assertTrue(rec2.await(() -> rec2.hasReceived(small) && rec2.hasReceived(big)));
+        final TextMessage echo = new TextMessage("UnitTestZip2", false, longText.toString());
+        c2.sendPublicMessage(echo.getText());
+        assertTrue(rec1.await(() -> rec1.hasReceived(echo)));
+
+        CompressionStats sent = c1.getSentCompressionStats();
+        assertEquals(1, sent.getCompressedBlocks());
+        assertTrue(sent.getBlocks() > sent.getCompressedBlocks());
+        assertTrue(sent.getRatio() > 5);
+        assertTrue(c1.getReceivedCompressionStats().getCompressedBlocks() >= 1);
+
+        c1.disconnect();
+        c2.disconnect();
+    }
+
+    /**
+     * Test that the receive pipeline stages see every message before the listeners, and can drop messages.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testMessageStages() throws InterruptedException {
+        TCPClient c1 = connectAndLogin("UnitTestStage1");
+        TCPClient c2 = connectAndLogin("UnitTestStage2");
+        AlertEngine alerts = new AlertEngine(true);
+        alerts.setKeywords(Arrays.asList("UnitTestStage2", "urgent"));
+        final List<String> found = new CopyOnWriteArrayList<>();
+        alerts.addListener((message, matches) -> found.add(matches.toString()));
+        c2.addMessageStage(alerts);
+        c2.addMessageStage(message -> !message.getText().startsWith("drop"));
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        c2.addListener(rec2);
+
+        final TextMessage mention = new TextMessage("UnitTestStage1", false, "Urgent: unittestStage2, look");
+        final TextMessage dropped = new TextMessage("UnitTestStage1", false, "drop me urgent");
+        final TextMessage last = new TextMessage("UnitTestStage1", false, "the end");
+        assertTrue(c1.sendPublicMessage(mention.getText()));
+        assertTrue(c1.sendPublicMessage(dropped.getText()));
+        assertTrue(c1.sendPublicMessage(last.getText()));
+        assertTrue(rec2.await(() -> rec2.hasReceived(mention) && rec2.hasReceived(last)));
+        assertFalse(rec2.hasReceived(dropped));
+        assertEquals(Arrays.asList("[urgent@0-6, UnitTestStage2@8-22]", "[urgent@8-14]"), found);
+        assertEquals(3, alerts.getScannedMessages());
+
+        c1.disconnect();
+        c2.disconnect();
+    }
+
+    /**
+     * Test that the flood filter drops repeated messages before the listeners get them.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testFloodFilter() throws InterruptedException {
+        TCPClient c1 = connectAndLogin("UnitTestFlood1");
+        TCPClient c2 = connectAndLogin("UnitTestFlood2");
+        FloodFilter filter = new FloodFilter();
+        c2.setFloodFilter(filter);
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        c2.addListener(rec2);
+        final TextMessage spam = new TextMessage("UnitTestFlood1", false, "Buy now!");
+        final TextMessage last = new TextMessage("UnitTestFlood1", false, "Last message");
+        for (int i = 0; i < 5; i++) {
+            assertTrue(c1.sendPublicMessage(spam.getText()));
+        }
+        assertTrue(c1.sendPublicMessage(last.getText()));
+        assertTrue(rec2.await(() -> rec2.hasReceived(last)));
+        assertTrue(rec2.hasReceived(spam));
+        assertEquals(2, filter.getPassed());
+        assertEquals(4, filter.getRepeated());
+
+        c1.disconnect();
+        c2.disconnect();
+    }
+
+    /**
+     * Test that the senders of the messages and the names of the user lists are the same String instances.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testInternedNames() throws InterruptedException {
+        TCPClient c1 = connectAndLogin("UnitTestIntern1");
+        TCPClient c2 = connectAndLogin("UnitTestIntern2");
+        NameTable table = new NameTable();
+        c2.setNameTable(table);
+        DummyUserListingReceiver userListing = new DummyUserListingReceiver();
+        c2.addListener(userListing);
+        c2.refreshUserList();
+        assertTrue(userListing.await(() -> userListing.contains("UnitTestIntern1")));
+
+        final List<TextMessage> received = new CopyOnWriteArrayList<>();
+        c2.addMessageStage(message -> received.add(message));
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        c2.addListener(rec2);
+        final TextMessage first = new TextMessage("UnitTestIntern1", false, "Første");
+        final TextMessage second = new TextMessage("UnitTestIntern1", false, "Ünïcödé ✓");
+        assertTrue(c1.sendPublicMessage(first.getText()));
+        assertTrue(c1.sendPublicMessage(second.getText()));
+        assertTrue(rec2.await(() -> rec2.hasReceived(first) && rec2.hasReceived(second)));
+        assertSame(table.intern("UnitTestIntern1"), received.get(0).getSender());
+        assertSame(received.get(0).getSender(), received.get(1).getSender());
+        assertEquals(2, table.getSize());
+        assertTrue(table.getHits() >= 3);
+
+        c1.disconnect();
+        c2.disconnect();
+    }
+
+    /**
+     * Test that messages sent while offline are stored in the outbox and delivered in order after the login.
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void testOutbox() throws Exception {
+        File journal = File.createTempFile("outbox", ".journal");
+        try {
+            TCPClient receiver = connectAndLogin("UnitTestOutboxRx");
+            DummyMsgReceiver received = new DummyMsgReceiver();
+            receiver.addListener(received);
+
+            TCPClient sender = newClient();
+            Outbox outbox = Outbox.open(journal);
+            sender.setOutbox(outbox);
+            assertTrue(sender.sendPublicMessage("Sent while offline 1"));
+            assertTrue(sender.sendPrivateMessage("UnitTestOutboxRx", "Sent while offline 2"));
+            assertTrue(sender.sendPrivateMessage("UnitTestNobody", "Nobody gets this"));
+            assertEquals(3, outbox.getPending());
+
+            assertTrue(sender.connect(SERVER_HOST, SERVER_PORT));
+            sender.startListenThread();
+            sender.tryLogin("UnitTestOutbox");
+            final TextMessage m1 = new TextMessage("UnitTestOutbox", false, "Sent while offline 1");
+            final TextMessage m2 = new TextMessage("UnitTestOutbox", true, "Sent while offline 2");
+            assertTrue(received.await(() -> received.hasReceived(m1) && received.hasReceived(m2)));
+            assertTrue(received.await(() -> !outbox.hasPending()));
+            assertEquals(2, outbox.getDelivered());
+            assertEquals(1, outbox.getFailed());
+            assertTrue(outbox.getDrainThroughput() > 0);
+
+            // Online with an empty outbox, messages are sent directly
+            assertTrue(sender.sendPublicMessage("Online"));
+            assertEquals(3, outbox.getAppended());
+            outbox.close();
+            Outbox reopened = Outbox.open(journal);
+            assertEquals(0, reopened.getPending());
+            reopened.close();
+            sender.disconnect();
+            receiver.disconnect();
+        } finally {
+            journal.delete();
+        }
+    }
+
+    /**
+     * A message which needs more fragments than the receivers accept is refused, directly, in a fan-out and in
+     * the outbox drain, and the following messages still go out.
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void testMessageTooLong() throws Exception {
+        File journal = File.createTempFile("outbox", ".journal");
+        try {
+            TCPClient receiver = connectAndLogin("UnitTestLongRx");
+            DummyMsgReceiver received = new DummyMsgReceiver();
+            receiver.addListener(received);
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 64 * MessageReassembler.MAX_FRAGMENTS) {
+                text.append("Too long ");
+            }
+            String tooLong = text.toString();
+
+            TCPClient sender = newClient();
+            sender.setMaxMessageSize(64);
+            assertFalse(sender.isSendable(tooLong));
+            Outbox outbox = Outbox.open(journal);
+            outbox.setSync(false);
+            sender.setOutbox(outbox);
+            assertTrue(sender.sendPublicMessage(tooLong));
+            assertTrue(sender.sendPublicMessage("After the long one"));
+            assertTrue(sender.connect(SERVER_HOST, SERVER_PORT));
+            sender.startListenThread();
+            sender.tryLogin("UnitTestLong");
+            final TextMessage after = new TextMessage("UnitTestLong", false, "After the long one");
+            assertTrue(received.await(() -> received.hasReceived(after)));
+            assertTrue(received.await(() -> !outbox.hasPending()));
+            assertEquals(1, outbox.getFailed());
+            assertEquals(1, outbox.getDelivered());
+            outbox.close();
+            sender.setOutbox(null);
+
+            assertFalse(sender.sendPublicMessage(tooLong));
+            assertEquals("Message too long", sender.getLastError());
+            FanOutResult result = sender.sendPrivateMessages(Arrays.asList("UnitTestLongRx", "UnitTestNobody"),
+                    tooLong);
+            assertEquals(2, result.getFailed());
+            sender.disconnect();
+            receiver.disconnect();
+        } finally {
+            journal.delete();
+        }
+    }
+
+    /**
+     * When the rate limiter refuses a message of the outbox drain, the drain tries it again instead of stopping,
+     * and the following messages still go out, in order.
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void testOutboxDrainRetry() throws Exception {
+        File journal = File.createTempFile("outbox", ".journal");
+        try {
+            TCPClient receiver = connectAndLogin("UnitTestRetryRx");
+            DummyMsgReceiver received = new DummyMsgReceiver();
+            receiver.addListener(received);
+
+            TCPClient sender = newClient();
+            RateLimiter limiter = new RateLimiter(RateLimiter.Policy.REJECT);
+            limiter.setCommandLimit("msg", 20, 1);
+            sender.setRateLimiter(limiter);
+            Outbox outbox = Outbox.open(journal);
+            outbox.setSync(false);
+            outbox.setDrainRate(1000, 10, 16);
+            sender.setOutbox(outbox);
+            for (int i = 0; i < 5; i++) {
+                assertTrue(sender.sendPublicMessage("Queued " + i));
+            }
+
+            assertTrue(sender.connect(SERVER_HOST, SERVER_PORT));
+            sender.startListenThread();
+            sender.tryLogin("UnitTestRetry");
+            final TextMessage last = new TextMessage("UnitTestRetry", false, "Queued 4");
+            assertTrue(received.await(() -> received.hasReceived(last)));
+            assertTrue(received.await(() -> !outbox.hasPending()));
+            assertEquals(5, outbox.getDelivered());
+            assertTrue(limiter.getRejected() > 0);
+            assertEquals(limiter.getRejected(), outbox.getRetries());
+            for (int i = 0; i < 4; i++) {
+                assertTrue(received.hasReceived(new TextMessage("UnitTestRetry", false, "Queued " + i)));
+            }
+            outbox.close();
+            sender.disconnect();
+            receiver.disconnect();
+        } finally {
+            journal.delete();
+        }
+    }
+
+    /**
+     * A tracked message which can not be written is reported by the return value only, never by the callback
+     * as well.
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void testTrackedMessageWriteFailure() throws Exception {
+        AtomicBoolean failFlush = new AtomicBoolean(false);
+        TCPClient client = new TCPClient((host, port) -> {
+            Transport t = server.open(host, port);
+            OutputStream out = new FilterOutputStream(t.getOutputStream()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (failFlush.get()) {
+                        throw new IOException("Broken pipe");
+                    }
+                    super.flush();
+                }
+            };
+            return new Transport() {
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return t.getInputStream();
+                }
+
+                @Override
+                public OutputStream getOutputStream() {
+                    return out;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return t.isOpen();
+                }
+
+                @Override
+                public String getRemoteAddress() {
+                    return t.getRemoteAddress();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    t.close();
+                }
+            };
+        });
+        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        client.startListenThread();
+        client.tryLogin("UnitTestBroken");
+        assertTrue(counter.await(() -> counter.loginSuccess == 1));
+
+        AtomicInteger answers = new AtomicInteger();
+        failFlush.set(true);
+        assertFalse(client.sendTrackedMessage(null, "Lost", error -> answers.incrementAndGet()));
+        client.disconnect();
+        assertTrue(counter.await(() -> counter.disconn == 1));
+        assertEquals(0, answers.get());
+    }
+}
@@ -0,0 +1,34 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TextMessageTest {
+
+    @Test
+    public void testCompactText() {
+        TextMessage latin = new TextMessage("alice", false, "Blåbær");
+        assertEquals("Blåbær", latin.getText());
+        assertEquals(6, latin.getTextSize());
+        TextMessage other = new TextMessage("alice", false, "Ünïcödé ✓ 😀");
+        assertEquals("Ünïcödé ✓ 😀", other.getText());
+        assertEquals(20, other.getTextSize());
+        assertEquals(other, new TextMessage("alice", false, "Ünïcödé ✓ 😀"));
+        assertNull(new TextMessage("alice", false, null).getText());
+        assertEquals(new TextMessage("alice", false, null), new TextMessage("alice", false, null));
+        assertNotEquals(latin, new TextMessage("alice", false, null));
+    }
+
+    @Test
+    public void testTextChars() {
+        CharSequence latin = new TextMessage("alice", false, "Blåbær pie").getTextChars();
+        assertEquals(10, latin.length());
+        assertEquals('å', latin.charAt(2));
+        assertEquals("Blåbær pie", latin.toString());
+        assertEquals("bær", latin.subSequence(3, 6).toString());
+        assertEquals('r', latin.subSequence(3, 6).charAt(2));
+        assertEquals("Smile 😀", new TextMessage("alice", false, "Smile 😀").getTextChars().toString());
+        assertNull(new TextMessage("alice", false, null).getTextChars());
+    }
+}
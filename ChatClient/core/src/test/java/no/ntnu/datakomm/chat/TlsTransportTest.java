@@ -0,0 +1,135 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+import no.ntnu.datakomm.chat.helpers.AwaitingListener;
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.FakeChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the chat over TLS against a local server with a self-signed certificate (localhost.p12 in the test
+ * resources, password "changeit").
+ */
+public class TlsTransportTest {
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private FakeChatServer server;
+    private SSLServerSocket serverSocket;
+    private SSLContext clientContext;
+
+    @Before
+    public void startServer() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("localhost.p12")) {
+            keyStore.load(in, PASSWORD);
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(keyStore, PASSWORD);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keys.getKeyManagers(), null, null);
+        // The client trusts exactly the self-signed certificate of the server
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(keyStore);
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trust.getTrustManagers(), null);
+
+        server = new FakeChatServer();
+        serverSocket = (SSLServerSocket) serverContext.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    server.serve(new SocketTransport(socket));
+                }
+            } catch (IOException e) {
+                // Server socket closed, the test is over
+            }
+        });
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        serverSocket.close();
+        server.shutdown();
+    }
+
+    /**
+     * Log in over TLS, twice. The second connection must resume the session of the first one.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testLoginAndResumption() throws InterruptedException {
+        TlsTransportFactory factory = new TlsTransportFactory(clientContext);
+        for (int i = 1; i <= 2; i++) {
+            TCPClient client = new TCPClient(factory);
+            assertTrue(client.connect("localhost", serverSocket.getLocalPort()));
+            DummyResponseCounter counter = new DummyResponseCounter();
+            client.addListener(counter);
+            client.startListenThread();
+            client.tryLogin("UnitTestTls" + i);
+            client.askSupportedCommands();
+            assertTrue(counter.await(() -> counter.loginSuccess == 1 && counter.supported == 1));
+            client.disconnect();
+            assertTrue(counter.await(() -> counter.disconn == 1));
+        }
+        assertEquals(2, factory.getHandshakeCount());
+        assertEquals(1, factory.getResumedCount());
+        assertTrue(factory.getLastHandshakeNanos() > 0);
+        assertTrue(factory.getAverageHandshakeNanos() > 0);
+    }
+
+    /**
+     * A thread blocked in reading gets end-of-stream when the transport is closed, never an exception.
+     *
+     * @throws Exception When the test fails
+     */
+    @Test
+    public void testCloseWhileReading() throws Exception {
+        TlsTransportFactory factory = new TlsTransportFactory(clientContext);
+        for (int i = 0; i < 10; i++) {
+            Transport transport = factory.open("localhost", serverSocket.getLocalPort());
+            AtomicReference<Object> outcome = new AtomicReference<>();
+            Thread reader = new Thread(() -> {
+                try {
+                    outcome.set(transport.getInputStream().read());
+                } catch (Throwable e) {
+                    outcome.set(e);
+                }
+            });
+            reader.start();
+            Thread.sleep(i);
+            transport.close();
+            reader.join(AwaitingListener.TIMEOUT_MS);
+            assertEquals(-1, outcome.get());
+        }
+    }
+
+    /**
+     * A server whose certificate is not trusted must be rejected.
+     */
+    @Test
+    public void testUntrustedServer() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        TCPClient client = new TCPClient(new TlsTransportFactory(context));
+        assertFalse(client.connect("localhost", serverSocket.getLocalPort()));
+        assertFalse(client.isConnectionActive());
+    }
+}
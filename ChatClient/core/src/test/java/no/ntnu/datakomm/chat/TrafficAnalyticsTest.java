@@ -0,0 +1,87 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TrafficAnalyticsTest {
+    // Fake time for the window
+    private final AtomicLong now = new AtomicLong();
+
+    private static void send(TrafficAnalytics analytics, String sender, int messages) {
+        for (int i = 0; i < messages; i++) {
+            analytics.process(new TextMessage(sender, i % 2 == 0, "message " + i));
+        }
+    }
+
+    @Test
+    public void testSketchNeverUnderestimates() {
+        CountMinSketch sketch = new CountMinSketch(64, 4);
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("user" + i, i % 10 + 1);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(sketch.estimate("user" + i) >= i % 10 + 1);
+        }
+        assertEquals(5500, sketch.getTotal());
+        sketch.clear();
+        assertEquals(0, sketch.estimate("user1"));
+    }
+
+    @Test
+    public void testSlidingWindow() {
+        TrafficAnalytics analytics = new TrafficAnalytics(10000, 10, 256, 4, 3, now::get);
+        send(analytics, "alice", 50);
+        now.addAndGet(5_000_000_000L);
+        send(analytics, "bob", 20);
+        assertEquals(5.0, analytics.getRate("alice"), 0.001);
+        assertEquals(2.0, analytics.getRate("bob"), 0.001);
+        assertEquals(70, analytics.getWindowMessages());
+        assertEquals(35, analytics.getPrivateMessages());
+
+        // Alice's bucket falls out of the window, Bob's is still in it
+        now.addAndGet(6_000_000_000L);
+        assertEquals(0.0, analytics.getRate("alice"), 0.001);
+        assertEquals(2.0, analytics.getRate("bob"), 0.001);
+        // A long silence empties the whole window
+        now.addAndGet(60_000_000_000L);
+        assertEquals(0, analytics.getWindowMessages());
+        assertTrue(analytics.getTopSenders().isEmpty());
+    }
+
+    @Test
+    public void testHeavyHitters() {
+        TrafficAnalytics analytics = new TrafficAnalytics(10000, 10, 1024, 4, 3, now::get);
+        // Many light senders, a few heavy ones mixed in between them
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 500; i++) {
+                send(analytics, "user" + (round * 500 + i), 1);
+            }
+            send(analytics, "spammer", 30);
+            send(analytics, "chatty", 10);
+            send(analytics, "bot", 5);
+        }
+        List<TrafficAnalytics.SenderRate> top = analytics.getTopSenders();
+        assertEquals("[spammer, chatty, bot]", names(top));
+        assertTrue(top.get(0).getMessages() >= 600);
+
+        // The spammer stops, a new heavy sender takes over after the window slides
+        now.addAndGet(10_000_000_000L);
+        send(analytics, "newcomer", 40);
+        send(analytics, "bot", 2);
+        top = analytics.getTopSenders();
+        assertEquals("newcomer", top.get(0).getSender());
+        assertEquals(40, top.get(0).getMessages());
+        assertEquals(4.0, top.get(0).getPerSecond(), 0.001);
+    }
+
+    private static String names(List<TrafficAnalytics.SenderRate> rates) {
+        StringBuilder sb = new StringBuilder("[");
+        for (TrafficAnalytics.SenderRate r : rates) {
+            sb.append(sb.length() > 1 ? ", " : "").append(r.getSender());
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,63 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.FakeChatServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class TrafficCaptureTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Capture a short session, then replay it into a new client. The listeners must see the same events.
+     *
+     * @throws Exception When the test fails unexpectedly
+     */
+    @Test
+    public void testCaptureAndReplay() throws Exception {
+        FakeChatServer server = new FakeChatServer();
+        File file = folder.newFile("session.cap");
+        TrafficCapture capture = TrafficCapture.toFile(file);
+
+        TCPClient client = new TCPClient(server);
+        assertTrue(client.connect("localhost", 1300));
+        client.setTrafficCapture(capture);
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        client.startListenThread();
+        client.tryLogin("Bad username");
+        client.tryLogin("UnitTestCapture");
+        client.askSupportedCommands();
+        client.refreshUserList();
+        assertTrue(counter.await(() -> counter.userList == 1));
+        client.disconnect();
+        capture.close();
+        server.shutdown();
+        assertEquals(8, capture.getRecordCount());
+
+        // Replay only the received lines, as fast as possible
+        DummyResponseCounter replayed = new DummyResponseCounter();
+        TrafficReplay.Result result = new TrafficReplay(file, TrafficReplay.MAX_SPEED).replay(replayed);
+        assertEquals(4, result.getLines());
+        assertEquals(1, replayed.loginError);
+        assertEquals(1, replayed.loginSuccess);
+        assertEquals(1, replayed.supported);
+        assertEquals(1, replayed.userList);
+    }
+
+    /**
+     * A file which is not a capture must be rejected.
+     *
+     * @throws Exception When the test fails unexpectedly
+     */
+    @Test(expected = java.io.IOException.class)
+    public void testRejectsOtherFiles() throws Exception {
+        File file = folder.newFile("not-a-capture.cap");
+        new TrafficReplay(file, 1).replay();
+    }
+}
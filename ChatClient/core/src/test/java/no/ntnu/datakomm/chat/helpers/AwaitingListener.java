@@ -0,0 +1,39 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Base class for listeners which the tests can wait on, instead of sleeping a fixed time. Subclasses must
+ * change their state in synchronized methods and call signal() afterwards.
+ */
+public abstract class AwaitingListener extends EmptyChatListener {
+    // How long to wait for the expected event before giving up
+    public static final long TIMEOUT_MS = 2000;
+
+    /**
+     * Wake up all the threads waiting in await(). Call it after every change of the state.
+     */
+    protected synchronized void signal() {
+        notifyAll();
+    }
+
+    /**
+     * Wait until the condition becomes true or the timeout expires. The condition is evaluated while holding
+     * the lock of this listener, so it sees the latest state.
+     *
+     * @param condition The condition to wait for
+     * @return true if the condition became true, false on timeout
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public synchronized boolean await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+}
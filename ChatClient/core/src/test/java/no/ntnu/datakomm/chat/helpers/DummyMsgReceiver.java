@@ -8,19 +8,21 @@ import no.ntnu.datakomm.chat.TextMessage;
  * Receive and buffer messages. We can check whether a message from specific
  * sender with specific text was received.
  */
-public class DummyMsgReceiver extends EmptyChatListener {
+public class DummyMsgReceiver extends AwaitingListener {
 
     private final List<TextMessage> messages = new LinkedList<>();
     private String msgError = null;
 
     @Override
-    public void onMessageReceived(TextMessage message) {
+    public synchronized void onMessageReceived(TextMessage message) {
         messages.add(message);
+        signal();
     }
 
     @Override
-    public void onMessageError(String errMsg) {
+    public synchronized void onMessageError(String errMsg) {
         msgError = errMsg;
+        signal();
     }
 
     /**
@@ -29,14 +31,14 @@ public class DummyMsgReceiver extends EmptyChatListener {
      *
      * @return
      */
-    public String getMsgError() {
+    public synchronized String getMsgError() {
         return msgError;
     }
 
     /**
      * Delete all buffered messages
      */
-    public void clearMessages() {
+    public synchronized void clearMessages() {
         messages.clear();
     }
 
@@ -46,7 +48,7 @@ public class DummyMsgReceiver extends EmptyChatListener {
      * @param msg
      * @return
      */
-    public boolean hasReceived(TextMessage msg) {
+    public synchronized boolean hasReceived(TextMessage msg) {
         // return messages.contains(msg);
         for (TextMessage m : messages) {
             if (m.equals(msg)) return true;
@@ -0,0 +1,79 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import no.ntnu.datakomm.chat.TextMessage;
+
+/**
+ * A class that just remembers what responses have been received
+ */
+public class DummyResponseCounter extends AwaitingListener {
+
+    public int loginSuccess = 0;
+    public int loginError = 0;
+    public int msg = 0;
+    public int msgErr = 0;
+    public int userList = 0;
+    public int supported = 0;
+    public int cmdErr = 0;
+    public int disconn = 0;
+
+    @Override
+    public synchronized void onLoginResult(boolean success, String errMsg) {
+        if (success) {
+            loginSuccess++;
+        } else {
+            loginError++;
+        }
+        signal();
+    }
+
+    @Override
+    public synchronized void onMessageReceived(TextMessage message) {
+        msg++;
+        signal();
+    }
+
+    @Override
+    public synchronized void onMessageError(String errMsg) {
+        msgErr++;
+        signal();
+    }
+
+    @Override
+    public synchronized void onUserList(String[] usernames) {
+        userList++;
+        signal();
+    }
+
+    @Override
+    public synchronized void onSupportedCommands(String[] commands) {
+        supported++;
+        signal();
+    }
+
+    @Override
+    public synchronized void onCommandError(String errMsg) {
+        cmdErr++;
+        signal();
+    }
+
+    @Override
+    public synchronized void onDisconnect() {
+        disconn++;
+        signal();
+    }
+
+    /**
+     * Set all the counters back to zero
+     */
+    public synchronized void reset() {
+        loginSuccess = 0;
+        loginError = 0;
+        msg = 0;
+        msgErr = 0;
+        userList = 0;
+        supported = 0;
+        cmdErr = 0;
+        disconn = 0;
+    }
+    
+}
@@ -7,20 +7,21 @@ import java.util.Set;
 /**
  * Receive and remember last supported command listing.
  */
-public class DummySupportedReceiver extends EmptyChatListener {
+public class DummySupportedReceiver extends AwaitingListener {
     private Set<String> commands = new HashSet<>();
 
     @Override
-    public void onSupportedCommands(String[] commands) {
+    public synchronized void onSupportedCommands(String[] commands) {
         // Convert the String[] to List<String>, then to HashMap<String>
         this.commands.addAll(Arrays.asList(commands));
+        signal();
     }
 
     /**
      * Return the number of commands received in the last listing.
      * @return
      */
-    public int getCount() {
+    public synchronized int getCount() {
         return commands.size();
     }
 
@@ -29,7 +30,7 @@ public class DummySupportedReceiver extends EmptyChatListener {
      * @param command
      * @return
      */
-    public boolean contains(String command) {
+    public synchronized boolean contains(String command) {
         return commands.contains(command);
     }
 }
@@ -7,20 +7,21 @@ import java.util.Set;
 /**
  * Receive and remember last user listing.
  */
-public class DummyUserListingReceiver extends EmptyChatListener {
+public class DummyUserListingReceiver extends AwaitingListener {
     private Set<String> usernames = new HashSet<>();
 
     @Override
-    public void onUserList(String[] usernames) {
+    public synchronized void onUserList(String[] usernames) {
         // Convert the String[] to List<String>, then to HashMap<String>
         this.usernames.addAll(Arrays.asList(usernames));
+        signal();
     }
 
     /**
      * Return the number of users received in the last listing
      * @return
      */
-    public int getCount() {
+    public synchronized int getCount() {
         return usernames.size();
     }
 
@@ -29,7 +30,7 @@ public class DummyUserListingReceiver extends EmptyChatListener {
      * @param username
      * @return
      */
-    public boolean contains(String username) {
+    public synchronized boolean contains(String username) {
         return usernames.contains(username);
     }
 }
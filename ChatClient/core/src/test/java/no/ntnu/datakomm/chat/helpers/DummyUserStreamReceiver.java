@@ -0,0 +1,74 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import java.util.HashSet;
+import java.util.Set;
+import no.ntnu.datakomm.chat.UserListListener;
+
+/**
+ * Receive user lists piece by piece and remember the names of the last complete list.
+ */
+public class DummyUserStreamReceiver extends AwaitingListener implements UserListListener {
+    private Set<String> receiving = new HashSet<>();
+    private Set<String> usernames = new HashSet<>();
+    private int pieces = 0;
+    private int lists = 0;
+    private int reportedCount = -1;
+
+    @Override
+    public synchronized void onUserListStart() {
+        receiving = new HashSet<>();
+        pieces = 0;
+    }
+
+    @Override
+    public synchronized void onUsers(String[] usernames) {
+        for (String u : usernames) {
+            receiving.add(u);
+        }
+        pieces++;
+    }
+
+    @Override
+    public synchronized void onUserListEnd(int count) {
+        usernames = receiving;
+        reportedCount = count;
+        lists++;
+        signal();
+    }
+
+    /**
+     * @return Number of complete lists received
+     */
+    public synchronized int getLists() {
+        return lists;
+    }
+
+    /**
+     * @return Number of pieces the last list came in
+     */
+    public synchronized int getPieces() {
+        return pieces;
+    }
+
+    /**
+     * @return Number of names in the last list, as reported by onUserListEnd()
+     */
+    public synchronized int getReportedCount() {
+        return reportedCount;
+    }
+
+    /**
+     * @return Number of distinct names received in the last list
+     */
+    public synchronized int getCount() {
+        return usernames.size();
+    }
+
+    /**
+     * @param username Username to look for
+     * @return true if the last list contained the username
+     */
+    public synchronized boolean contains(String username) {
+        return usernames.contains(username);
+    }
+}
@@ -0,0 +1,279 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import no.ntnu.datakomm.chat.BinaryFrameCodec;
+import no.ntnu.datakomm.chat.CommandCodec;
+import no.ntnu.datakomm.chat.CompressedInputStream;
+import no.ntnu.datakomm.chat.CompressedOutputStream;
+import no.ntnu.datakomm.chat.CompressionStats;
+import no.ntnu.datakomm.chat.LoopbackTransport;
+import no.ntnu.datakomm.chat.ProtocolInputStream;
+import no.ntnu.datakomm.chat.ProtocolOutputStream;
+import no.ntnu.datakomm.chat.TextLineCodec;
+import no.ntnu.datakomm.chat.Transport;
+import no.ntnu.datakomm.chat.TransportFactory;
+
+/**
+ * An in-process chat server speaking the same text protocol as the real one. Clients reach it through loopback
+ * transports, so the tests run without network. Responses to single commands can be scripted.
+ */
+public class FakeChatServer implements TransportFactory {
+    public static final String[] SUPPORTED_COMMANDS = {"login", "msg", "privmsg", "users", "help"};
+
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private final Map<String, String[]> scripted = new ConcurrentHashMap<>();
+    // Protocol extensions listed in the "supported" response, in addition to the standard commands
+    private final List<String> extensions = new CopyOnWriteArrayList<>();
+
+    @Override
+    public Transport open(String host, int port) throws IOException {
+        LoopbackTransport[] ends = LoopbackTransport.pair(host + ":" + port);
+        serve(ends[1]);
+        return ends[0];
+    }
+
+    /**
+     * Serve a client connected through the given transport (for example an accepted socket), on a new thread.
+     *
+     * @param transport Server's end of the connection
+     * @throws IOException When the streams of the transport can not be opened
+     */
+    public void serve(Transport transport) throws IOException {
+        Session session = new Session(transport);
+        sessions.add(session);
+        Thread t = new Thread(session::run);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Instead of the normal processing, answer the given command with the given lines.
+     *
+     * @param command   The command word (login, users, ...)
+     * @param responses Lines to send back, in this order
+     */
+    public void script(String command, String... responses) {
+        scripted.put(command, responses);
+    }
+
+    /**
+     * Support a protocol extension and list it in the "supported" response.
+     *
+     * @param extension Name of the extension, for example BinaryFrameCodec.EXTENSION
+     */
+    public void advertise(String extension) {
+        extensions.add(extension);
+    }
+
+    /**
+     * Send a raw line to every connected client.
+     *
+     * @param line The line to send, without newline
+     */
+    public void broadcast(String line) {
+        for (Session s : sessions) {
+            s.send(line);
+        }
+    }
+
+    /**
+     * @return Number of clients currently connected
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Close all client connections.
+     */
+    public void shutdown() {
+        for (Session s : sessions) {
+            s.close();
+        }
+    }
+
+    /**
+     * One connected client.
+     */
+    private class Session {
+        private final Transport transport;
+        private final ProtocolInputStream in;
+        private final ProtocolOutputStream out;
+        private volatile CommandCodec reader;
+        private volatile CommandCodec writer;
+        private volatile String username = null;
+
+        Session(Transport transport) throws IOException {
+            this.transport = transport;
+            this.in = new ProtocolInputStream(transport.getInputStream());
+            this.out = new ProtocolOutputStream(transport.getOutputStream());
+            this.reader = new TextLineCodec(in, out, StandardCharsets.UTF_8);
+            this.writer = reader;
+        }
+
+        void run() {
+            try {
+                String[] command;
+                while ((command = reader.readCommand()) != null) {
+                    handle(command[0], command[1] != null ? command[1] : "");
+                }
+            } catch (IOException e) {
+                // Client went away
+            } finally {
+                sessions.remove(this);
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                transport.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+
+        synchronized void send(String line) {
+            try {
+                writer.writeCommand(line);
+                writer.flush();
+            } catch (IOException e) {
+                // Client went away, the reading thread will clean up
+            }
+        }
+
+        private void handle(String command, String args) {
+            String[] responses = scripted.get(command);
+            if (responses != null) {
+                for (String r : responses) {
+                    send(r);
+                }
+                return;
+            }
+            switch (command) {
+                case "login":
+                    login(args);
+                    break;
+                case "msg":
+                    publicMessage(args);
+                    break;
+                case "privmsg":
+                    privateMessage(args);
+                    break;
+                case "users":
+                    listUsers();
+                    break;
+                case "help":
+                    StringBuilder supported = new StringBuilder("supported " + String.join(" ", SUPPORTED_COMMANDS));
+                    for (String e : extensions) {
+                        supported.append(" ").append(e);
+                    }
+                    send(supported.toString());
+                    break;
+                case BinaryFrameCodec.EXTENSION:
+                    if (extensions.contains(BinaryFrameCodec.EXTENSION)) {
+                        switchToBinaryFraming();
+                    } else {
+                        send("cmderr command not supported");
+                    }
+                    break;
+                case CompressedOutputStream.EXTENSION:
+                    if (extensions.contains(CompressedOutputStream.EXTENSION)) {
+                        switchToCompression();
+                    } else {
+                        send("cmderr command not supported");
+                    }
+                    break;
+                default:
+                    send("cmderr command not supported");
+                    break;
+            }
+        }
+
+        private void switchToBinaryFraming() {
+            // The client frames everything after its request; we frame everything after our confirmation
+            reader = new BinaryFrameCodec(in, out);
+            synchronized (this) {
+                send(BinaryFrameCodec.EXTENSION_OK);
+                writer = new BinaryFrameCodec(in, out);
+            }
+        }
+
+        private void switchToCompression() {
+            // The client compresses everything after its request; we compress everything after our confirmation
+            in.applyFilter(compressed -> new CompressedInputStream(compressed, new CompressionStats()));
+            synchronized (this) {
+                send(CompressedOutputStream.EXTENSION_OK);
+                try {
+                    out.applyFilter(raw -> new CompressedOutputStream(raw, CompressedOutputStream.DEFAULT_THRESHOLD,
+                            new CompressionStats()));
+                } catch (IOException e) {
+                    // Client went away, the reading thread will clean up
+                }
+            }
+        }
+
+        private void login(String name) {
+            if (!name.matches("[A-Za-z0-9]+")) {
+                send("loginerr incorrect username format");
+            } else if (findSession(name) != null && findSession(name) != this) {
+                send("loginerr username already in use");
+            } else {
+                username = name;
+                send("loginok");
+            }
+        }
+
+        private void publicMessage(String text) {
+            if (username == null) {
+                send("msgerror unauthorized");
+                return;
+            }
+            int count = 0;
+            for (Session s : sessions) {
+                if (s != this) {
+                    s.send("msg " + username + " " + text);
+                    count++;
+                }
+            }
+            send("msgok " + count);
+        }
+
+        private void privateMessage(String args) {
+            String[] parts = args.split(" ", 2);
+            Session recipient = parts.length == 2 ? findSession(parts[0]) : null;
+            if (username == null) {
+                send("msgerror unauthorized");
+            } else if (recipient == null) {
+                send("msgerror incorrect recipient " + parts[0]);
+            } else {
+                recipient.send("privmsg " + username + " " + parts[1]);
+                send("msgok 1");
+            }
+        }
+
+        private void listUsers() {
+            StringBuilder sb = new StringBuilder("users");
+            for (Session s : sessions) {
+                if (s.username != null) {
+                    sb.append(" ").append(s.username);
+                }
+            }
+            send(sb.toString());
+        }
+
+        private Session findSession(String name) {
+            for (Session s : sessions) {
+                if (name.equals(s.username)) {
+                    return s;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package no.ntnu.datakomm.chat.flow;
+
+/**
+ * An error reported by the server, as published by ChatFlow.
+ */
+public class ChatError {
+
+    /**
+     * Which command failed.
+     */
+    public enum Kind {
+        // loginerr
+        LOGIN,
+        // msgerror: a message was not delivered
+        MESSAGE,
+        // cmderr: the server did not understand a command
+        COMMAND
+    }
+
+    private final Kind kind;
+    private final String message;
+
+    public ChatError(Kind kind, String message) {
+        this.kind = kind;
+        this.message = message;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return The error message from the server, may be null
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return kind + ": " + message;
+    }
+}
@@ -0,0 +1,112 @@
+package no.ntnu.datakomm.chat.flow;
+
+import java.util.concurrent.Flow;
+import no.ntnu.datakomm.chat.ChatListener;
+import no.ntnu.datakomm.chat.TCPClient;
+import no.ntnu.datakomm.chat.TextMessage;
+
+/**
+ * Reactive streams of the events of a TCPClient: the received messages, user lists and errors, each a
+ * Flow.Publisher that honours the demand of its subscribers.
+ * <p>
+ * The events are published on the listen thread of the client. When a subscriber has not requested more items,
+ * the listen thread waits for it before it reads the next command from the socket; the socket buffers fill up
+ * and TCP flow control makes the server slow down. While one stream waits, the other streams and the other
+ * ChatListeners of the client wait too, as nothing is read. Events without subscribers are dropped.
+ * <p>
+ * The publishers complete when the client disconnects; create a new ChatFlow after reconnecting.
+ */
+public class ChatFlow implements ChatListener {
+    private final TCPClient client;
+    private final DemandPublisher<TextMessage> messages = new DemandPublisher<>();
+    private final DemandPublisher<String[]> userLists = new DemandPublisher<>();
+    private final DemandPublisher<ChatError> errors = new DemandPublisher<>();
+
+    /**
+     * Start publishing the events of the client.
+     *
+     * @param client The client
+     */
+    public ChatFlow(TCPClient client) {
+        this.client = client;
+        client.addListener(this);
+    }
+
+    /**
+     * @return The received messages, after the message stages of the client
+     */
+    public Flow.Publisher<TextMessage> messages() {
+        return messages;
+    }
+
+    /**
+     * @return The user lists, each one whole (see TCPClient.setCollectUserLists())
+     */
+    public Flow.Publisher<String[]> userLists() {
+        return userLists;
+    }
+
+    /**
+     * @return The errors reported by the server
+     */
+    public Flow.Publisher<ChatError> errors() {
+        return errors;
+    }
+
+    /**
+     * @return The message publisher, for its counters
+     */
+    public DemandPublisher<TextMessage> getMessagePublisher() {
+        return messages;
+    }
+
+    /**
+     * Stop publishing: the subscribers are completed, and the listen thread does not wait for them any more.
+     */
+    public void close() {
+        client.removeListener(this);
+        complete();
+    }
+
+    private void complete() {
+        messages.close();
+        userLists.close();
+        errors.close();
+    }
+
+    @Override
+    public void onDisconnect() {
+        complete();
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        if (!success) {
+            errors.offer(new ChatError(ChatError.Kind.LOGIN, errMsg));
+        }
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        messages.offer(message);
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        errors.offer(new ChatError(ChatError.Kind.MESSAGE, errMsg));
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        userLists.offer(usernames);
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        errors.offer(new ChatError(ChatError.Kind.COMMAND, errMsg));
+    }
+}
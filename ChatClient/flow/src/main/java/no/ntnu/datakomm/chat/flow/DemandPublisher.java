@@ -0,0 +1,221 @@
+package no.ntnu.datakomm.chat.flow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+
+/**
+ * Publisher whose producer waits for the demand of the subscribers: offer() blocks until every subscriber has
+ * requested at least one more item. With ChatFlow the producer is the listen thread of a TCPClient, so while it
+ * waits nothing is read from the socket, and TCP flow control makes the server slow down instead of the client
+ * buffering the messages.
+ * <p>
+ * The items are delivered on the producer's thread, one at a time. When there are no subscribers, the items are
+ * dropped. Once closed, the publisher completes its subscribers, and the later ones at once.
+ *
+ * @param <T> Type of the items
+ */
+public class DemandPublisher<T> implements Flow.Publisher<T> {
+
+    private class DemandSubscription implements Flow.Subscription {
+        final Flow.Subscriber<? super T> subscriber;
+        // Guarded by the publisher's lock
+        long demand = 0;
+        boolean cancelled = false;
+
+        DemandSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (lock) {
+                if (cancelled) {
+                    return;
+                }
+                if (n > 0) {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    lock.notifyAll();
+                    return;
+                }
+                cancelled = true;
+                subscriptions.remove(this);
+                lock.notifyAll();
+            }
+            subscriber.onError(new IllegalArgumentException("Requested " + n + " items, must be positive"));
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (lock) {
+                cancelled = true;
+                subscriptions.remove(this);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private final Object lock = new Object();
+    private final List<DemandSubscription> subscriptions = new ArrayList<>();
+    private boolean closed = false;
+
+    private long delivered = 0;
+    private long dropped = 0;
+    private long waits = 0;
+    private long waitNanos = 0;
+    private boolean waiting = false;
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber);
+        DemandSubscription subscription = new DemandSubscription(subscriber);
+        boolean completed;
+        synchronized (lock) {
+            completed = closed;
+            if (!completed) {
+                subscriptions.add(subscription);
+            }
+        }
+        subscriber.onSubscribe(subscription);
+        if (completed) {
+            subscriber.onComplete();
+        }
+    }
+
+    /**
+     * Deliver an item to all the subscribers, after waiting until they all want one.
+     *
+     * @param item The item
+     * @return true if the item was delivered, false if there were no subscribers, the publisher was closed or the
+     * thread was interrupted while waiting
+     */
+    public boolean offer(T item) {
+        List<DemandSubscription> targets;
+        synchronized (lock) {
+            long start = 0;
+            try {
+                while (!closed && !hasDemand()) {
+                    if (start == 0) {
+                        start = System.nanoTime();
+                        waits++;
+                        waiting = true;
+                    }
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                if (start != 0) {
+                    waiting = false;
+                    waitNanos += System.nanoTime() - start;
+                }
+            }
+            if (closed) {
+                return false;
+            }
+            if (subscriptions.isEmpty()) {
+                dropped++;
+                return false;
+            }
+            targets = new ArrayList<>(subscriptions);
+            for (DemandSubscription s : targets) {
+                s.demand--;
+            }
+            delivered++;
+        }
+        for (DemandSubscription s : targets) {
+            try {
+                s.subscriber.onNext(item);
+            } catch (RuntimeException e) {
+                // A subscriber which throws is considered cancelled
+                s.cancel();
+            }
+        }
+        return true;
+    }
+
+    private boolean hasDemand() {
+        for (DemandSubscription s : subscriptions) {
+            if (s.demand == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Complete all the subscribers and wake up the producer if it is waiting. Items offered after this are
+     * dropped.
+     */
+    public void close() {
+        List<DemandSubscription> targets;
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            targets = new ArrayList<>(subscriptions);
+            subscriptions.clear();
+            lock.notifyAll();
+        }
+        for (DemandSubscription s : targets) {
+            s.subscriber.onComplete();
+        }
+    }
+
+    /**
+     * @return true if the producer is waiting for demand right now
+     */
+    public boolean isWaiting() {
+        synchronized (lock) {
+            return waiting;
+        }
+    }
+
+    /**
+     * @return Number of items delivered
+     */
+    public long getDelivered() {
+        synchronized (lock) {
+            return delivered;
+        }
+    }
+
+    /**
+     * @return Number of items dropped because there were no subscribers
+     */
+    public long getDropped() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    /**
+     * @return Number of times the producer had to wait for demand
+     */
+    public long getWaits() {
+        synchronized (lock) {
+            return waits;
+        }
+    }
+
+    /**
+     * @return Total time the producer waited for demand, in nanoseconds
+     */
+    public long getWaitNanos() {
+        synchronized (lock) {
+            return waitNanos;
+        }
+    }
+
+    /**
+     * @return Number of subscribers now
+     */
+    public int getSubscriberCount() {
+        synchronized (lock) {
+            return subscriptions.size();
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package no.ntnu.datakomm.chat.flow;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.datakomm.chat.TCPClient;
+
+/**
+ * Subscriber which sends a stream of messages with a TCPClient, paced by the server: at most a window of
+ * messages is sent and not yet answered (msgok/msgerror), and one more message is requested from upstream for
+ * every answer. A producer can thus never get further ahead of the server than the window, whatever the size of
+ * the socket buffers.
+ * <p>
+ * The writes are batched when the client uses its outbound queues (TCPClient.setPriorityQueues()): the writer
+ * thread flushes once for all the messages queued together, at most OutboundQueue.MAX_BATCH. Without the queues
+ * every message is flushed on its own.
+ * <p>
+ * A message the client refuses while connected (rate limiter, full outbound queue) keeps its place in the
+ * window and is tried again after a growing delay, with the messages after it waiting behind it: a rate limit
+ * paces the producer just like the server does. Messages which can't be sent at all (not connected, too long)
+ * count as failed and are replaced by a new request, so a stream does not stall on them. When the client
+ * disconnects, the answers of the messages in flight fail and the subscription is cancelled.
+ */
+public class MessageSink implements Flow.Subscriber<OutgoingMessage> {
+    public static final int DEFAULT_WINDOW = 64;
+    private static final long MIN_RETRY_DELAY_MS = 50;
+    private static final long MAX_RETRY_DELAY_MS = 2000;
+    // Tries the refused messages again, for all the sinks
+    private static final ScheduledExecutorService RETRIES = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "message-sink-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * A message received from upstream and not sent yet.
+     */
+    private static final class Pending {
+        final OutgoingMessage message;
+        final long start;
+
+        Pending(OutgoingMessage message, long start) {
+            this.message = message;
+            this.start = start;
+        }
+    }
+
+    private final TCPClient client;
+    private final int window;
+    private Flow.Subscription subscription;
+
+    // Guarded by this
+    private int inFlight = 0;
+    private int maxInFlight = 0;
+    private long sent = 0;
+    private long delivered = 0;
+    private long failed = 0;
+    private long ackNanos = 0;
+    private long retries = 0;
+    // Refused messages and the ones received after them, in order; a retry is scheduled while not empty
+    private final ArrayDeque<Pending> refused = new ArrayDeque<>();
+    private long retryDelayMs = MIN_RETRY_DELAY_MS;
+    private boolean upstreamDone = false;
+    private boolean cancelled = false;
+    private Throwable error = null;
+
+    public MessageSink(TCPClient client) {
+        this(client, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param client The client which sends the messages
+     * @param window Maximum number of messages sent and not yet answered by the server
+     */
+    public MessageSink(TCPClient client, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Invalid window: " + window);
+        }
+        this.client = client;
+        this.window = window;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            if (this.subscription != null) {
+                // Only one upstream
+                subscription.cancel();
+                return;
+            }
+            this.subscription = subscription;
+        }
+        subscription.request(window);
+    }
+
+    @Override
+    public void onNext(OutgoingMessage message) {
+        Pending pending = new Pending(message, System.nanoTime());
+        synchronized (this) {
+            inFlight++;
+            maxInFlight = Math.max(maxInFlight, inFlight);
+            if (!refused.isEmpty()) {
+                // Keep the order: wait behind the refused message
+                refused.addLast(pending);
+                return;
+            }
+        }
+        send(pending);
+    }
+
+    /**
+     * Send a message with the client.
+     *
+     * @return false if the client refused it while connected: it is first in refused and a retry is scheduled
+     */
+    private boolean send(Pending pending) {
+        OutgoingMessage message = pending.message;
+        boolean ok = client.sendTrackedMessage(message.getRecipient(), message.getText(),
+                error -> answered(error, pending.start));
+        if (ok) {
+            synchronized (this) {
+                sent++;
+                retryDelayMs = MIN_RETRY_DELAY_MS;
+            }
+            return true;
+        }
+        if (client.isConnectionActive() && client.isSendable(message.getText())) {
+            synchronized (this) {
+                if (!cancelled) {
+                    retries++;
+                    if (refused.peekFirst() != pending) {
+                        refused.addFirst(pending);
+                    }
+                    RETRIES.schedule(this::retry, retryDelayMs, TimeUnit.MILLISECONDS);
+                    retryDelayMs = Math.min(MAX_RETRY_DELAY_MS, retryDelayMs * 2);
+                    return false;
+                }
+            }
+        }
+        // No answer will come for it
+        answered("Not sent", pending.start);
+        return true;
+    }
+
+    /**
+     * Try the refused message again, then the ones which waited behind it. Each one stays in refused until it
+     * is sent, so that onNext() keeps queueing behind it.
+     */
+    private void retry() {
+        while (true) {
+            Pending pending;
+            boolean skip;
+            synchronized (this) {
+                pending = refused.peekFirst();
+                if (pending == null) {
+                    return;
+                }
+                skip = cancelled;
+                if (skip) {
+                    refused.pollFirst();
+                }
+            }
+            if (skip) {
+                answered("Not sent", pending.start);
+            } else if (send(pending)) {
+                synchronized (this) {
+                    refused.pollFirst();
+                }
+            } else {
+                // Refused again, the next retry is scheduled
+                return;
+            }
+        }
+    }
+
+    /**
+     * The server answered a message, or it can't be answered: make room for the next one.
+     */
+    private void answered(String error, long start) {
+        boolean more;
+        boolean disconnected = false;
+        synchronized (this) {
+            inFlight--;
+            ackNanos += System.nanoTime() - start;
+            if (error == null) {
+                delivered++;
+            } else {
+                failed++;
+            }
+            if (!cancelled && !upstreamDone && !client.isConnectionActive()) {
+                cancelled = true;
+                disconnected = true;
+            }
+            more = !cancelled && !upstreamDone;
+            notifyAll();
+        }
+        if (disconnected) {
+            subscription.cancel();
+        } else if (more) {
+            subscription.request(1);
+        }
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable) {
+        error = throwable;
+        upstreamDone = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onComplete() {
+        upstreamDone = true;
+        notifyAll();
+    }
+
+    /**
+     * Stop consuming: cancel the subscription. The messages already sent are still answered.
+     */
+    public void cancel() {
+        Flow.Subscription s;
+        synchronized (this) {
+            cancelled = true;
+            s = subscription;
+        }
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    /**
+     * Wait until the upstream has completed (or failed, or the sink was cancelled) and all the messages sent
+     * have been answered.
+     *
+     * @param timeoutMs Maximum time to wait
+     * @return true if done, false on timeout
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public synchronized boolean awaitDone(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!((upstreamDone || cancelled) && inFlight == 0)) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * @return Number of messages sent (or queued) so far
+     */
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return Number of messages confirmed by the server
+     */
+    public synchronized long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return Number of messages not sent or rejected by the server
+     */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return Number of times a message refused by the client was tried again
+     */
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return Number of messages sent and not yet answered
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return Highest number of messages in flight at once
+     */
+    public synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return Average time from sending a message to its answer, in milliseconds
+     */
+    public synchronized double getAverageAckMillis() {
+        long answered = delivered + failed;
+        return answered == 0 ? 0 : ackNanos / 1e6 / answered;
+    }
+
+    /**
+     * @return The error of the upstream, null if none
+     */
+    public synchronized Throwable getError() {
+        return error;
+    }
+}
@@ -0,0 +1,55 @@
+package no.ntnu.datakomm.chat.flow;
+
+/**
+ * A message to send, as consumed by MessageSink.
+ */
+public class OutgoingMessage {
+    private final String recipient;
+    private final String text;
+
+    /**
+     * @param recipient Username of the recipient of a private message, null for a public message
+     * @param text      Message text
+     */
+    public OutgoingMessage(String recipient, String text) {
+        this.recipient = recipient;
+        this.text = text;
+    }
+
+    /**
+     * @param text Message text
+     * @return A public message
+     */
+    public static OutgoingMessage toAll(String text) {
+        return new OutgoingMessage(null, text);
+    }
+
+    /**
+     * @param recipient Username of the recipient
+     * @param text      Message text
+     * @return A private message
+     */
+    public static OutgoingMessage to(String recipient, String text) {
+        return new OutgoingMessage(recipient, text);
+    }
+
+    /**
+     * @return Username of the recipient, null for a public message
+     */
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public boolean isPrivate() {
+        return recipient != null;
+    }
+
+    @Override
+    public String toString() {
+        return (recipient != null ? "to " + recipient + ": " : "to all: ") + text;
+    }
+}
@@ -0,0 +1,158 @@
+package no.ntnu.datakomm.chat.flow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.function.BooleanSupplier;
+import no.ntnu.datakomm.chat.TCPClient;
+import no.ntnu.datakomm.chat.TextMessage;
+import no.ntnu.datakomm.chat.helpers.AwaitingListener;
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.FakeChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChatFlowTest {
+    private FakeChatServer server;
+
+    /**
+     * Subscriber which records the items and requests only what the test tells it to.
+     */
+    private static class RecordingSubscriber<T> implements Flow.Subscriber<T> {
+        final List<T> items = new ArrayList<>();
+        Flow.Subscription subscription;
+        Throwable error;
+        boolean completed;
+
+        @Override
+        public synchronized void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onNext(T item) {
+            items.add(item);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onError(Throwable throwable) {
+            error = throwable;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            completed = true;
+            notifyAll();
+        }
+
+        synchronized boolean await(BooleanSupplier condition) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + AwaitingListener.TIMEOUT_MS;
+            while (!condition.getAsBoolean()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+            return true;
+        }
+    }
+
+    @Before
+    public void startServer() {
+        server = new FakeChatServer();
+    }
+
+    @After
+    public void stopServer() {
+        server.shutdown();
+    }
+
+    private TCPClient connectAndLogin(String username) throws InterruptedException {
+        TCPClient client = new TCPClient(server);
+        assertTrue(client.connect("localhost", 1300));
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        client.startListenThread();
+        client.tryLogin(username);
+        assertTrue(counter.await(() -> counter.loginSuccess == 1));
+        client.removeListener(counter);
+        return client;
+    }
+
+    /**
+     * The listen thread waits while the subscriber has no demand, and goes on when it requests more.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testDemand() throws InterruptedException {
+        TCPClient c1 = connectAndLogin("UnitTestFlow1");
+        TCPClient c2 = connectAndLogin("UnitTestFlow2");
+        ChatFlow flow = new ChatFlow(c2);
+        RecordingSubscriber<TextMessage> subscriber = new RecordingSubscriber<>();
+        flow.messages().subscribe(subscriber);
+        subscriber.subscription.request(1);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(c1.sendPublicMessage("Message " + i));
+        }
+        DemandPublisher<TextMessage> publisher = flow.getMessagePublisher();
+        assertTrue(subscriber.await(() -> subscriber.items.size() == 1 && publisher.isWaiting()));
+        assertEquals(1, subscriber.items.size());
+        assertEquals(1, publisher.getWaits());
+
+        subscriber.subscription.request(2);
+        assertTrue(subscriber.await(() -> subscriber.items.size() == 3));
+        assertEquals("Message 2", subscriber.items.get(2).getText());
+        assertEquals(3, publisher.getDelivered());
+
+        // Disconnecting completes the streams, also while the listen thread waits for demand
+        assertTrue(c1.sendPublicMessage("One too many"));
+        assertTrue(subscriber.await(publisher::isWaiting));
+        c2.disconnect();
+        assertTrue(subscriber.await(() -> subscriber.completed));
+        assertEquals(3, subscriber.items.size());
+        c1.disconnect();
+    }
+
+    /**
+     * Errors and user lists have their own streams; a request for no items is an error.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testErrorsAndUserLists() throws InterruptedException {
+        TCPClient c1 = connectAndLogin("UnitTestFlowErr");
+        ChatFlow flow = new ChatFlow(c1);
+        RecordingSubscriber<ChatError> errors = new RecordingSubscriber<>();
+        RecordingSubscriber<String[]> lists = new RecordingSubscriber<>();
+        RecordingSubscriber<TextMessage> invalid = new RecordingSubscriber<>();
+        flow.errors().subscribe(errors);
+        flow.userLists().subscribe(lists);
+        flow.messages().subscribe(invalid);
+        errors.subscription.request(Long.MAX_VALUE);
+        lists.subscription.request(Long.MAX_VALUE);
+        invalid.subscription.request(0);
+        assertTrue(invalid.error instanceof IllegalArgumentException);
+
+        assertTrue(c1.sendPrivateMessage("UnitTestNobody", "Hello?"));
+        assertTrue(errors.await(() -> errors.items.size() == 1));
+        assertEquals(ChatError.Kind.MESSAGE, errors.items.get(0).getKind());
+        c1.refreshUserList();
+        assertTrue(lists.await(() -> lists.items.size() == 1));
+        assertEquals("UnitTestFlowErr", lists.items.get(0)[0]);
+
+        flow.close();
+        assertTrue(errors.completed && lists.completed);
+        RecordingSubscriber<ChatError> late = new RecordingSubscriber<>();
+        flow.errors().subscribe(late);
+        assertTrue(late.completed);
+        c1.disconnect();
+    }
+}
@@ -0,0 +1,134 @@
+package no.ntnu.datakomm.chat.flow;
+
+import java.util.concurrent.SubmissionPublisher;
+import no.ntnu.datakomm.chat.RateLimiter;
+import no.ntnu.datakomm.chat.TCPClient;
+import no.ntnu.datakomm.chat.TextMessage;
+import no.ntnu.datakomm.chat.helpers.AwaitingListener;
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.FakeChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageSinkTest {
+    private FakeChatServer server;
+
+    @Before
+    public void startServer() {
+        server = new FakeChatServer();
+    }
+
+    @After
+    public void stopServer() {
+        server.shutdown();
+    }
+
+    private TCPClient connectAndLogin(String username, boolean queues) throws InterruptedException {
+        TCPClient client = new TCPClient(server);
+        client.setPriorityQueues(queues);
+        assertTrue(client.connect("localhost", 1300));
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        client.startListenThread();
+        client.tryLogin(username);
+        assertTrue(counter.await(() -> counter.loginSuccess == 1));
+        client.removeListener(counter);
+        return client;
+    }
+
+    /**
+     * A fast producer is paced by the answers of the server: never more than the window in flight.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testPacedStream() throws InterruptedException {
+        TCPClient sender = connectAndLogin("UnitTestSink", true);
+        TCPClient receiver = connectAndLogin("UnitTestSinkRx", false);
+        DummyMsgReceiver received = new DummyMsgReceiver();
+        receiver.addListener(received);
+
+        MessageSink sink = new MessageSink(sender, 8);
+        try (SubmissionPublisher<OutgoingMessage> producer = new SubmissionPublisher<>()) {
+            producer.subscribe(sink);
+            for (int i = 0; i < 200; i++) {
+                producer.submit(i % 10 == 0
+                        ? OutgoingMessage.to("UnitTestSinkRx", "Private " + i)
+                        : OutgoingMessage.toAll("Public " + i));
+            }
+            producer.submit(OutgoingMessage.to("UnitTestNobody", "Lost"));
+        }
+        assertTrue(sink.awaitDone(AwaitingListener.TIMEOUT_MS));
+        assertEquals(201, sink.getSent());
+        assertEquals(200, sink.getDelivered());
+        assertEquals(1, sink.getFailed());
+        assertTrue(sink.getMaxInFlight() <= 8);
+        assertEquals(0, sink.getInFlight());
+        final TextMessage last = new TextMessage("UnitTestSink", false, "Public 199");
+        final TextMessage priv = new TextMessage("UnitTestSink", true, "Private 190");
+        assertTrue(received.await(() -> received.hasReceived(last) && received.hasReceived(priv)));
+
+        sender.disconnect();
+        receiver.disconnect();
+    }
+
+    /**
+     * Messages refused by the rate limiter are tried again, in order, instead of being dropped as failed.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testRateLimited() throws InterruptedException {
+        TCPClient sender = connectAndLogin("UnitTestSinkLimited", false);
+        RateLimiter limiter = new RateLimiter(RateLimiter.Policy.REJECT);
+        limiter.setCommandLimit("msg", 20, 1);
+        sender.setRateLimiter(limiter);
+        TCPClient receiver = connectAndLogin("UnitTestSinkLimitedRx", false);
+        DummyMsgReceiver received = new DummyMsgReceiver();
+        receiver.addListener(received);
+
+        MessageSink sink = new MessageSink(sender, 4);
+        try (SubmissionPublisher<OutgoingMessage> producer = new SubmissionPublisher<>()) {
+            producer.subscribe(sink);
+            for (int i = 0; i < 10; i++) {
+                producer.submit(OutgoingMessage.toAll("Limited " + i));
+            }
+        }
+        assertTrue(sink.awaitDone(AwaitingListener.TIMEOUT_MS));
+        assertEquals(10, sink.getDelivered());
+        assertEquals(0, sink.getFailed());
+        assertEquals(limiter.getRejected(), sink.getRetries());
+        assertTrue(sink.getRetries() > 0);
+        final TextMessage last = new TextMessage("UnitTestSinkLimited", false, "Limited 9");
+        assertTrue(received.await(() -> received.hasReceived(last)));
+        for (int i = 0; i < 9; i++) {
+            assertTrue(received.hasReceived(new TextMessage("UnitTestSinkLimited", false, "Limited " + i)));
+        }
+
+        sender.disconnect();
+        receiver.disconnect();
+    }
+
+    /**
+     * Messages in flight fail when the client disconnects, and the stream is cancelled.
+     *
+     * @throws InterruptedException When test is interrupted while waiting
+     */
+    @Test
+    public void testDisconnect() throws InterruptedException {
+        TCPClient sender = connectAndLogin("UnitTestSinkOff", false);
+        sender.disconnect();
+        MessageSink sink = new MessageSink(sender, 4);
+        SubmissionPublisher<OutgoingMessage> producer = new SubmissionPublisher<>();
+        producer.subscribe(sink);
+        producer.submit(OutgoingMessage.toAll("Nobody hears this"));
+        assertTrue(sink.awaitDone(AwaitingListener.TIMEOUT_MS));
+        assertEquals(0, sink.getSent());
+        assertEquals(1, sink.getFailed());
+        producer.close();
+    }
+}
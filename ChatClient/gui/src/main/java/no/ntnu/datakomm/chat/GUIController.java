@@ -1,5 +1,7 @@
 package no.ntnu.datakomm.chat;
 
+import java.io.File;
+import java.io.IOException;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
@@ -72,6 +74,13 @@ public class GUIController implements ChatListener {
      */
     public void initialize() {
         tcpClient = new TCPClient();
+        // Messages typed while offline are kept on disk and sent after the next login
+        File journal = new File(System.getProperty("user.home"), ".chatclient-outbox");
+        try {
+            tcpClient.setOutbox(Outbox.open(journal));
+        } catch (IOException e) {
+            System.out.println("Outbox not available, offline messages will be lost: " + e.getMessage());
+        }
         hostInput.setText("datakomm.work");
         portInput.setText("1300");
         textOutput.heightProperty().addListener((observable, oldValue, newValue)
@@ -125,16 +134,20 @@ public class GUIController implements ChatListener {
         String msgToSend = textInput.getText();
         if (!msgToSend.isEmpty()) {
             TextMessage msg;
-            if (tcpClient.isConnectionActive()) {
+            if (tcpClient.isConnectionActive() || tcpClient.getOutbox() != null) {
                 // Split the message in max 3 parts. If the first one is "/privmsg", then recipient is the second
                 // part and the text to send is the third. Otherwise, the whole message is sent as a public message.
                 String[] msgParts = msgToSend.split(" ", 3);
+                boolean sent;
                 if (msgParts.length == 3 && msgParts[0].equals("/privmsg")) {
                     String recipient = msgParts[1];
                     String message = msgParts[2];
-                    tcpClient.sendPrivateMessage(recipient, message);
+                    sent = tcpClient.sendPrivateMessage(recipient, message);
                 } else {
-                    tcpClient.sendPublicMessage(msgToSend);
+                    sent = tcpClient.sendPublicMessage(msgToSend);
+                }
+                if (sent) {
+                    StartupTiming.firstMessageSent(System.out, "gui");
                 }
                 msg = new TextMessage("", false, msgToSend);
             } else {
@@ -190,6 +203,10 @@ public class GUIController implements ChatListener {
             if (local) {
                 if (tcpClient.isConnectionActive()) {
                     textStyle.add("sentMessage");
+                } else if (tcpClient.getOutbox() != null) {
+                    // Stored in the outbox, sent after the next login
+                    serverStatus.setText("Not connected - the message will be sent after the next login");
+                    textStyle.add("queuedMessage");
                 } else {
                     // Trying to send a message without an active connection
                     serverStatus.setText("Please login to send messages to server");
@@ -1,5 +1,14 @@
 package no.ntnu.datakomm;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
 /**
  * A Simple TCP client, used as a warm-up exercise for assignment A4.
  */
@@ -8,14 +17,39 @@ public class SimpleTcpClient {
     private static final String HOST = "localhost";
     // TCP port
     private static final int PORT = 1301;
+    // How many requests to send for every window size in the pipelining benchmark
+    private static final int REQUESTS_PER_WINDOW = 1000;
+
+    private Socket connection;
+    private PrintWriter toServer;
+    private BufferedReader fromServer;
 
     /**
      * Run the TCP Client.
      *
-     * @param args Command line arguments. Not used.
+     * @param args Command line arguments. With no arguments the normal client is run. With arguments
+     *             "pipeline K [N]" the pipelining benchmark is run for window sizes 1..K, N requests each.
      */
     public static void main(String[] args) {
         SimpleTcpClient client = new SimpleTcpClient();
+        if (args.length >= 1 && args[0].equals("pipeline")) {
+            int maxWindow = 0;
+            int requests = REQUESTS_PER_WINDOW;
+            try {
+                maxWindow = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+                if (args.length > 2) {
+                    requests = Integer.parseInt(args[2]);
+                }
+            } catch (NumberFormatException e) {
+                maxWindow = 0;
+            }
+            if (maxWindow < 1 || requests < 1) {
+                System.err.println("Usage: SimpleTcpClient [pipeline K [N]], with K >= 1 and N >= 1");
+                return;
+            }
+            client.runPipelineBenchmark(maxWindow, requests);
+            return;
+        }
         try {
             client.run();
         } catch (InterruptedException e) {
@@ -89,8 +123,21 @@ public class SimpleTcpClient {
      * @return True on success, false otherwise
      */
     private boolean closeConnection() {
-        // TODO - implement this method
-        return false;
+        if (connection == null) {
+            log("ERROR: connection was not open");
+            return false;
+        }
+        try {
+            connection.close();
+            return true;
+        } catch (IOException e) {
+            log("ERROR: failed to close the socket: " + e.getMessage());
+            return false;
+        } finally {
+            connection = null;
+            toServer = null;
+            fromServer = null;
+        }
     }
 
     /**
@@ -101,9 +148,19 @@ public class SimpleTcpClient {
      * @return True when connection established, false otherwise
      */
     private boolean connectToServer(String host, int port) {
-        // TODO - implement this method
-        // Remember to catch all possible exceptions that the Socket class can throw.
-        return false;
+        try {
+            connection = new Socket(host, port);
+            // The requests are flushed explicitly: one by one in the normal mode, one window at a time when
+            // pipelining. Without Nagle's algorithm the small requests go out immediately on flush.
+            connection.setTcpNoDelay(true);
+            toServer = new PrintWriter(connection.getOutputStream(), false);
+            fromServer = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+            return true;
+        } catch (IOException | IllegalArgumentException | SecurityException e) {
+            log("ERROR: could not connect to " + host + ":" + port + ": " + e.getMessage());
+            connection = null;
+            return false;
+        }
     }
 
     /**
@@ -113,13 +170,39 @@ public class SimpleTcpClient {
      * @return True when message successfully sent, false on error.
      */
     private boolean sendRequestToServer(String request) {
-        // TODO - implement this method
-        // Hint: What can go wrong? Several things:
-        // * Connection closed by remote host (server shutdown)
-        // * Internet connection lost, timeout in transmission
-        // * Connection not opened.
-        // * What is the request is null or empty?
-        return false;
+        return writeRequest(request) && flushRequests();
+    }
+
+    /**
+     * Put a request in the output buffer, without sending it yet. Use flushRequests() to send.
+     *
+     * @param request The request message to send. Do NOT include the newline in the message!
+     * @return True when the request was buffered, false on error.
+     */
+    private boolean writeRequest(String request) {
+        if (connection == null || toServer == null) {
+            return false;
+        }
+        if (request == null || request.isEmpty()) {
+            log("ERROR: empty request");
+            return false;
+        }
+        toServer.println(request);
+        // PrintWriter does not throw exceptions, it sets an error flag instead
+        return !toServer.checkError();
+    }
+
+    /**
+     * Send all the buffered requests to the server.
+     *
+     * @return True on success, false when the connection is broken or not open
+     */
+    private boolean flushRequests() {
+        if (toServer == null) {
+            return false;
+        }
+        toServer.flush();
+        return !toServer.checkError();
     }
 
     /**
@@ -129,9 +212,94 @@ public class SimpleTcpClient {
      * (not included in the returned value).
      */
     private String readResponseFromServer() {
-        // TODO - implement this method
-        // Similarly to other methods, exception can happen while trying to read the input stream of the TCP Socket
-        return null;
+        if (fromServer == null) {
+            return null;
+        }
+        try {
+            // null when the server has closed the connection
+            return fromServer.readLine();
+        } catch (IOException e) {
+            log("ERROR: failed to read the response: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Measure the benefit of pipelining: for every window size 1..maxWindow, send the given number of random
+     * a+b requests, keeping up to "window" requests in flight before reading the responses. The responses come
+     * back in the same order as the requests, so they are matched against a FIFO of outstanding requests.
+     * Requests/sec and the latency of the requests are printed for each window size.
+     *
+     * @param maxWindow Largest window size to try
+     * @param requests  Number of requests to send for each window size
+     */
+    public void runPipelineBenchmark(int maxWindow, int requests) {
+        if (!connectToServer(HOST, PORT)) {
+            log("ERROR: Failed to connect to the server");
+            return;
+        }
+        log(String.format("%6s %12s %12s %12s %12s %8s", "window", "requests/s", "avg ms", "p99 ms",
+                "max ms", "errors"));
+        for (int window = 1; window <= maxWindow; window++) {
+            if (!runPipelined(window, requests)) {
+                log("ERROR: pipelined run with window " + window + " failed");
+                break;
+            }
+        }
+        if (sendRequestToServer("game over")) {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Send the requests, keeping up to "window" of them in flight, and print the statistics.
+     *
+     * @param window   Maximum number of requests sent but not answered yet
+     * @param requests Total number of requests to send
+     * @return True when all the responses were received, false on connection error
+     */
+    private boolean runPipelined(int window, int requests) {
+        // Outstanding requests in sending order: {expected sum, send time in ns}
+        Deque<long[]> inFlight = new ArrayDeque<>(window);
+        long[] latencies = new long[requests];
+        int sent = 0;
+        int received = 0;
+        int errors = 0;
+        long start = System.nanoTime();
+        while (received < requests) {
+            // Fill the window, then send all of it in one flush
+            while (sent < requests && inFlight.size() < window) {
+                int a = (int) (1 + Math.random() * 10);
+                int b = (int) (1 + Math.random() * 10);
+                if (!writeRequest(a + "+" + b)) {
+                    return false;
+                }
+                inFlight.addLast(new long[]{a + b, System.nanoTime()});
+                sent++;
+            }
+            if (!flushRequests()) {
+                return false;
+            }
+            String response = readResponseFromServer();
+            if (response == null) {
+                return false;
+            }
+            long[] request = inFlight.removeFirst();
+            latencies[received++] = System.nanoTime() - request[1];
+            if (!response.equals(String.valueOf(request[0]))) {
+                errors++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        long total = 0;
+        for (long l : latencies) {
+            total += l;
+        }
+        log(String.format("%6d %12.0f %12.3f %12.3f %12.3f %8d", window, requests * 1e9 / elapsed,
+                total / 1e6 / requests, latencies[Math.min(requests - 1, (int) (requests * 0.99))] / 1e6,
+                latencies[requests - 1] / 1e6, errors));
+        return true;
     }
 
     /**